@@ -41,7 +41,7 @@ public class MarkSeenDialog extends ToggleDialog implements NavigatableComponent
     private boolean skipZoomEvents;
 
     private final MarkSeenSlippyMapBBoxChooser slippyMap;
-    private final QuadTreeMeta quadTreeMeta;
+    private final QuadTreeMaskSource maskSource;
     private final JSlider recordMinZoomSlider;
     private final JLabel recordMinZoomSliderLabel;
     private final JToggleButton recordToggleButton;
@@ -57,13 +57,13 @@ public class MarkSeenDialog extends ToggleDialog implements NavigatableComponent
      * Constructs a new {@code MarkSeenDialog}.
      */
     public MarkSeenDialog(
-        QuadTreeMeta quadTreeMeta_,
+        QuadTreeMaskSource maskSource_,
         JosmAction clearAction_,
         ToggleAction recordAction_,
         BoundedRangeModel recordMinZoom_
     ) {
         super(tr("MarkSeen Viewer"), "markseen", tr("Shows viewed map areas on a familiar small map"), null, 150);
-        this.quadTreeMeta = quadTreeMeta_;
+        this.maskSource = maskSource_;
         this.recordMinZoomSlider = new JSlider(recordMinZoom_);
         this.recordMinZoomSliderLabel = new JLabel(tr("Max viewport size"));
         this.recordToggleButton = new JToggleButton(recordAction_);
@@ -82,7 +82,7 @@ public class MarkSeenDialog extends ToggleDialog implements NavigatableComponent
         this.showToolBarToggleButton.getModel().addChangeListener(this);
         this.updateShowToolBarToggleButton();
 
-        this.slippyMap = new MarkSeenSlippyMapBBoxChooser(this.quadTreeMeta);
+        this.slippyMap = new MarkSeenSlippyMapBBoxChooser(this.maskSource);
     }
 
     private synchronized void initialize() {
@@ -7,6 +7,11 @@ import java.beans.PropertyChangeListener;
 import java.awt.event.ActionEvent;
 import java.awt.event.KeyEvent;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
 import javax.swing.BoundedRangeModel;
 import javax.swing.DefaultBoundedRangeModel;
 import javax.swing.JMenu;
@@ -97,7 +102,7 @@ public class MarkSeenRoot implements NavigatableComponent.ZoomChangeListener, Ch
 
         @Override
         public void actionPerformed(ActionEvent e) {
-            MarkSeenRoot.this.quadTreeMeta.requestClear();
+            MarkSeenRoot.this.maskSource.requestClear();
         }
     }
 
@@ -128,7 +133,7 @@ public class MarkSeenRoot implements NavigatableComponent.ZoomChangeListener, Ch
         }
     }
 
-    private final QuadTreeMeta quadTreeMeta;
+    private final QuadTreeMaskSource maskSource;
     private final JosmAction clearAction;
     private final ToggleAction recordAction;
     private final BoundedRangeModel recordMinZoom;
@@ -146,11 +151,46 @@ public class MarkSeenRoot implements NavigatableComponent.ZoomChangeListener, Ch
     private MarkSeenDialog dialog;
 
     public MarkSeenRoot() {
-        this.quadTreeMeta = new QuadTreeMeta(
-            Config.getPref().getInt("markseen.quadTreeTileSize", 256),
+        int tileSize = Config.getPref().getInt("markseen.quadTreeTileSize", 256);
+        if (tileSize < 2 || tileSize % 2 != 0) {
+            // masks are reduced onto their parents 2x2 pixels at a time, which an odd size would leave a row over
+            Logging.warn("MarkSeen ignoring markseen.quadTreeTileSize of " + tileSize + ", which must be even");
+            tileSize = 256;
+        }
+        final QuadTreeMeta.Options options = new QuadTreeMeta.Options(
+            tileSize,
             ColorHelper.html2color(Config.getPref().get("color.markseen.seenarea", "#ff00ff")),
-            Config.getPref().getDouble("markseen.maskOpacity", 0.5),
-            true
+            Config.getPref().getDouble("markseen.maskOpacity", 0.5)
+        );
+        options.autoOptimize(true)
+            .maskReductionThreshold(
+                Math.max(1, Math.min(Config.getPref().getInt("markseen.maskReductionThreshold", 1), 4))
+            )
+            .maskCacheBytes(Math.max(1, Config.getPref().getInt("markseen.maskCacheMB", 32)) * 1024L * 1024L);
+
+        final int shardZoom = Config.getPref().getInt("markseen.shardZoom", 0);
+        QuadTreeShards shards = null;
+        if (shardZoom > 0) {
+            try {
+                shards = new QuadTreeShards(options, shardZoom);
+                // shards have nowhere to save to
+                Logging.warn("MarkSeen recording into shards at zoom " + shardZoom + ", seen areas won't be saved");
+            } catch (IllegalArgumentException e) {
+                Logging.warn("MarkSeen ignoring markseen.shardZoom of " + shardZoom + ": " + e.getMessage());
+            }
+        }
+        if (shards != null) {
+            this.maskSource = shards;
+        } else {
+            options.immutableMasks(Config.getPref().getBoolean("markseen.immutableMasks", false));
+            final QuadTreeMeta quadTreeMeta = new QuadTreeMeta(options);
+            if (Config.getPref().getBoolean("markseen.persistSeenAreas", true)) {
+                loadPersisted(quadTreeMeta);
+            }
+            this.maskSource = quadTreeMeta;
+        }
+        this.maskSource.setMaxLockHoldMillis(
+            Config.getPref().getInt("markseen.maxLockHoldMS", QuadTreeMeta.DEFAULT_MAX_LOCK_HOLD_MILLIS)
         );
         this.clearAction = new MarkSeenClearAction();
         this.recordAction = new MarkSeenToggleRecordAction();
@@ -173,10 +213,32 @@ public class MarkSeenRoot implements NavigatableComponent.ZoomChangeListener, Ch
         this.mainMenuSetMaxViewportItem = MainMenu.add(this.markSeenMainMenu, this.setMaxViewportAction, false);
     }
 
+    /** Loads `quadTreeMeta`'s saved seen areas & replays its journal, keeping both up to date from then on */
+    private static void loadPersisted(QuadTreeMeta quadTreeMeta) {
+        final File persistDir = new File(Config.getDirs().getUserDataDirectory(true), "markseen");
+        final Path persistPath = new File(persistDir, "seen.quadtree").toPath();
+        try {
+            Files.createDirectories(persistDir.toPath());
+            if (!quadTreeMeta.load(persistPath)) {
+                Logging.info("MarkSeen found no usable saved seen areas at " + persistPath);
+            }
+        } catch (IOException e) {
+            Logging.warn("MarkSeen failed to load saved seen areas from " + persistPath + ": " + e);
+        }
+        quadTreeMeta.setPersistPath(persistPath);
+        // edits made since the last save
+        final Path journalPath = new File(persistDir, "seen.journal").toPath();
+        try {
+            quadTreeMeta.openJournal(journalPath);
+        } catch (IOException e) {
+            Logging.warn("MarkSeen failed to open journal " + journalPath + ": " + e);
+        }
+    }
+
     public void mapFrameInitialized(MapFrame oldFrame, MapFrame newFrame) {
         if (oldFrame == null && newFrame != null) {
             MainMenu mainMenu = MainApplication.getMenu(); 
-            this.dialog = new MarkSeenDialog(this.quadTreeMeta, this.clearAction, this.recordAction, this.recordMinZoom);
+            this.dialog = new MarkSeenDialog(this.maskSource, this.clearAction, this.recordAction, this.recordMinZoom);
             newFrame.addToggleDialog(this.dialog);
 
             NavigatableComponent.addZoomChangeListener(this);
@@ -195,7 +257,7 @@ public class MarkSeenRoot implements NavigatableComponent.ZoomChangeListener, Ch
             this.updateRecordActionEnabled(currentBounds);
 
             if (this.recordAction.isEnabled() && this.recordAction.isSelected()) {
-                this.quadTreeMeta.requestSeenBoundsMark(currentBounds, Config.getPref().getDouble("markseen.minTilesAcross", 3.5));
+                this.maskSource.requestSeenBoundsMark(currentBounds, Config.getPref().getDouble("markseen.minTilesAcross", 3.5));
             }
         }
     }
@@ -13,15 +13,15 @@ public class MarkSeenSlippyMapBBoxChooser extends SlippyMapBBoxChooser implement
     private Bounds scaleHintBounds = null;
     private boolean showBBoxCrossed = false;
 
-    public MarkSeenSlippyMapBBoxChooser(QuadTreeMeta quadTreeMeta_) {
+    public MarkSeenSlippyMapBBoxChooser(QuadTreeMaskSource maskSource_) {
         this.tileController = new MarkSeenTileController(
-            quadTreeMeta_,
+            maskSource_,
             this.tileController.getTileSource(),
             this.tileController.getTileCache(),
             this
         );
 
-        quadTreeMeta_.addModifiedListener(this);
+        maskSource_.addModifiedListener(this);
     }
 
     @Override
@@ -14,14 +14,21 @@ import org.openstreetmap.gui.jmapviewer.interfaces.TileCache;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
 
 public class MarkSeenTile extends Tile {
-    private final QuadTreeNodeDynamicReference quadTreeNodeDynamicReference;
+    private final QuadTreeMaskSource maskSource;
+    private final QuadTreeMaskSource.TileReference tileReference;
 
-    public MarkSeenTile(QuadTreeMeta quadTreeMeta_, TileSource source_, int xtile_, int ytile_, int zoom_) {
-        this(quadTreeMeta_, source_, xtile_, ytile_, zoom_, LOADING_IMAGE);
+    // the BufferedImage rendering of the mask we last painted, kept along with the identity & version of the mask it was
+    // rendered from so it can be reused until the mask changes
+    private BufferedImage maskImage;
+    private QuadTreeMask maskImageSource;
+    private int maskImageSourceVersion;
+
+    public MarkSeenTile(QuadTreeMaskSource maskSource_, TileSource source_, int xtile_, int ytile_, int zoom_) {
+        this(maskSource_, source_, xtile_, ytile_, zoom_, LOADING_IMAGE);
     }
 
     public MarkSeenTile(
-        QuadTreeMeta quadTreeMeta_,
+        QuadTreeMaskSource maskSource_,
         TileSource source_,
         int xtile_,
         int ytile_,
@@ -29,7 +36,8 @@ public class MarkSeenTile extends Tile {
         BufferedImage image_
     ) {
         super(source_, xtile_, ytile_, zoom_, image_);
-        this.quadTreeNodeDynamicReference = new QuadTreeNodeDynamicReference(quadTreeMeta_, this);
+        this.maskSource = maskSource_;
+        this.tileReference = maskSource_.getTileReference(this);
     }
 
     protected void paintInner(
@@ -40,18 +48,47 @@ public class MarkSeenTile extends Tile {
         final int height,
         final boolean ignoreWH
     ) {
-        this.quadTreeNodeDynamicReference.maskReadOperation(mask -> {
-            int width_ = width, height_ = height;
-            if (ignoreWH) {
-                // we're mimicking the drawing of the underlying tile image, so drawing with an unspecified size should
-                // draw the mask at the size of that tile
-                width_ = height_ = source.getTileSize();
+        // the common case of the mask being unchanged since its image was last rendered needn't take any lock
+        final Boolean painted = this.tileReference.optimisticMaskReadOperation((mask, version) -> {
+            if (mask == this.maskSource.getEmptyMask()) {
+                // nothing visible to draw
+                return true;
+            }
+            if (mask != this.maskImageSource || version != this.maskImageSourceVersion) {
+                return false;
+            }
+            this.drawMaskImage(g, x, y, width, height, ignoreWH);
+            return true;
+        });
+        if (painted != null && painted) {
+            return;
+        }
+
+        this.tileReference.maskReadOperation(mask -> {
+            if (mask == this.maskSource.getEmptyMask()) {
+                // nothing visible to draw
+                return null;
+            }
+            if (mask != this.maskImageSource || mask.getVersion() != this.maskImageSourceVersion) {
+                this.maskImage = mask.toBufferedImage(this.maskSource.getMaskColorModel(), this.maskImage);
+                this.maskImageSource = mask;
+                this.maskImageSourceVersion = mask.getVersion();
             }
-            g.drawImage(mask, x, y, width_, height_, null);
+            this.drawMaskImage(g, x, y, width, height, ignoreWH);
             return null;
         });
     }
 
+    private void drawMaskImage(Graphics g, int x, int y, int width, int height, boolean ignoreWH) {
+        int width_ = width, height_ = height;
+        if (ignoreWH) {
+            // we're mimicking the drawing of the underlying tile image, so drawing with an unspecified size should
+            // draw the mask at the size of that tile
+            width_ = height_ = source.getTileSize();
+        }
+        g.drawImage(this.maskImage, x, y, width_, height_, null);
+    }
+
     @Override
     public void paint(Graphics g, int x, int y) {
         super.paint(g, x, y);
@@ -8,16 +8,16 @@ import org.openstreetmap.gui.jmapviewer.interfaces.TileLoaderListener;
 import org.openstreetmap.gui.jmapviewer.interfaces.TileSource;
 
 public class MarkSeenTileController extends TileController {
-    public final QuadTreeMeta quadTreeMeta;
+    public final QuadTreeMaskSource maskSource;
 
     public MarkSeenTileController(
-        QuadTreeMeta quadTreeMeta_,
+        QuadTreeMaskSource maskSource_,
         TileSource source_,
         TileCache tileCache_,
         TileLoaderListener listener_
     ) {
         super(source_, tileCache_, listener_);
-        this.quadTreeMeta = quadTreeMeta_;
+        this.maskSource = maskSource_;
     }
 
     /**
@@ -30,7 +30,7 @@ public class MarkSeenTileController extends TileController {
             return null;
         Tile tile = tileCache.getTile(tileSource, tilex, tiley, zoom);
         if (tile == null) {
-            tile = new MarkSeenTile(this.quadTreeMeta, tileSource, tilex, tiley, zoom);
+            tile = new MarkSeenTile(this.maskSource, tileSource, tilex, tiley, zoom);
             tileCache.addTile(tile);
             tile.loadPlaceholderFromCache(tileCache);
         }
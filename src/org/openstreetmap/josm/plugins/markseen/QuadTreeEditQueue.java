@@ -0,0 +1,290 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ *  The queue of edits awaiting QuadTreeMeta's edit thread, coalescing them as they're queued so that a burst of edits
+ *  - e.g. the viewport marks generated by fast panning - is neither rejected nor applied one by one:
+ *   - an edit that can be combined with one already queued replaces it with the combination, queued in the newer
+ *     edit's place
+ *   - an edit superseding its predecessors (a clear) drops everything queued before it
+ *
+ *  The number of edits queued thus stays small whatever the rate they arrive at, and coalescing is all that limits
+ *  the total weight of the edits queued: offer() never blocks, as edits are requested from the EDT, nor rejects,
+ *  which would lose them. Growing past maxWeight, a sign of the edit thread having fallen far behind, is merely
+ *  counted & logged.
+ *
+ *  Edits are only ever moved later in the queue, never earlier, so only edits that commute with anything they might
+ *  be moved past should agree to be combined.
+ */
+class QuadTreeEditQueue extends AbstractQueue<Runnable> implements BlockingQueue<Runnable> {
+    /** An edit able to take part in coalescing - other Runnables are simply queued */
+    interface Edit extends Runnable {
+        /** @return an edit with the effect of performing this followed by `newer`, null if there is none */
+        Edit coalesce(Edit newer);
+
+        /** @return whether this edit makes those preceding it irrelevant */
+        boolean supersedesPredecessors();
+
+        /** @return an indication of the memory this edit occupies, in whatever units the queue's limit is set in */
+        int weight();
+    }
+
+    private final int maxWeight;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = this.lock.newCondition();
+    // all guarded by lock
+    private final ArrayDeque<Runnable> deque = new ArrayDeque<>();
+    private int weight;
+    private long coalescedCount;
+    private long supersededCount;
+    private long overflowCount;
+
+    QuadTreeEditQueue(int maxWeight_) {
+        this.maxWeight = maxWeight_;
+    }
+
+    private static int weightOf(Runnable runnable) {
+        return runnable instanceof Edit ? ((Edit) runnable).weight() : 1;
+    }
+
+    /** Never fails or blocks, see class doc */
+    @Override
+    public boolean offer(Runnable runnable) {
+        if (runnable == null) {
+            throw new NullPointerException();
+        }
+        this.lock.lock();
+        try {
+            final boolean wasOver = this.weight > this.maxWeight;
+            Runnable queued = runnable;
+            if (queued instanceof Edit && ((Edit) queued).supersedesPredecessors()) {
+                this.supersededCount += this.deque.size();
+                this.deque.clear();
+                this.weight = 0;
+            } else if (queued instanceof Edit) {
+                for (Iterator<Runnable> it = this.deque.iterator(); it.hasNext();) {
+                    final Runnable older = it.next();
+                    final Edit coalesced = older instanceof Edit ? ((Edit) older).coalesce((Edit) queued) : null;
+                    if (coalesced != null) {
+                        it.remove();
+                        this.weight -= weightOf(older);
+                        this.coalescedCount++;
+                        queued = coalesced;
+                        break;
+                    }
+                }
+            }
+            this.deque.addLast(queued);
+            this.weight += weightOf(queued);
+            if (!wasOver && this.weight > this.maxWeight) {
+                this.overflowCount++;
+                Logging.warn("MarkSeen edits falling behind, queue weight now " + this.weight);
+            }
+            this.notEmpty.signal();
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public void put(Runnable runnable) {
+        this.offer(runnable);
+    }
+
+    @Override
+    public boolean offer(Runnable runnable, long timeout, TimeUnit unit) {
+        return this.offer(runnable);
+    }
+
+    /** Must be called holding lock */
+    private Runnable dequeue() {
+        final Runnable runnable = this.deque.pollFirst();
+        if (runnable != null) {
+            this.weight -= weightOf(runnable);
+        }
+        return runnable;
+    }
+
+    @Override
+    public Runnable take() throws InterruptedException {
+        this.lock.lockInterruptibly();
+        try {
+            while (this.deque.isEmpty()) {
+                this.notEmpty.await();
+            }
+            return this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        this.lock.lockInterruptibly();
+        try {
+            while (this.deque.isEmpty()) {
+                if (nanos <= 0) {
+                    return null;
+                }
+                nanos = this.notEmpty.awaitNanos(nanos);
+            }
+            return this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable poll() {
+        this.lock.lock();
+        try {
+            return this.dequeue();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public Runnable peek() {
+        this.lock.lock();
+        try {
+            return this.deque.peekFirst();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        this.lock.lock();
+        try {
+            if (!this.deque.removeFirstOccurrence(o)) {
+                return false;
+            }
+            this.weight -= weightOf((Runnable) o);
+            return true;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int size() {
+        this.lock.lock();
+        try {
+            return this.deque.size();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int remainingCapacity() {
+        // logically unbounded
+        return Integer.MAX_VALUE;
+    }
+
+    /** Iterates over a snapshot of the queue's contents, so doesn't support removal */
+    @Override
+    public Iterator<Runnable> iterator() {
+        this.lock.lock();
+        try {
+            return Collections.unmodifiableList(new ArrayList<>(this.deque)).iterator();
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c) {
+        return this.drainTo(c, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public int drainTo(Collection<? super Runnable> c, int maxElements) {
+        this.lock.lock();
+        try {
+            int count = 0;
+            while (count < maxElements && !this.deque.isEmpty()) {
+                c.add(this.dequeue());
+                count++;
+            }
+            return count;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Number of edits combined into a newer one */
+    long getCoalescedCount() {
+        this.lock.lock();
+        try {
+            return this.coalescedCount;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Number of edits dropped for having been superseded */
+    long getSupersededCount() {
+        this.lock.lock();
+        try {
+            return this.supersededCount;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Total weight of the edits queued */
+    int getWeight() {
+        this.lock.lock();
+        try {
+            return this.weight;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    /** Number of times the queue has grown past maxWeight */
+    long getOverflowCount() {
+        this.lock.lock();
+        try {
+            return this.overflowCount;
+        } finally {
+            this.lock.unlock();
+        }
+    }
+
+    @Override
+    public String toString() {
+        this.lock.lock();
+        try {
+            return String.format(
+                "QuadTreeEditQueue[size=%d, weight=%d, coalesced=%d, superseded=%d, overflows=%d]",
+                this.deque.size(),
+                this.weight,
+                this.coalescedCount,
+                this.supersededCount,
+                this.overflowCount
+            );
+        } finally {
+            this.lock.unlock();
+        }
+    }
+}
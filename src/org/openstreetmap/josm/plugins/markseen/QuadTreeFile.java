@@ -0,0 +1,361 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ *  Reads & writes the canonical contents of a quadtree in a compact binary file, allowing recorded coverage to
+ *  survive a restart.
+ *
+ *  Layout, all big-endian:
+ *   - header: magic, format version, tile size, offset & length of the node records
+ *   - mask blocks: each either a mask's words uncompressed, aligned to a page, or deflated, unaligned
+ *   - node records, in pre-order with children in z-order - i.e. Morton order - each a tag byte: TAG_SPLIT for nodes
+ *     above the canonical level (followed by their four children's records), TAG_EMPTY or TAG_FULL for canonical
+ *     nodes with a constant mask, or TAG_RAW/TAG_DEFLATED for canonical nodes with a mask of their own, followed by
+ *     its cardinality and its block's offset & length. Nodes below the canonical level aren't stored - their masks
+ *     can always be derived again.
+ *
+ *  Reading maps the file and reconstructs just the node topology, each canonical mask being created in its cold form
+ *  referring directly to its block in the mapping. No mask data is read until the mask is first thawed, so loading
+ *  takes time proportional to the number of nodes rather than the amount of data recorded.
+ *
+ *  As a mapped file can't be replaced on every platform, a quadtree saving itself over & over writes successive
+ *  generations of its file - siblings with the generation number appended, generation 0 being the file itself - and
+ *  only loads the latest. Older generations are deleted once superseded, unless still mapped, in which case a later
+ *  save has another go.
+ */
+final class QuadTreeFile {
+    private static final int MAGIC = 0x4d535154;  // "MSQT"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 24;
+    private static final int PAGE_BYTES = 4096;
+
+    private static final byte TAG_SPLIT = 0;
+    private static final byte TAG_EMPTY = 1;
+    private static final byte TAG_FULL = 2;
+    private static final byte TAG_RAW = 3;
+    private static final byte TAG_DEFLATED = 4;
+
+    /** Matches the file name of any generation, capturing the generation number - if any */
+    private static final Pattern GENERATION_SUFFIX = Pattern.compile("(?:\\.(\\d{1,18}))?");
+
+    /** Writes the node records of a quadtree, writing any mask blocks to `channel` */
+    private interface RecordsWriter {
+        void write(DataOutputStream records, FileChannel channel) throws IOException;
+    }
+
+    private QuadTreeFile() {
+        // no instances
+    }
+
+    /**
+     *  Writes the canonical contents of the quadtree stored in `pool` to `path`, via a temporary file atomically
+     *  moved into place so an interrupted write never leaves a truncated file behind. The quadtree mustn't be modified
+     *  meanwhile.
+     */
+    static void write(
+        QuadTreeNodePool pool,
+        int tileSize,
+        QuadTreeMask emptyMask,
+        QuadTreeMask fullMask,
+        Path path
+    ) throws IOException {
+        write(
+            tileSize,
+            path,
+            (records, channel) -> writeNode(pool, QuadTreeNodePool.ROOT, emptyMask, fullMask, records, channel)
+        );
+    }
+
+    /** As write(pool, ...), but writing a version of a persistent quadtree, which needs no lock */
+    static void write(
+        QuadTreeSnapshot.Node root,
+        int tileSize,
+        QuadTreeMask emptyMask,
+        QuadTreeMask fullMask,
+        Path path
+    ) throws IOException {
+        write(tileSize, path, (records, channel) -> writeNode(root, emptyMask, fullMask, records, channel));
+    }
+
+    /**
+     *  As write(root, ...), but writing the next generation of `path`, after which older generations are deleted where
+     *  possible
+     */
+    static void writeGeneration(
+        QuadTreeSnapshot.Node root,
+        int tileSize,
+        QuadTreeMask emptyMask,
+        QuadTreeMask fullMask,
+        Path path
+    ) throws IOException {
+        final long generation = latestGeneration(path) + 1;
+        write(root, tileSize, emptyMask, fullMask, generationPath(path, generation));
+
+        try (DirectoryStream<Path> siblings = Files.newDirectoryStream(path.toAbsolutePath().getParent())) {
+            for (Path sibling : siblings) {
+                final long siblingGeneration = parseGeneration(path, sibling);
+                if (siblingGeneration >= 0 && siblingGeneration < generation) {
+                    try {
+                        Files.deleteIfExists(sibling);
+                    } catch (IOException e) {
+                        Logging.debug("QuadTreeFile leaving superseded " + sibling + " for now: " + e);
+                    }
+                }
+            }
+        }
+    }
+
+    /** The path of generation `generation` of `path` */
+    static Path generationPath(Path path, long generation) {
+        return generation == 0 ? path : path.resolveSibling(path.getFileName() + "." + generation);
+    }
+
+    /** The latest generation of `path` there is, -1 if none */
+    static long latestGeneration(Path path) throws IOException {
+        final Path parent = path.toAbsolutePath().getParent();
+        long latest = -1;
+        if (!Files.isDirectory(parent)) {
+            return latest;
+        }
+        try (DirectoryStream<Path> siblings = Files.newDirectoryStream(parent)) {
+            for (Path sibling : siblings) {
+                latest = Math.max(latest, parseGeneration(path, sibling));
+            }
+        }
+        return latest;
+    }
+
+    /** The generation of `path` that `sibling` is, -1 if it isn't one */
+    private static long parseGeneration(Path path, Path sibling) {
+        final String name = path.getFileName().toString();
+        final String siblingName = sibling.getFileName().toString();
+        if (!siblingName.startsWith(name)) {
+            return -1;
+        }
+        final Matcher matcher = GENERATION_SUFFIX.matcher(siblingName.substring(name.length()));
+        if (!matcher.matches()) {
+            return -1;
+        }
+        return matcher.group(1) != null ? Long.parseLong(matcher.group(1)) : 0;
+    }
+
+    private static void write(int tileSize, Path path, RecordsWriter recordsWriter) throws IOException {
+        final Path tempPath = path.resolveSibling(path.getFileName() + ".tmp");
+        final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        try (FileChannel channel = FileChannel.open(
+            tempPath,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING,
+            StandardOpenOption.WRITE
+        )) {
+            channel.position(HEADER_BYTES);
+            recordsWriter.write(new DataOutputStream(recordBytes), channel);
+
+            final long recordsOffset = channel.position();
+            writeFully(channel, ByteBuffer.wrap(recordBytes.toByteArray()));
+
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(VERSION).putInt(tileSize).putLong(recordsOffset).putInt(recordBytes.size());
+            header.flip();
+            channel.position(0);
+            writeFully(channel, header);
+            channel.force(false);
+        }
+        Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeNode(
+        QuadTreeNodePool pool,
+        int node,
+        QuadTreeMask emptyMask,
+        QuadTreeMask fullMask,
+        DataOutputStream records,
+        FileChannel channel
+    ) throws IOException {
+        final QuadTreeMask canonicalMask = pool.getCanonicalMask(node);
+        if (canonicalMask == null) {
+            records.writeByte(TAG_SPLIT);
+            for (int i = 0; i < 4; i++) {
+                writeNode(pool, pool.getChild(node, i), emptyMask, fullMask, records, channel);
+            }
+        } else {
+            writeCanonicalNode(canonicalMask, emptyMask, fullMask, records, channel);
+        }
+    }
+
+    private static void writeNode(
+        QuadTreeSnapshot.Node node,
+        QuadTreeMask emptyMask,
+        QuadTreeMask fullMask,
+        DataOutputStream records,
+        FileChannel channel
+    ) throws IOException {
+        if (node.children != null) {
+            records.writeByte(TAG_SPLIT);
+            for (QuadTreeSnapshot.Node child : node.children) {
+                writeNode(child, emptyMask, fullMask, records, channel);
+            }
+        } else {
+            writeCanonicalNode(node.mask, emptyMask, fullMask, records, channel);
+        }
+    }
+
+    private static void writeCanonicalNode(
+        QuadTreeMask canonicalMask,
+        QuadTreeMask emptyMask,
+        QuadTreeMask fullMask,
+        DataOutputStream records,
+        FileChannel channel
+    ) throws IOException {
+        if (canonicalMask == emptyMask || canonicalMask.isAllClear()) {
+            records.writeByte(TAG_EMPTY);
+        } else if (canonicalMask == fullMask || canonicalMask.isAllSet()) {
+            records.writeByte(TAG_FULL);
+        } else {
+            // a cold mask's deflated words can be written out as they are
+            ByteBuffer block = canonicalMask.getDeflatedBytes();
+            boolean deflated = block != null;
+            if (!deflated) {
+                final byte[] raw = canonicalMask.toRawBytes();
+                final byte[] deflatedRaw = QuadTreeMask.deflate(raw, raw.length / 2);
+                deflated = deflatedRaw != null;
+                block = ByteBuffer.wrap(deflated ? deflatedRaw : raw);
+            }
+            if (!deflated) {
+                // raw blocks are page-aligned, so that a mapping can hand them straight to the os's page cache
+                channel.position(((channel.position() + PAGE_BYTES - 1) / PAGE_BYTES) * PAGE_BYTES);
+            }
+            records.writeByte(deflated ? TAG_DEFLATED : TAG_RAW);
+            records.writeInt(canonicalMask.cardinality());
+            records.writeLong(channel.position());
+            records.writeInt(block.remaining());
+            writeFully(channel, block);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     *  Reads the file at `path` into the quadtree stored in `pool`, which must contain nothing but its root.
+     *
+     *  @return whether the file was read - false if it was written for a different tile size
+     */
+    static boolean read(
+        QuadTreeNodePool pool,
+        int tileSize,
+        QuadTreeMask emptyMask,
+        QuadTreeMask fullMask,
+        Path path
+    ) throws IOException {
+        assert pool.size() == 1;
+        final MappedByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Quadtree file too large to map: " + path);
+            }
+            // the mapping remains valid once the channel is closed
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (mapping.remaining() < HEADER_BYTES || mapping.getInt(0) != MAGIC) {
+            throw new IOException("Not a quadtree file: " + path);
+        }
+        if (mapping.getInt(4) != VERSION) {
+            throw new IOException("Unsupported quadtree file version " + mapping.getInt(4) + ": " + path);
+        }
+        if (mapping.getInt(8) != tileSize) {
+            return false;
+        }
+
+        final ByteBuffer records = slice(mapping, mapping.getLong(12), mapping.getInt(20));
+        // validating the whole file before building anything, so a corrupt file can't leave a half-built tree
+        final ByteBuffer validated = records.duplicate();
+        try {
+            readNode(null, QuadTreeNodePool.NONE, tileSize, emptyMask, fullMask, validated, mapping);
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Truncated node records in quadtree file: " + path, e);
+        }
+        if (validated.hasRemaining()) {
+            throw new IOException("Trailing node records in quadtree file: " + path);
+        }
+        readNode(pool, QuadTreeNodePool.ROOT, tileSize, emptyMask, fullMask, records, mapping);
+        return true;
+    }
+
+    /** Reads the records of `node` & its descendants, only validating them if `pool` is null */
+    private static void readNode(
+        QuadTreeNodePool pool,
+        int node,
+        int tileSize,
+        QuadTreeMask emptyMask,
+        QuadTreeMask fullMask,
+        ByteBuffer records,
+        ByteBuffer mapping
+    ) throws IOException {
+        final QuadTreeMask canonicalMask;
+        final byte tag = records.get();
+        switch (tag) {
+            case TAG_SPLIT:
+                if (pool != null) {
+                    pool.setCanonicalMask(node, null);
+                    pool.setMask(node, null);
+                }
+                for (int i = 0; i < 4; i++) {
+                    final int child = pool != null ? pool.allocate(node, i) : QuadTreeNodePool.NONE;
+                    readNode(pool, child, tileSize, emptyMask, fullMask, records, mapping);
+                }
+                return;
+            case TAG_EMPTY:
+                canonicalMask = emptyMask;
+                break;
+            case TAG_FULL:
+                canonicalMask = fullMask;
+                break;
+            case TAG_RAW:
+            case TAG_DEFLATED:
+                final int cardinality = records.getInt();
+                final ByteBuffer block = slice(mapping, records.getLong(), records.getInt());
+                if (cardinality <= 0 || cardinality >= tileSize * tileSize
+                    || (tag == TAG_RAW && block.remaining() != 8 * ((tileSize + 63) >>> 6) * tileSize)) {
+                    throw new IOException("Invalid mask block in quadtree file");
+                }
+                canonicalMask = QuadTreeMask.newFrozen(tileSize, cardinality, block, tag == TAG_DEFLATED);
+                break;
+            default:
+                throw new IOException("Unknown quadtree file node tag " + tag);
+        }
+        if (pool != null) {
+            pool.setCanonicalMask(node, canonicalMask);
+            pool.setMask(node, canonicalMask);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > buffer.capacity()) {
+            throw new IOException("Quadtree file block out of range");
+        }
+        final ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position((int) offset).limit((int) offset + length);
+        return duplicate.slice();
+    }
+}
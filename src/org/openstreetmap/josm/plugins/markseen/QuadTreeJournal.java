@@ -0,0 +1,314 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ *  An append-only journal of the edits made to a quadtree, allowing seen areas recorded since the last QuadTreeFile
+ *  snapshot to survive a crash.
+ *
+ *  Appending merely queues the encoded record, so never blocks the edit thread. A dedicated writer thread drains the
+ *  queue, writing whatever has accumulated in one go followed by a single fsync. A snapshot of the quadtree taken
+ *  along with a checkpoint() covers the records appended before it, and once it has been saved compact() queues the
+ *  removal of those records. Any appended since the checkpoint are copied to a fresh journal which then replaces the
+ *  old one, so that the journal can't keep growing however busy the edit thread is while saving.
+ *
+ *  Should writing fail, journaling stops for good, further records being dropped rather than queued.
+ *
+ *  Replaying a journal on top of a snapshot already containing some of its edits is harmless: marks are unions, so
+ *  can be repeated, and nothing preceding a clear matters.
+ *
+ *  Layout, all big-endian: magic & format version, then records, each an op byte followed by its arguments - the
+ *  bounds & minTilesAcross of a mark, nothing for a clear. A torn record at the end, left by a crash mid-write, is
+ *  ignored.
+ */
+class QuadTreeJournal {
+    /** Receives the edits read back from a journal */
+    interface Visitor {
+        /** Receives all the marks made with a given minTilesAcross at once, marks commuting with each other */
+        void markBoundsSeen(List<Bounds> bounds, double minTilesAcross);
+
+        void clear();
+    }
+
+    private static final int MAGIC = 0x4d53514a;  // "MSQJ"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 8;
+
+    private static final byte OP_MARK = 1;
+    private static final byte OP_CLEAR = 2;
+    private static final int MARK_BYTES = 1 + (5 * 8);
+
+    /** Queued in place of a record by checkpoint(), to have the writer note where the checkpoint falls in the file */
+    private static final class Checkpoint {
+        /** Number of records preceding it */
+        final long checkpoint;
+
+        Checkpoint(long checkpoint_) {
+            this.checkpoint = checkpoint_;
+        }
+    }
+
+    /** Queued in place of a record by compact() */
+    private static final class Truncation {
+        /** Number of records the saved snapshot covers */
+        final long checkpoint;
+
+        Truncation(long checkpoint_) {
+            this.checkpoint = checkpoint_;
+        }
+    }
+
+    // queued in place of records, compared by identity
+    private static final ByteBuffer CLOSE = ByteBuffer.allocate(0);
+
+    private final Path path;
+    /** Replaced on compaction, only accessed by the writer thread once started */
+    private FileChannel channel;
+    private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<>();
+    private final Thread writerThread;
+    /** Number of records appended, only accessed by whoever is appending - i.e. holding the quadtree's write-lock */
+    private long appendedCount;
+    /** File offsets of the checkpoints yet to be compacted, keyed by checkpoint. Only accessed by the writer thread */
+    private final TreeMap<Long, Long> checkpointOffsets = new TreeMap<>();
+    /** Set once the writer thread has given up */
+    private volatile boolean failed;
+
+    /** Opens the journal at `path`, creating it if necessary, first passing any edits it holds to `visitor` */
+    QuadTreeJournal(Path path_, Visitor visitor) throws IOException {
+        this.path = path_;
+        this.channel = FileChannel.open(
+            this.path,
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE
+        );
+        try {
+            final long end = this.replay(visitor);
+            // dropping any torn record, which would otherwise corrupt the records appended after it
+            this.channel.truncate(end);
+            this.channel.position(end);
+        } catch (IOException e) {
+            this.channel.close();
+            throw e;
+        }
+
+        this.writerThread = new Thread(this::writeLoop, "MarkSeen journal writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /** @return the offset just past the last complete record */
+    private long replay(Visitor visitor) throws IOException {
+        final long size = this.channel.size();
+        if (size < HEADER_BYTES) {
+            final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+            header.flip();
+            this.channel.truncate(0);
+            while (header.hasRemaining()) {
+                this.channel.write(header, header.position());
+            }
+            return HEADER_BYTES;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Journal too large: " + this.path);
+        }
+        final ByteBuffer contents = ByteBuffer.allocate((int) size);
+        while (contents.hasRemaining() && this.channel.read(contents, contents.position()) >= 0) {
+            // keep reading
+        }
+        contents.flip();
+        if (contents.getInt() != MAGIC || contents.getInt() != VERSION) {
+            throw new IOException("Not a journal of a supported version: " + this.path);
+        }
+
+        // only edits following the last clear matter, grouped by minTilesAcross
+        final Map<Double, List<Bounds>> marks = new LinkedHashMap<>();
+        boolean cleared = false;
+        long end = contents.position();
+        while (contents.hasRemaining()) {
+            final byte op = contents.get();
+            if (op == OP_CLEAR) {
+                marks.clear();
+                cleared = true;
+            } else if (op == OP_MARK && contents.remaining() >= MARK_BYTES - 1) {
+                final double minLat = contents.getDouble();
+                final double minLon = contents.getDouble();
+                final double maxLat = contents.getDouble();
+                final double maxLon = contents.getDouble();
+                marks.computeIfAbsent(contents.getDouble(), minTilesAcross -> new ArrayList<>())
+                    .add(new Bounds(minLat, minLon, maxLat, maxLon));
+            } else {
+                Logging.warn("MarkSeen ignoring torn or corrupt tail of journal " + this.path);
+                break;
+            }
+            end = contents.position();
+        }
+
+        if (cleared) {
+            visitor.clear();
+        }
+        for (Map.Entry<Double, List<Bounds>> entry : marks.entrySet()) {
+            visitor.markBoundsSeen(entry.getValue(), entry.getKey());
+        }
+        return end;
+    }
+
+    void appendMark(Bounds bounds, double minTilesAcross) {
+        if (this.failed) {
+            return;
+        }
+        final ByteBuffer record = ByteBuffer.allocate(MARK_BYTES);
+        record.put(OP_MARK)
+            .putDouble(bounds.getMinLat())
+            .putDouble(bounds.getMinLon())
+            .putDouble(bounds.getMaxLat())
+            .putDouble(bounds.getMaxLon())
+            .putDouble(minTilesAcross);
+        record.flip();
+        this.appendedCount++;
+        this.queue.add(record);
+    }
+
+    void appendClear() {
+        if (this.failed) {
+            return;
+        }
+        final ByteBuffer record = ByteBuffer.allocate(1).put(OP_CLEAR);
+        record.flip();
+        this.appendedCount++;
+        this.queue.add(record);
+    }
+
+    /**
+     *  Marks the records appended so far as those covered by a snapshot being taken, to be passed to compact() once it
+     *  has been saved. Like appending, to be called holding the quadtree's write-lock.
+     */
+    long checkpoint() {
+        if (!this.failed) {
+            this.queue.add(new Checkpoint(this.appendedCount));
+        }
+        return this.appendedCount;
+    }
+
+    /**
+     *  Discards all records appended before `checkpoint`, which the caller guarantees are covered by a snapshot that
+     *  has been durably saved. May be called from any thread.
+     */
+    void compact(long checkpoint) {
+        if (!this.failed) {
+            this.queue.add(new Truncation(checkpoint));
+        }
+    }
+
+    /** Whether journaling has stopped, writing having failed */
+    boolean hasFailed() {
+        return this.failed;
+    }
+
+    /** Writes out everything appended so far & stops the writer thread */
+    void close() throws InterruptedException {
+        this.queue.add(CLOSE);
+        this.writerThread.join();
+    }
+
+    private void writeLoop() {
+        final ArrayList<Object> batch = new ArrayList<>();
+        try {
+            while (true) {
+                batch.add(this.queue.take());
+                this.queue.drainTo(batch);
+                for (Object entry : batch) {
+                    if (entry == CLOSE) {
+                        this.channel.force(false);
+                        this.channel.close();
+                        return;
+                    } else if (entry instanceof Checkpoint) {
+                        this.checkpointOffsets.put(((Checkpoint) entry).checkpoint, this.channel.position());
+                    } else if (entry instanceof Truncation) {
+                        this.truncate(((Truncation) entry).checkpoint);
+                    } else {
+                        final ByteBuffer record = (ByteBuffer) entry;
+                        while (record.hasRemaining()) {
+                            this.channel.write(record);
+                        }
+                    }
+                }
+                // one fsync covers the whole batch
+                this.channel.force(false);
+                batch.clear();
+            }
+        } catch (IOException e) {
+            Logging.warn("MarkSeen journal writer failed, seen areas will no longer be journaled: " + e);
+            this.failed = true;
+            // anything queued meanwhile will never be written
+            this.queue.clear();
+            try {
+                this.channel.close();
+            } catch (IOException e2) {
+                Logging.debug("MarkSeen failed to close journal " + this.path + ": " + e2);
+            }
+        } catch (InterruptedException e) {
+            Logging.debug("MarkSeen journal writer interrupted");
+        }
+    }
+
+    /** Drops the records preceding `checkpoint`, by the writer thread */
+    private void truncate(long checkpoint) throws IOException {
+        final Long offset = this.checkpointOffsets.get(checkpoint);
+        if (offset == null) {
+            // already compacted past it
+            return;
+        }
+        this.checkpointOffsets.headMap(checkpoint, true).clear();
+        final long end = this.channel.position();
+        if (offset == end) {
+            this.channel.truncate(HEADER_BYTES);
+            this.channel.position(HEADER_BYTES);
+        } else {
+            // the records appended since the checkpoint have to be kept, so are copied to a fresh journal which is
+            // then swapped in. a crash at any point leaves one journal or the other intact.
+            final Path freshPath = this.path.resolveSibling(this.path.getFileName() + ".tmp");
+            try (FileChannel fresh = FileChannel.open(
+                freshPath,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.WRITE
+            )) {
+                final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).putInt(MAGIC).putInt(VERSION);
+                header.flip();
+                while (header.hasRemaining()) {
+                    fresh.write(header);
+                }
+                long copied = 0;
+                while (copied < end - offset) {
+                    copied += this.channel.transferTo(offset + copied, end - offset - copied, fresh);
+                }
+                fresh.force(false);
+            }
+            this.channel.close();
+            Files.move(freshPath, this.path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            this.channel = FileChannel.open(this.path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.channel.position(this.channel.size());
+        }
+        // the checkpoints still to come having moved along with everything else
+        for (Map.Entry<Long, Long> entry : this.checkpointOffsets.entrySet()) {
+            entry.setValue(entry.getValue() - offset + HEADER_BYTES);
+        }
+    }
+}
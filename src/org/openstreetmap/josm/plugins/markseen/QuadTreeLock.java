@@ -0,0 +1,94 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ *  The quadtree's ReentrantReadWriteLock, additionally supporting StampedLock-style optimistic reads: a reader can
+ *  take a stamp, read without locking anything and then validate the stamp, which fails should the write-lock have
+ *  been held by anyone at any point in between. Such a reader never contends with the lock's other users at all, but
+ *  must be prepared for whatever it read to be inconsistent - without side effects - until validated.
+ *
+ *  Implemented by having the outermost acquisition of the write-lock also take the write-lock of a StampedLock, which
+ *  nothing else ever locks, so that never blocks.
+ *
+ *  The lock is fair, so that the edit thread can give way to waiting readers by simply releasing & re-acquiring it.
+ */
+class QuadTreeLock extends ReentrantReadWriteLock {
+    private final class StampingWriteLock extends ReentrantReadWriteLock.WriteLock {
+        StampingWriteLock() {
+            super(QuadTreeLock.this);
+        }
+
+        /** To be called having just acquired the write-lock */
+        private void acquired() {
+            if (QuadTreeLock.this.getWriteHoldCount() == 1) {
+                QuadTreeLock.this.writeStamp = QuadTreeLock.this.stampedLock.writeLock();
+            }
+        }
+
+        @Override
+        public void lock() {
+            super.lock();
+            this.acquired();
+        }
+
+        @Override
+        public void lockInterruptibly() throws InterruptedException {
+            super.lockInterruptibly();
+            this.acquired();
+        }
+
+        @Override
+        public boolean tryLock() {
+            if (!super.tryLock()) {
+                return false;
+            }
+            this.acquired();
+            return true;
+        }
+
+        @Override
+        public boolean tryLock(long timeout, TimeUnit unit) throws InterruptedException {
+            if (!super.tryLock(timeout, unit)) {
+                return false;
+            }
+            this.acquired();
+            return true;
+        }
+
+        @Override
+        public void unlock() {
+            if (QuadTreeLock.this.isWriteLockedByCurrentThread() && QuadTreeLock.this.getWriteHoldCount() == 1) {
+                QuadTreeLock.this.stampedLock.unlockWrite(QuadTreeLock.this.writeStamp);
+            }
+            super.unlock();
+        }
+    }
+
+    private final StampedLock stampedLock = new StampedLock();
+    private final StampingWriteLock stampingWriteLock = new StampingWriteLock();
+    /** Only accessed by the holder of the write-lock */
+    private long writeStamp;
+
+    QuadTreeLock() {
+        super(true);
+    }
+
+    @Override
+    public ReentrantReadWriteLock.WriteLock writeLock() {
+        return this.stampingWriteLock;
+    }
+
+    /** @return a stamp for later validation, 0 if the write-lock is currently held */
+    long tryOptimisticRead() {
+        return this.stampedLock.tryOptimisticRead();
+    }
+
+    /** @return whether the write-lock has been free ever since `stamp` was issued - always false for a stamp of 0 */
+    boolean validate(long stamp) {
+        return this.stampedLock.validate(stamp);
+    }
+}
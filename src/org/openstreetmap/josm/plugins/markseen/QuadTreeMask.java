@@ -0,0 +1,1058 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ *  A square 1-bit mask with its rows packed into longs. Bits are stored most-significant-first so that a row of words
+ *  written out big-endian gives exactly the bytes of a TYPE_BYTE_BINARY raster. Padding bits at the end of each row
+ *  are always kept clear, which allows whole-word comparisons and counts without special-casing the last word.
+ *
+ *  A mask may alternatively be held in one of two sparse forms:
+ *   - rectangle-union form, an exact, normalised QuadTreeMaskBands. Masks made up of a handful of axis-aligned
+ *     rectangles - as most canonical masks are - take just tens of bytes this way and are compared almost for free.
+ *   - run-length form, each row stored as a sorted list of set runs, rows crossed by the same rectangles sharing a
+ *     single run array. Costs little more than its row table until the mask gets very fragmented.
+ *  fillRect keeps a mask in whichever form it is in, falling back from rectangle-union to run-length to dense form as
+ *  each stops paying off. compact() switches a mask to the most compact worthwhile form, and other writing operations
+ *  switch masks to the dense form first. All reading operations accept any form.
+ *
+ *  Finally a mask that is unlikely to be needed for a while can be freeze()d into a deflated cold form, optionally held
+ *  off-heap, which must be thaw()ed before anything other than its cardinality can be read.
+ */
+class QuadTreeMask {
+    private static final int[] EMPTY_ROW = QuadTreeMaskBands.NO_RUNS;
+
+    protected final int size;
+    protected final int rowWords;
+    /** Dense form, null while in a sparse form */
+    protected long[] words;
+    /**
+     *  Run-length form, null otherwise. Each row holds alternating start (inclusive) & end (exclusive) positions of
+     *  its set runs, sorted, non-overlapping and non-adjacent. Row arrays are never modified once built, so may be
+     *  shared between rows and masks.
+     */
+    private int[][] rows;
+    /** Rectangle-union form, null otherwise. Immutable, so may be shared between masks */
+    private QuadTreeMaskBands bands;
+    /**
+     *  Cold form, the dense form's words deflated, null otherwise. Either a heap buffer or, if frozen off-heap, a
+     *  direct one - a slice of a QuadTreeMaskSlabs slab - counting against neither the heap limit nor the gc's marking
+     *  work. A mask loaded from a QuadTreeFile starts out cold, with a slice of the mapped file as its buffer - which
+     *  holds its words uncompressed unless frozenDeflated.
+     */
+    private ByteBuffer frozen;
+    private boolean frozenDeflated;
+
+    private boolean inhibitWrites;
+    /** Whether made read-only by publish() rather than makeImmutable(), so still belonging to a single node */
+    private boolean published;
+    /**
+     *  Kept up to date by every modifying operation so that checks for the mask being entirely clear or entirely set
+     *  are constant-time
+     */
+    private int setBitCount;
+    /** Incremented on every modification, allows consumers to cheaply detect whether a derived rendering is stale */
+    private int version;
+
+    QuadTreeMask(int size_) {
+        this(size_, false);
+    }
+
+    private QuadTreeMask(int size_, boolean runLength) {
+        assert size_ > 0;
+        this.size = size_;
+        this.rowWords = (size_ + 63) >>> 6;
+        if (runLength) {
+            this.rows = new int[size_][];
+            Arrays.fill(this.rows, EMPTY_ROW);
+        } else {
+            this.words = new long[this.rowWords * size_];
+        }
+    }
+
+    /** Creates a clear mask starting out in rectangle-union form */
+    static QuadTreeMask newRectUnion(int size) {
+        QuadTreeMask mask = new QuadTreeMask(size, true);
+        mask.rows = null;
+        mask.bands = QuadTreeMaskBands.EMPTY;
+        return mask;
+    }
+
+    /**
+     *  Creates a clear mask starting out in run-length form - unless the mask is so small that even the overhead of
+     *  the run-length form's row table isn't worthwhile
+     */
+    static QuadTreeMask newRunLength(int size) {
+        QuadTreeMask mask = new QuadTreeMask(size, true);
+        if (mask.runLengthBytes() > mask.denseBytes() / 3) {
+            mask.toDense(false);
+        }
+        return mask;
+    }
+
+    /**
+     *  Creates a mask in the cold form, its (big-endian) words held in `block`, deflated if `deflated`. `block` must
+     *  remain unmodified for the lifetime of the mask.
+     */
+    static QuadTreeMask newFrozen(int size, int cardinality, ByteBuffer block, boolean deflated) {
+        QuadTreeMask mask = new QuadTreeMask(size, true);
+        mask.rows = null;
+        mask.frozen = block;
+        mask.frozenDeflated = deflated;
+        mask.setBitCount = cardinality;
+        return mask;
+    }
+
+    /** Creates a mask intended to be shared & constant - any attempt to write to it will throw */
+    static QuadTreeMask newConstant(int size, boolean value) {
+        QuadTreeMask mask = new QuadTreeMask(size);
+        mask.fill(value);
+        mask.inhibitWrites = true;
+        return mask;
+    }
+
+    /**
+     *  Makes the mask read-only from now on, like the constants, so that it may safely be shared - e.g. by a
+     *  QuadTreeMaskInterner. Anyone wanting to write to it must take a copy().
+     */
+    void makeImmutable() {
+        this.inhibitWrites = true;
+        this.published = false;
+    }
+
+    /**
+     *  Makes the mask read-only from now on so that readers may go on using it without holding any lock, though unlike
+     *  makeImmutable() it still belongs to its node alone. Its node replaces it with an altered copy rather than
+     *  altering it - see compactedCopy() & frozenCopy().
+     */
+    void publish() {
+        this.inhibitWrites = true;
+        this.published = true;
+    }
+
+    boolean isPublished() {
+        return this.published;
+    }
+
+    boolean isImmutable() {
+        return this.inhibitWrites;
+    }
+
+    private void checkWritable() {
+        if (this.inhibitWrites) {
+            throw new RuntimeException("Attempt to write to QuadTreeMask with inhibitWrites set");
+        }
+        assert this.frozen == null : "QuadTreeMask must be thawed before use";
+        this.version++;
+    }
+
+    int getVersion() {
+        return this.version;
+    }
+
+    boolean isDense() {
+        return this.words != null;
+    }
+
+    boolean isRunLength() {
+        return this.rows != null;
+    }
+
+    boolean isRectUnion() {
+        return this.bands != null;
+    }
+
+    boolean isCold() {
+        return this.frozen != null;
+    }
+
+    /** Runs of row `j` of a mask in either sparse form */
+    private int[] runsOfRow(int j) {
+        assert this.frozen == null : "QuadTreeMask must be thawed before use";
+        return this.rows != null ? this.rows[j] : this.bands.runsOfRow(j);
+    }
+
+    /** Switches to the dense form, which all writing operations other than fill & fillRect require */
+    private void toDense(boolean preserveContents) {
+        if (this.words != null) {
+            return;
+        }
+        assert this.frozen == null : "QuadTreeMask must be thawed before use";
+        final long[] words_ = new long[this.rowWords * this.size];
+        if (preserveContents) {
+            for (int j = 0; j < this.size; j++) {
+                rasterizeRuns(this.runsOfRow(j), words_, j * this.rowWords);
+            }
+        }
+        this.words = words_;
+        this.rows = null;
+        this.bands = null;
+    }
+
+    /** Switches from rectangle-union to run-length form, the rows of each band sharing its runs */
+    private void toRunLength() {
+        assert this.bands != null;
+        final int[][] rows_ = new int[this.size][];
+        for (int j = 0; j < this.size; j++) {
+            rows_[j] = this.bands.runsOfRow(j);
+        }
+        this.rows = rows_;
+        this.bands = null;
+    }
+
+    /** Footprint of the run-length form's row table alone */
+    private long rowTableBytes() {
+        return 16L + 4L * this.size;
+    }
+
+    /** Sets the bits of `row`'s runs in the (clear) row beginning at `rowOffset` in `dest` */
+    private static void rasterizeRuns(int[] row, long[] dest, int rowOffset) {
+        for (int i = 0; i < row.length; i += 2) {
+            final int xStart = row[i];
+            final int xEnd = row[i + 1];
+            final int wordStart = xStart >>> 6;
+            final int wordEnd = (xEnd - 1) >>> 6;
+            final long startMask = -1L >>> xStart;
+            final long endMask = -1L << (63 - ((xEnd - 1) & 63));
+            if (wordStart == wordEnd) {
+                dest[rowOffset + wordStart] |= startMask & endMask;
+            } else {
+                dest[rowOffset + wordStart] |= startMask;
+                Arrays.fill(dest, rowOffset + wordStart + 1, rowOffset + wordEnd, -1L);
+                dest[rowOffset + wordEnd] |= endMask;
+            }
+        }
+    }
+
+    /**
+     *  The words of row `j`: either this mask's own `words` (at offset j * rowWords) if dense or else `scratch` (at
+     *  offset 0) filled from the row's runs
+     */
+    private long[] rowWordsOf(int j, long[] scratch) {
+        if (this.words != null) {
+            return this.words;
+        }
+        Arrays.fill(scratch, 0, this.rowWords, 0L);
+        rasterizeRuns(this.runsOfRow(j), scratch, 0);
+        return scratch;
+    }
+
+    private int rowWordsOffset(int j) {
+        return this.words != null ? j * this.rowWords : 0;
+    }
+
+    private long denseBytes() {
+        return 16L + 8L * this.rowWords * this.size;
+    }
+
+    /** Approximate heap footprint of the run-length form, counting a row array shared with the row above only once */
+    private long runLengthBytes() {
+        long bytes = this.rowTableBytes();
+        for (int j = 0; j < this.size; j++) {
+            final int[] row = this.rows[j];
+            if (row.length != 0 && (j == 0 || row != this.rows[j - 1])) {
+                bytes += 16L + 4L * row.length;
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     *  Switches the mask to the most compact worthwhile form: rectangle-union if its bands would take less memory
+     *  than the run-length form's row table alone, else run-length if that would take at most a third of the memory
+     *  of the dense form - the hysteresis against fillRect's switch back at one half preventing a mask flip-flopping
+     *  between the two. A cold mask is left as it is. The contents are unchanged, so this doesn't count as a
+     *  modification.
+     *
+     *  @return whether the mask is now in a sparse (or the cold) form
+     */
+    boolean compact() {
+        if (this.bands != null || this.frozen != null) {
+            return true;
+        }
+        if (this.inhibitWrites) {
+            // the shared constants are better left alone
+            return false;
+        }
+
+        final int[][] rows_ = this.rows;
+        final QuadTreeMaskBands bands_ = QuadTreeMaskBands.fromRows(
+            rows_ != null ? (j -> rows_[j]) : this::encodeRow,
+            this.size,
+            this.rowTableBytes()
+        );
+        if (bands_ != null) {
+            this.bands = bands_;
+            this.rows = null;
+            this.words = null;
+            return true;
+        }
+        if (this.rows != null) {
+            return true;
+        }
+
+        final long budget = this.denseBytes() / 3;
+        long bytes = this.rowTableBytes();
+        if (bytes > budget) {
+            return false;
+        }
+        for (int j = 0; j < this.size; j++) {
+            if (j != 0 && this.rowEqualsPrevious(j)) {
+                continue;
+            }
+            final int runs = this.countRuns(j * this.rowWords);
+            if (runs != 0) {
+                bytes += 16L + 8L * runs;
+                if (bytes > budget) {
+                    return false;
+                }
+            }
+        }
+
+        final int[][] newRows = new int[this.size][];
+        for (int j = 0; j < this.size; j++) {
+            newRows[j] = j != 0 && this.rowEqualsPrevious(j) ? newRows[j - 1] : this.encodeRow(j);
+        }
+        this.rows = newRows;
+        this.words = null;
+        return true;
+    }
+
+    /**
+     *  For a published mask, which can't be compacted in place: a compacted copy, null if compact() wouldn't have
+     *  moved it to a sparser form
+     */
+    QuadTreeMask compactedCopy() {
+        if (this.bands != null || this.frozen != null) {
+            return null;
+        }
+        final QuadTreeMask copy_ = this.copy();
+        copy_.compact();
+        return copy_.bands != null || (this.words != null && copy_.rows != null) ? copy_ : null;
+    }
+
+    /** Footprint of the cold form, wherever it's held */
+    long frozenBytes() {
+        assert this.frozen != null;
+        return 16L + this.frozen.capacity();
+    }
+
+    /** Whether the cold form is held off-heap */
+    boolean isFrozenOffHeap() {
+        return this.frozen != null && this.frozen.isDirect();
+    }
+
+    boolean freeze() {
+        return this.freeze(false);
+    }
+
+    /**
+     *  Deflates the mask into the cold form - provided that would take at most half the memory of its current form.
+     *  The shared constants and rectangle-union masks, which take next to nothing already, are left alone. The
+     *  contents are unchanged, so this doesn't count as a modification.
+     *
+     *  @param offHeap  Whether to hold the cold form in a direct buffer, outside the java heap
+     *  @return whether the mask is now in the cold form
+     */
+    boolean freeze(boolean offHeap) {
+        if (this.frozen != null) {
+            return true;
+        }
+        if (this.inhibitWrites || this.bands != null) {
+            return false;
+        }
+
+        final long currentBytes = this.words != null ? this.denseBytes() : this.runLengthBytes();
+        // any longer and it wouldn't be worth keeping
+        final byte[] deflated = deflate(this.toRawBytes(), (int) Math.max(0L, (currentBytes / 2) - 16L));
+        if (deflated == null) {
+            return false;
+        }
+
+        this.frozen = offHeap ? QuadTreeMaskSlabs.allocate(deflated.length) : ByteBuffer.wrap(deflated);
+        if (offHeap) {
+            this.frozen.put(deflated).flip();
+        }
+        this.frozenDeflated = true;
+        this.words = null;
+        this.rows = null;
+        return true;
+    }
+
+    /** For a published mask, which can't be frozen in place: a frozen copy, null if freeze() would have declined */
+    QuadTreeMask frozenCopy(boolean offHeap) {
+        if (this.frozen != null || this.bands != null) {
+            return null;
+        }
+        final QuadTreeMask copy_ = this.copy();
+        return copy_.freeze(offHeap) ? copy_ : null;
+    }
+
+    /** For a cold mask: a copy sharing its cold form, whose buffer is never modified - so costing next to nothing */
+    QuadTreeMask coldCopy() {
+        assert this.frozen != null;
+        return newFrozen(this.size, this.setBitCount, this.frozen.duplicate(), this.frozenDeflated);
+    }
+
+    /**
+     *  The mask's words written out big-endian, so the rows of a TYPE_BYTE_BINARY raster - which deflate rather well.
+     *  Accepts a mask in any form, including the cold form.
+     */
+    byte[] toRawBytes() {
+        final ByteBuffer raw = ByteBuffer.allocate(8 * this.rowWords * this.size);
+        if (this.frozen != null) {
+            raw.asLongBuffer().put(this.inflateWords());
+            return raw.array();
+        }
+        final long[] scratch = new long[this.rowWords];
+        for (int j = 0; j < this.size; j++) {
+            final long[] rowWords_ = this.rowWordsOf(j, scratch);
+            final int offset = this.rowWordsOffset(j);
+            for (int w = 0; w < this.rowWords; w++) {
+                raw.putLong(rowWords_[offset + w]);
+            }
+        }
+        return raw.array();
+    }
+
+    /** The cold form's buffer, should it hold deflated words, else null */
+    ByteBuffer getDeflatedBytes() {
+        return this.frozen != null && this.frozenDeflated ? this.frozen.duplicate() : null;
+    }
+
+    /** @return `raw` deflated, or null if that would take more than `maxLength` bytes */
+    static byte[] deflate(byte[] raw, int maxLength) {
+        final byte[] buffer = new byte[Math.min(maxLength, raw.length)];
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        int length = 0;
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            while (!deflater.finished() && length < buffer.length) {
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+        } finally {
+            deflater.end();
+        }
+        return Arrays.copyOf(buffer, length);
+    }
+
+    /** Inflates the cold form's words */
+    private long[] inflateWords() {
+        final long[] words_ = new long[this.rowWords * this.size];
+        if (!this.frozenDeflated) {
+            this.frozen.duplicate().asLongBuffer().get(words_);
+            return words_;
+        }
+        final byte[] raw = new byte[8 * this.rowWords * this.size];
+        final Inflater inflater = new Inflater();
+        try {
+            // inflating consumes its input buffer
+            inflater.setInput(this.frozen.duplicate());
+            int length = 0;
+            while (!inflater.finished()) {
+                final int inflated = inflater.inflate(raw, length, raw.length - length);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IllegalStateException("Truncated cold QuadTreeMask");
+                }
+                length += inflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt cold QuadTreeMask", e);
+        } finally {
+            inflater.end();
+        }
+        ByteBuffer.wrap(raw).asLongBuffer().get(words_);
+        return words_;
+    }
+
+    /**
+     *  Restores a cold mask to the most compact worthwhile of its other forms. Like freeze(), doesn't count as a
+     *  modification.
+     */
+    void thaw() {
+        if (this.frozen == null) {
+            return;
+        }
+        this.words = this.inflateWords();
+        this.frozen = null;
+        this.compact();
+    }
+
+    /** Whether (dense) row `j` is identical to the one above it */
+    private boolean rowEqualsPrevious(int j) {
+        final int rowOffset = j * this.rowWords;
+        return Arrays.equals(
+            this.words, rowOffset - this.rowWords, rowOffset, this.words, rowOffset, rowOffset + this.rowWords
+        );
+    }
+
+    /** The runs of (dense) row `j` */
+    private int[] encodeRow(int j) {
+        final int rowOffset = j * this.rowWords;
+        final int runCount = this.countRuns(rowOffset);
+        if (runCount == 0) {
+            return EMPTY_ROW;
+        }
+        final int[] row = new int[2 * runCount];
+        int i = 0;
+        int runStart = this.nextBit(rowOffset, 0, this.size, true);
+        while (runStart < this.size) {
+            final int runEnd = this.nextBit(rowOffset, runStart, this.size, false);
+            row[i++] = runStart;
+            row[i++] = runEnd;
+            runStart = this.nextBit(rowOffset, runEnd, this.size, true);
+        }
+        return row;
+    }
+
+    /** Number of runs of set bits in the (dense) row beginning at word `rowOffset` */
+    private int countRuns(int rowOffset) {
+        int runs = 0;
+        long previousLsb = 0;
+        for (int w = 0; w < this.rowWords; w++) {
+            final long word = this.words[rowOffset + w];
+            // run starts are set bits whose left neighbour (the previous word's lsb for the first) is clear
+            runs += Long.bitCount(word & ~((word >>> 1) | (previousLsb << 63)));
+            previousLsb = word & 1;
+        }
+        return runs;
+    }
+
+    /** Sets `bits` in the word at `index`, accounting for any which weren't already set */
+    private void orWord(int index, long bits) {
+        final long old = this.words[index];
+        this.words[index] = old | bits;
+        this.setBitCount += Long.bitCount(bits & ~old);
+    }
+
+    private int countBits() {
+        if (this.bands != null) {
+            return this.bands.cardinality();
+        }
+        if (this.rows != null) {
+            int count = 0;
+            for (int j = 0; j < this.size; j++) {
+                count += QuadTreeMaskBands.runsLength(this.rows[j]);
+            }
+            return count;
+        }
+        int count = 0;
+        for (int i = 0; i < this.words.length; i++) {
+            count += Long.bitCount(this.words[i]);
+        }
+        return count;
+    }
+
+    /** The valid bits of the last word in each row */
+    private long lastWordMask() {
+        return (this.size & 63) == 0 ? -1L : -1L << (64 - (this.size & 63));
+    }
+
+    private void checkCompatible(QuadTreeMask other) {
+        if (other.size != this.size) {
+            throw new IllegalArgumentException("QuadTreeMask size mismatch: " + other.size + " vs " + this.size);
+        }
+    }
+
+    public QuadTreeMask copy() {
+        assert this.frozen == null : "QuadTreeMask must be thawed before use";
+        QuadTreeMask copy_ = new QuadTreeMask(this.size, this.words == null);
+        if (this.bands != null) {
+            copy_.rows = null;
+            copy_.bands = this.bands;
+        } else if (this.rows != null) {
+            // row arrays are immutable, so can simply be shared
+            System.arraycopy(this.rows, 0, copy_.rows, 0, this.size);
+        } else {
+            System.arraycopy(this.words, 0, copy_.words, 0, this.words.length);
+        }
+        copy_.setBitCount = this.setBitCount;
+        return copy_;
+    }
+
+    /** Sets all bits to `value`, retaining the mask's current form */
+    public void fill(boolean value) {
+        this.checkWritable();
+        if (this.bands != null) {
+            this.bands = value ? QuadTreeMaskBands.full(this.size) : QuadTreeMaskBands.EMPTY;
+            this.setBitCount = value ? this.size * this.size : 0;
+        } else if (this.rows != null) {
+            Arrays.fill(this.rows, value ? new int[] {0, this.size} : EMPTY_ROW);
+            this.setBitCount = value ? this.size * this.size : 0;
+        } else if (value) {
+            Arrays.fill(this.words, -1L);
+            long last = this.lastWordMask();
+            for (int i = this.rowWords - 1; i < this.words.length; i += this.rowWords) {
+                this.words[i] = last;
+            }
+            this.setBitCount = this.size * this.size;
+        } else {
+            Arrays.fill(this.words, 0L);
+            this.setBitCount = 0;
+        }
+    }
+
+    public void or(QuadTreeMask other) {
+        this.checkCompatible(other);
+        this.checkWritable();
+        this.toDense(true);
+        if (other.words == null) {
+            for (int j = 0; j < this.size; j++) {
+                final int[] row = other.runsOfRow(j);
+                for (int i = 0; i < row.length; i += 2) {
+                    this.setRowSpan(j * this.rowWords, row[i], row[i + 1]);
+                }
+            }
+            return;
+        }
+        for (int i = 0; i < this.words.length; i++) {
+            this.orWord(i, other.words[i]);
+        }
+    }
+
+    public void and(QuadTreeMask other) {
+        this.checkCompatible(other);
+        this.checkWritable();
+        this.toDense(true);
+        final long[] scratch = new long[this.rowWords];
+        for (int j = 0; j < this.size; j++) {
+            final long[] otherWords = other.rowWordsOf(j, scratch);
+            final int otherOffset = other.rowWordsOffset(j);
+            for (int w = 0; w < this.rowWords; w++) {
+                this.words[(j * this.rowWords) + w] &= otherWords[otherOffset + w];
+            }
+        }
+        this.setBitCount = this.countBits();
+    }
+
+    public boolean contentEquals(QuadTreeMask other) {
+        if (other.size != this.size || other.setBitCount != this.setBitCount) {
+            return false;
+        }
+        if (this.words != null && other.words != null) {
+            return Arrays.equals(this.words, other.words);
+        }
+        if (this.bands != null && other.bands != null) {
+            return this.bands.contentEquals(other.bands);
+        }
+        final long[] scratch = new long[this.rowWords];
+        final long[] otherScratch = new long[this.rowWords];
+        for (int j = 0; j < this.size; j++) {
+            if (this.words == null && other.words == null && this.runsOfRow(j) == other.runsOfRow(j)) {
+                continue;
+            }
+            final int offset = this.rowWordsOffset(j);
+            final int otherOffset = other.rowWordsOffset(j);
+            if (!Arrays.equals(
+                this.rowWordsOf(j, scratch),
+                offset,
+                offset + this.rowWords,
+                other.rowWordsOf(j, otherScratch),
+                otherOffset,
+                otherOffset + this.rowWords
+            )) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *  A hash of the mask's contents, which like contentEquals is independent of the form the mask is in. Costs a pass
+     *  over every row.
+     */
+    int contentHash() {
+        assert this.frozen == null : "QuadTreeMask must be thawed before use";
+        final long[] scratch = new long[this.rowWords];
+        long hash = this.size;
+        for (int j = 0; j < this.size; j++) {
+            final long[] rowWords_ = this.rowWordsOf(j, scratch);
+            final int offset = this.rowWordsOffset(j);
+            for (int w = 0; w < this.rowWords; w++) {
+                hash = (31L * hash) + rowWords_[offset + w];
+            }
+        }
+        return Long.hashCode(hash);
+    }
+
+    /** Number of set bits in the mask */
+    public int cardinality() {
+        return this.setBitCount;
+    }
+
+    public boolean isAllClear() {
+        return this.setBitCount == 0;
+    }
+
+    public boolean isAllSet() {
+        return this.setBitCount == this.size * this.size;
+    }
+
+    /** Verifies the tracked set-bit count against the actual contents - expensive, intended for integrity checks */
+    boolean checkCardinality() {
+        if (this.frozen != null) {
+            int count = 0;
+            for (long word : this.inflateWords()) {
+                count += Long.bitCount(word);
+            }
+            return this.setBitCount == count;
+        }
+        return this.setBitCount == this.countBits();
+    }
+
+    public boolean get(int x, int y) {
+        if (this.words == null) {
+            final int[] row = this.runsOfRow(y);
+            for (int i = 0; i < row.length && row[i] <= x; i += 2) {
+                if (x < row[i + 1]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        return (this.words[(y * this.rowWords) + (x >>> 6)] & (Long.MIN_VALUE >>> x)) != 0;
+    }
+
+    public void set(int x, int y) {
+        this.checkWritable();
+        this.toDense(true);
+        this.orWord((y * this.rowWords) + (x >>> 6), Long.MIN_VALUE >>> x);
+    }
+
+    /**
+     *  Sets all bits of the given rectangle, clipped to the bounds of the mask. Produces the same result as a
+     *  Graphics2D.fill of the equivalent integer Rectangle, but writes each row's span directly as whole words. In
+     *  the sparse forms the rect is instead merged into the bands or each row's runs, falling back to run-length form
+     *  should the bands outgrow its row table and to dense form should the runs grow to take more than half its
+     *  memory.
+     */
+    public void fillRect(int x, int y, int width, int height) {
+        this.checkWritable();
+        // long arithmetic guards against overflow for far off-mask rects
+        final int xStart = Math.max(x, 0);
+        final int xEnd = (int) Math.min((long) x + width, this.size);
+        final int yStart = Math.max(y, 0);
+        final int yEnd = (int) Math.min((long) y + height, this.size);
+        if (xStart >= xEnd || yStart >= yEnd) {
+            return;
+        }
+
+        if (this.bands != null) {
+            this.bands = this.bands.withRect(xStart, xEnd, yStart, yEnd);
+            this.setBitCount = this.bands.cardinality();
+            if (this.bands.bytes() <= this.rowTableBytes()) {
+                return;
+            }
+            this.toRunLength();
+        } else if (this.rows != null) {
+            // runs of rows sharing an array will share the result too
+            int[] previousRow = null;
+            int[] previousResult = null;
+            int previousAdded = 0;
+            for (int j = yStart; j < yEnd; j++) {
+                final int[] row = this.rows[j];
+                if (row != previousRow) {
+                    previousRow = row;
+                    previousResult = QuadTreeMaskBands.unionRun(row, xStart, xEnd);
+                    previousAdded = previousResult == row ? 0
+                        : QuadTreeMaskBands.runsLength(previousResult) - QuadTreeMaskBands.runsLength(row);
+                }
+                this.rows[j] = previousResult;
+                this.setBitCount += previousAdded;
+            }
+        }
+        if (this.rows != null) {
+            if (this.runLengthBytes() > this.denseBytes() / 2) {
+                this.toDense(true);
+            }
+            return;
+        }
+
+        for (int j = yStart; j < yEnd; j++) {
+            this.setRowSpan(j * this.rowWords, xStart, xEnd);
+        }
+    }
+
+    /** Sets bits xStart (inclusive) to xEnd (exclusive) of the row beginning at word `rowOffset` */
+    private void setRowSpan(int rowOffset, int xStart, int xEnd) {
+        assert 0 <= xStart && xStart < xEnd && xEnd <= this.size;
+        final int wordStart = xStart >>> 6;
+        final int wordEnd = (xEnd - 1) >>> 6;
+        // bits from xStart onwards in the first word and bits up to & including xEnd-1 in the last word
+        final long startMask = -1L >>> xStart;
+        final long endMask = -1L << (63 - ((xEnd - 1) & 63));
+
+        if (wordStart == wordEnd) {
+            this.orWord(rowOffset + wordStart, startMask & endMask);
+        } else {
+            this.orWord(rowOffset + wordStart, startMask);
+            for (int w = wordStart + 1; w < wordEnd; w++) {
+                this.orWord(rowOffset + w, -1L);
+            }
+            this.orWord(rowOffset + wordEnd, endMask);
+        }
+    }
+
+    /**
+     *  Index of the first bit at or after `x` in the row beginning at word `rowOffset` which has the given `value`, or
+     *  `limit` if there is none before it
+     */
+    private int nextBit(int rowOffset, int x, int limit, boolean value) {
+        assert this.words != null;
+        while (x < limit) {
+            final long word = value ? this.words[rowOffset + (x >>> 6)] : ~this.words[rowOffset + (x >>> 6)];
+            final long remaining = word & (-1L >>> x);
+            if (remaining != 0) {
+                return Math.min((x & ~63) + Long.numberOfLeadingZeros(remaining), limit);
+            }
+            x = (x & ~63) + 64;
+        }
+        return limit;
+    }
+
+    /**
+     *  Overwrites this mask with the region of `src` covering the descendant tile `depth` levels below it at quadrant
+     *  position (`qx`, `qy`), each source bit being replicated into a 2^depth square. Gives the same result as a
+     *  nearest-neighbour drawTransformed onto a cleared mask, but works in spans of set source bits (taken directly
+     *  from the runs of a sparse `src`) and copies rows which repeat the previous one.
+     */
+    public void drawUpscaled(QuadTreeMask src, int qx, int qy, int depth) {
+        assert 0 < depth && depth < 31;
+        assert 0 <= qx && qx < (1 << depth) && 0 <= qy && qy < (1 << depth);
+        this.checkCompatible(src);
+        this.checkWritable();
+        this.toDense(false);
+
+        // position of this mask's origin in src's coordinates, scaled up by 2^depth
+        final long originX = (long) this.size * qx;
+        final long originY = (long) this.size * qy;
+        final int srcXStart = (int) (originX >>> depth);
+        final int srcXEnd = (int) ((originX + this.size - 1) >>> depth) + 1;
+
+        // every row gets overwritten
+        this.setBitCount = 0;
+        int prevSrcY = -1;
+        int prevRowBitCount = 0;
+        for (int j = 0; j < this.size; j++) {
+            final int rowOffset = j * this.rowWords;
+            final int srcY = (int) ((originY + j) >>> depth);
+            if (srcY == prevSrcY) {
+                System.arraycopy(this.words, rowOffset - this.rowWords, this.words, rowOffset, this.rowWords);
+                this.setBitCount += prevRowBitCount;
+                continue;
+            }
+            prevSrcY = srcY;
+            Arrays.fill(this.words, rowOffset, rowOffset + this.rowWords, 0L);
+            final int setBitCountBefore = this.setBitCount;
+
+            if (src.words == null) {
+                final int[] srcRow = src.runsOfRow(srcY);
+                for (int i = 0; i < srcRow.length; i += 2) {
+                    final int runStart = Math.max(srcRow[i], srcXStart);
+                    final int runEnd = Math.min(srcRow[i + 1], srcXEnd);
+                    if (runStart < runEnd) {
+                        this.setUpscaledRowSpan(rowOffset, runStart, runEnd, depth, originX);
+                    }
+                }
+            } else {
+                final int srcRowOffset = srcY * src.rowWords;
+                int runStart = src.nextBit(srcRowOffset, srcXStart, srcXEnd, true);
+                while (runStart < srcXEnd) {
+                    final int runEnd = src.nextBit(srcRowOffset, runStart, srcXEnd, false);
+                    this.setUpscaledRowSpan(rowOffset, runStart, runEnd, depth, originX);
+                    runStart = src.nextBit(srcRowOffset, runEnd, srcXEnd, true);
+                }
+            }
+            prevRowBitCount = this.setBitCount - setBitCountBefore;
+        }
+    }
+
+    /** Sets the span of the row beginning at `rowOffset` covered by the source run `runStart` to `runEnd` */
+    private void setUpscaledRowSpan(int rowOffset, int runStart, int runEnd, int depth, long originX) {
+        this.setRowSpan(
+            rowOffset,
+            (int) Math.max(((long) runStart << depth) - originX, 0),
+            (int) Math.min(((long) runEnd << depth) - originX, this.size)
+        );
+    }
+
+    /**
+     *  Sets the bits of this mask which, under nearest-neighbour sampling, map to set bits of `src` drawn with
+     *  `transform`. Matches the results of a Graphics2D.drawImage of equivalent BufferedImages: clear bits of `src` are
+     *  treated as transparent and leave the corresponding bits of this mask untouched.
+     *
+     *  @param transform must consist only of scaling & translation
+     */
+    public void drawTransformed(QuadTreeMask src, AffineTransform transform) {
+        assert (transform.getType() & ~(AffineTransform.TYPE_TRANSLATION | AffineTransform.TYPE_MASK_SCALE)) == 0;
+        this.checkWritable();
+        this.toDense(true);
+        double scaleX = transform.getScaleX();
+        double scaleY = transform.getScaleY();
+        double translateX = transform.getTranslateX();
+        double translateY = transform.getTranslateY();
+
+        for (int j = 0; j < this.size; j++) {
+            int srcY = (int) Math.floor((j + 0.5 - translateY) / scaleY);
+            if (srcY < 0 || srcY >= src.size) {
+                continue;
+            }
+            for (int i = 0; i < this.size; i++) {
+                int srcX = (int) Math.floor((i + 0.5 - translateX) / scaleX);
+                if (srcX >= 0 && srcX < src.size && src.get(srcX, srcY)) {
+                    this.orWord((j * this.rowWords) + (i >>> 6), Long.MIN_VALUE >>> i);
+                }
+            }
+        }
+    }
+
+    /**
+     *  Combines the horizontally adjacent bit pairs of two vertically adjacent row words into one bit per 2x2 block,
+     *  set if at least `threshold` of the block's four bits are set. The results are returned packed into the low 32
+     *  bits, still most-significant-first.
+     */
+    private static long reduceWordPair(long upper, long lower, int threshold) {
+        // each block's "left" bit ends up in the odd (counting from the lsb) bit positions
+        long r;
+        switch (threshold) {
+            case 1: {
+                long v = upper | lower;
+                r = v | (v << 1);
+                break;
+            }
+            case 2:
+            case 3: {
+                // per column, s is set if exactly one bit is set, c if both are
+                long s = upper ^ lower;
+                long c = upper & lower;
+                if (threshold == 2) {
+                    r = c | (c << 1) | (s & (s << 1));
+                } else {
+                    r = (c & (c << 1)) | ((c | (c << 1)) & (s | (s << 1)));
+                }
+                break;
+            }
+            default: {
+                long v = upper & lower;
+                r = v & (v << 1);
+            }
+        }
+        // compact the odd bits into the low half
+        r = (r >>> 1) & 0x5555555555555555L;
+        r = (r | (r >>> 1)) & 0x3333333333333333L;
+        r = (r | (r >>> 2)) & 0x0F0F0F0F0F0F0F0FL;
+        r = (r | (r >>> 4)) & 0x00FF00FF00FF00FFL;
+        r = (r | (r >>> 8)) & 0x0000FFFF0000FFFFL;
+        r = (r | (r >>> 16)) & 0x00000000FFFFFFFFL;
+        return r;
+    }
+
+    /**
+     *  Draws `src` at half scale into quadrant `quadrant` (z-order, x-minor) of this mask, setting each bit whose 2x2
+     *  source block has at least `threshold` (1-4) bits set. Bits are only ever set, never cleared.
+     *
+     *  For odd-sized masks, whose quadrants don't fall on whole pixels, this falls back to nearest-neighbour sampling.
+     */
+    public void drawReduced(QuadTreeMask src, int quadrant, int threshold) {
+        this.checkCompatible(src);
+        assert threshold >= 1 && threshold <= 4;
+        if ((this.size & 1) != 0) {
+            AffineTransform transform = AffineTransform.getScaleInstance(0.5, 0.5);
+            transform.translate((quadrant & 1) != 0 ? this.size : 0, (quadrant & (1 << 1)) != 0 ? this.size : 0);
+            this.drawTransformed(src, transform);
+            return;
+        }
+        this.checkWritable();
+        this.toDense(true);
+
+        final int half = this.size >>> 1;
+        final int offsetX = (quadrant & 1) != 0 ? half : 0;
+        final int offsetY = (quadrant & (1 << 1)) != 0 ? half : 0;
+
+        // a sparse src has each pair of rows rasterized into scratch space in turn
+        final long[] scratch = src.words == null ? new long[2 * src.rowWords] : null;
+        for (int j = 0; j < half; j++) {
+            final long[] srcWords;
+            final int srcOffset;
+            if (src.words == null) {
+                final int[] upperRuns = src.runsOfRow(2 * j);
+                final int[] lowerRuns = src.runsOfRow((2 * j) + 1);
+                if (upperRuns.length == 0 && lowerRuns.length == 0) {
+                    continue;
+                }
+                Arrays.fill(scratch, 0L);
+                rasterizeRuns(upperRuns, scratch, 0);
+                rasterizeRuns(lowerRuns, scratch, src.rowWords);
+                srcWords = scratch;
+                srcOffset = 0;
+            } else {
+                srcWords = src.words;
+                srcOffset = 2 * j * src.rowWords;
+            }
+            final int rowOffset = (offsetY + j) * this.rowWords;
+            for (int w = 0; w < src.rowWords; w++) {
+                final long reduced = reduceWordPair(
+                    srcWords[srcOffset + w],
+                    srcWords[srcOffset + src.rowWords + w],
+                    threshold
+                );
+                if (reduced == 0) {
+                    continue;
+                }
+                // reduced is non-zero, so this chunk must lie at least partly within the row
+                final int x = offsetX + (w << 5);
+                final int bitOffset = x & 63;
+                final int wordIndex = rowOffset + (x >>> 6);
+                if (bitOffset <= 32) {
+                    this.orWord(wordIndex, reduced << (32 - bitOffset));
+                } else {
+                    this.orWord(wordIndex, reduced >>> (bitOffset - 32));
+                    final long spill = reduced << (96 - bitOffset);
+                    if (spill != 0) {
+                        this.orWord(wordIndex + 1, spill);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     *  Renders this mask to a TYPE_BYTE_BINARY BufferedImage using `colorModel`, reusing `target`'s raster if it is
+     *  non-null and compatible
+     */
+    public BufferedImage toBufferedImage(IndexColorModel colorModel, BufferedImage target) {
+        if (target == null || target.getColorModel() != colorModel
+            || target.getWidth() != this.size || target.getHeight() != this.size) {
+            target = new BufferedImage(this.size, this.size, BufferedImage.TYPE_BYTE_BINARY, colorModel);
+        }
+        byte[] bytes = ((DataBufferByte) target.getRaster().getDataBuffer()).getData();
+        int rowBytes = (this.size + 7) >>> 3;
+        long[] scratch = this.words == null ? new long[this.rowWords] : null;
+        for (int j = 0; j < this.size; j++) {
+            int byteOffset = j * rowBytes;
+            if (this.words == null && j != 0 && this.runsOfRow(j) == this.runsOfRow(j - 1)) {
+                System.arraycopy(bytes, byteOffset - rowBytes, bytes, byteOffset, rowBytes);
+                continue;
+            }
+            long[] rowWords_ = this.rowWordsOf(j, scratch);
+            int wordOffset = this.rowWordsOffset(j);
+            for (int b = 0; b < rowBytes; b++) {
+                bytes[byteOffset + b] = (byte) (rowWords_[wordOffset + (b >>> 3)] >>> (56 - ((b & 7) << 3)));
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,220 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.util.Arrays;
+
+/**
+ *  An immutable, exact representation of a union of axis-aligned rectangles as a list of horizontal bands, each a
+ *  range of rows sharing the same set runs. Bands are kept sorted, non-overlapping and free of runs-less bands, and
+ *  vertically adjacent bands with equal runs are always merged, so any given set of bits has exactly one
+ *  representation and equality checks are simple comparisons of the bands.
+ *
+ *  Runs are in the same format as a QuadTreeMask's run-length rows - alternating start (inclusive) & end (exclusive)
+ *  positions, sorted, non-overlapping and non-adjacent.
+ */
+final class QuadTreeMaskBands {
+    static final int[] NO_RUNS = new int[0];
+    static final QuadTreeMaskBands EMPTY = new QuadTreeMaskBands(new int[0], new int[0][]);
+
+    /** Band i covers rows bounds[2*i] (inclusive) to bounds[2*i + 1] (exclusive) */
+    private final int[] bounds;
+    private final int[][] runs;
+
+    private QuadTreeMaskBands(int[] bounds_, int[][] runs_) {
+        this.bounds = bounds_;
+        this.runs = runs_;
+    }
+
+    static QuadTreeMaskBands full(int size) {
+        return new QuadTreeMaskBands(new int[] {0, size}, new int[][] {{0, size}});
+    }
+
+    int getBandCount() {
+        return this.runs.length;
+    }
+
+    /** Runs of row `y`, NO_RUNS if it lies in no band. The same array is returned for all rows of a band */
+    int[] runsOfRow(int y) {
+        int low = 0;
+        int high = this.runs.length - 1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (y < this.bounds[2 * mid]) {
+                high = mid - 1;
+            } else if (y >= this.bounds[(2 * mid) + 1]) {
+                low = mid + 1;
+            } else {
+                return this.runs[mid];
+            }
+        }
+        return NO_RUNS;
+    }
+
+    static int runsLength(int[] runs_) {
+        int length = 0;
+        for (int i = 0; i < runs_.length; i += 2) {
+            length += runs_[i + 1] - runs_[i];
+        }
+        return length;
+    }
+
+    int cardinality() {
+        int count = 0;
+        for (int i = 0; i < this.runs.length; i++) {
+            count += (this.bounds[(2 * i) + 1] - this.bounds[2 * i]) * runsLength(this.runs[i]);
+        }
+        return count;
+    }
+
+    /** Approximate heap footprint */
+    long bytes() {
+        long bytes = 48L + 4L * (this.bounds.length + this.runs.length);
+        for (int[] runs_ : this.runs) {
+            bytes += 16L + 4L * runs_.length;
+        }
+        return bytes;
+    }
+
+    /**
+     *  The union of `runs_` with the run `start` to `end`, returning `runs_` itself if it already covers it. Any runs
+     *  overlapping or adjacent to the new run are merged into it.
+     */
+    static int[] unionRun(int[] runs_, int start, int end) {
+        int i = 0;
+        while (i < runs_.length && runs_[i + 1] < start) {
+            i += 2;
+        }
+        int k = i;
+        int mergedStart = start;
+        int mergedEnd = end;
+        while (k < runs_.length && runs_[k] <= end) {
+            mergedStart = Math.min(mergedStart, runs_[k]);
+            mergedEnd = Math.max(mergedEnd, runs_[k + 1]);
+            k += 2;
+        }
+        if (k - i == 2 && runs_[i] == mergedStart && runs_[i + 1] == mergedEnd) {
+            return runs_;
+        }
+        final int[] result = new int[runs_.length - (k - i) + 2];
+        System.arraycopy(runs_, 0, result, 0, i);
+        result[i] = mergedStart;
+        result[i + 1] = mergedEnd;
+        System.arraycopy(runs_, k, result, i + 2, runs_.length - k);
+        return result;
+    }
+
+    /** Accumulates bands in order, merging each with the last where possible */
+    private static final class Builder {
+        private int[] bounds;
+        private int[][] runs;
+        private int count;
+
+        Builder(int capacity) {
+            this.bounds = new int[2 * capacity];
+            this.runs = new int[capacity][];
+        }
+
+        void add(int yStart, int yEnd, int[] runs_) {
+            if (yStart >= yEnd || runs_.length == 0) {
+                return;
+            }
+            if (this.count != 0 && this.bounds[(2 * this.count) - 1] == yStart
+                && Arrays.equals(this.runs[this.count - 1], runs_)) {
+                this.bounds[(2 * this.count) - 1] = yEnd;
+                return;
+            }
+            if (this.count == this.runs.length) {
+                this.bounds = Arrays.copyOf(this.bounds, 4 * this.count + 2);
+                this.runs = Arrays.copyOf(this.runs, 2 * this.count + 1);
+            }
+            this.bounds[2 * this.count] = yStart;
+            this.bounds[(2 * this.count) + 1] = yEnd;
+            this.runs[this.count++] = runs_;
+        }
+
+        QuadTreeMaskBands build() {
+            if (this.count == 0) {
+                return EMPTY;
+            }
+            return new QuadTreeMaskBands(
+                Arrays.copyOf(this.bounds, 2 * this.count),
+                Arrays.copyOf(this.runs, this.count)
+            );
+        }
+    }
+
+    /**
+     *  The union of these bands with the rectangle spanning columns `xStart` to `xEnd` and rows `yStart` to `yEnd`
+     *  (exclusive), in a single sweep down the existing bands, splitting those the rectangle's top & bottom edges
+     *  cross.
+     */
+    QuadTreeMaskBands withRect(int xStart, int xEnd, int yStart, int yEnd) {
+        assert xStart < xEnd && yStart < yEnd;
+        final int[] rectRuns = {xStart, xEnd};
+        // each band can be split in up to three, with up to one gap between each to fill
+        final Builder builder = new Builder((4 * this.runs.length) + 1);
+        boolean changed = false;
+        // the first row within the rect not yet covered
+        int gapY = yStart;
+        for (int i = 0; i < this.runs.length; i++) {
+            final int bandStart = this.bounds[2 * i];
+            final int bandEnd = this.bounds[(2 * i) + 1];
+            final int[] bandRuns = this.runs[i];
+            if (gapY < Math.min(bandStart, yEnd)) {
+                builder.add(gapY, Math.min(bandStart, yEnd), rectRuns);
+                changed = true;
+            }
+            builder.add(bandStart, Math.min(bandEnd, yStart), bandRuns);
+            if (Math.max(bandStart, yStart) < Math.min(bandEnd, yEnd)) {
+                final int[] unionRuns = unionRun(bandRuns, xStart, xEnd);
+                changed |= unionRuns != bandRuns;
+                builder.add(Math.max(bandStart, yStart), Math.min(bandEnd, yEnd), unionRuns);
+            }
+            builder.add(Math.max(bandStart, yEnd), bandEnd, bandRuns);
+            gapY = Math.max(gapY, bandEnd);
+        }
+        if (gapY < yEnd) {
+            builder.add(gapY, yEnd, rectRuns);
+            changed = true;
+        }
+        return changed ? builder.build() : this;
+    }
+
+    /**
+     *  Builds bands from a mask's rows, given the runs of each, returning null as soon as their footprint would exceed
+     *  `maxBytes`
+     */
+    static QuadTreeMaskBands fromRows(RowRuns rowRuns, int size, long maxBytes) {
+        final Builder builder = new Builder(8);
+        long bytes = 48L;
+        int bandStart = 0;
+        int[] bandRuns = rowRuns.get(0);
+        for (int j = 1; j <= size; j++) {
+            final int[] current = j < size ? rowRuns.get(j) : null;
+            if (current == null || !Arrays.equals(bandRuns, current)) {
+                if (bandRuns.length != 0) {
+                    builder.add(bandStart, j, bandRuns);
+                    bytes += 24L + 4L * bandRuns.length;
+                    if (bytes > maxBytes) {
+                        return null;
+                    }
+                }
+                bandStart = j;
+                bandRuns = current;
+            }
+        }
+        return builder.build();
+    }
+
+    /** Supplies the runs of each row of a mask being converted */
+    interface RowRuns {
+        int[] get(int y);
+    }
+
+    boolean contentEquals(QuadTreeMaskBands other) {
+        if (this == other) {
+            return true;
+        }
+        return Arrays.equals(this.bounds, other.bounds) && Arrays.deepEquals(this.runs, other.runs);
+    }
+}
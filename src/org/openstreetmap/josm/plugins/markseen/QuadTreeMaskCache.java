@@ -0,0 +1,196 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *  Bounds the memory held by a quadtree's derived (i.e. non-canonical) masks, evicting them using the "clock"
+ *  approximation of LRU once their total size exceeds a byte budget. Eviction simply drops the node's reference to
+ *  its mask, releasing it to a QuadTreeMaskRecycler and leaving it to be rebuilt from its ancestors or descendants
+ *  when next needed.
+ *
+ *  Only masks explicitly admitted are tracked - canonical masks, which hold the only copy of their information, must
+ *  never be admitted, nor need the shared constant masks be as they cost nothing.
+ *
+ *  admit/remove may only be called while holding the quadtree's write-lock, or its read-lock & the mask build monitor
+ *  of QuadTreeNode. touch & recordMiss may be called by concurrent readers holding the read-lock.
+ */
+class QuadTreeMaskCache {
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final QuadTreeNodePool pool;
+    private final QuadTreeMaskRecycler recycler;
+    private final long bytesPerMask;
+    /** Written by setBudgetBytesLazily from any thread */
+    private volatile long budgetBytes;
+
+    /** Handles of the nodes whose masks are tracked, in no particular order */
+    private int[] ring;
+    private int ringSize;
+    /** Clock hand, an index into ring */
+    private int hand;
+
+    // indexed by node handle
+    /** Position of node in ring, or -1 if its mask isn't tracked */
+    private int[] ringPositions;
+    /** The clock's "recently used" bits - written by readers without synchronization, which is harmless as the worst
+     *  that can happen is a lost hint */
+    private boolean[] referenced;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long evictions;
+
+    QuadTreeMaskCache(QuadTreeNodePool pool_, QuadTreeMaskRecycler recycler_, int maskSize, long budgetBytes_) {
+        this.pool = pool_;
+        this.recycler = recycler_;
+        // approximate - ignoring object headers, which are dwarfed by the words of any reasonably sized mask
+        this.bytesPerMask = 8L * ((maskSize + 63) >>> 6) * maskSize;
+        this.budgetBytes = budgetBytes_;
+        this.ring = new int[INITIAL_CAPACITY];
+        this.ringPositions = new int[INITIAL_CAPACITY];
+        Arrays.fill(this.ringPositions, -1);
+        this.referenced = new boolean[INITIAL_CAPACITY];
+    }
+
+    private boolean isTracked(int node) {
+        return node >= 0 && node < this.ringPositions.length && this.ringPositions[node] != -1;
+    }
+
+    private void ensureNodeCapacity(int node) {
+        if (node >= this.ringPositions.length) {
+            final int oldLength = this.ringPositions.length;
+            final int newLength = Math.max(node + 1, oldLength * 2);
+            this.ringPositions = Arrays.copyOf(this.ringPositions, newLength);
+            Arrays.fill(this.ringPositions, oldLength, newLength, -1);
+            this.referenced = Arrays.copyOf(this.referenced, newLength);
+        }
+    }
+
+    /**
+     *  Starts tracking node's current mask (if not already), evicting others as necessary to keep within budget. The
+     *  admitted mask itself is exempt from this round of eviction.
+     */
+    void admit(int node) {
+        assert this.pool.getCanonicalMask(node) == null;
+        assert this.pool.getMask(node) != null;
+        if (!this.isTracked(node)) {
+            this.ensureNodeCapacity(node);
+            if (this.ringSize == this.ring.length) {
+                this.ring = Arrays.copyOf(this.ring, this.ring.length * 2);
+            }
+            this.ringPositions[node] = this.ringSize;
+            this.ring[this.ringSize++] = node;
+        }
+        this.referenced[node] = true;
+        this.evictToBudget(node);
+    }
+
+    /** Stops tracking node's mask, e.g. because it has been dropped, replaced by a constant or become canonical */
+    void remove(int node) {
+        if (!this.isTracked(node)) {
+            return;
+        }
+        // move the last entry into the vacated position
+        final int position = this.ringPositions[node];
+        final int last = this.ring[--this.ringSize];
+        this.ring[position] = last;
+        this.ringPositions[last] = position;
+        this.ringPositions[node] = -1;
+        this.referenced[node] = false;
+    }
+
+    private void evictToBudget(int exemptNode) {
+        while (this.getUsedBytes() > this.budgetBytes && this.ringSize > (this.isTracked(exemptNode) ? 1 : 0)) {
+            if (this.hand >= this.ringSize) {
+                this.hand = 0;
+            }
+            final int node = this.ring[this.hand];
+            if (node == exemptNode) {
+                this.hand++;
+            } else if (this.referenced[node]) {
+                // second chance
+                this.referenced[node] = false;
+                this.hand++;
+            } else {
+                // remove() moves another entry into this position, so leave the hand where it is
+                this.remove(node);
+                this.recycler.release(node, this.pool.getMask(node));
+                this.pool.setMask(node, null);
+                this.evictions++;
+            }
+        }
+    }
+
+    /** Records a hit on node's mask, marking it as recently used if tracked */
+    void touch(int node) {
+        this.hits.increment();
+        if (this.isTracked(node)) {
+            this.referenced[node] = true;
+        }
+    }
+
+    void recordMiss() {
+        this.misses.increment();
+    }
+
+    long getUsedBytes() {
+        return this.ringSize * this.bytesPerMask;
+    }
+
+    /**
+     *  Whether another mask could be admitted without evicting anything. Readers may call this holding just the
+     *  read-lock, taking the answer as a hint.
+     */
+    boolean hasRoomForAnother() {
+        return this.getUsedBytes() + this.bytesPerMask <= this.budgetBytes;
+    }
+
+    long getBudgetBytes() {
+        return this.budgetBytes;
+    }
+
+    /** Changes the budget, evicting immediately if it has been reduced below current usage */
+    void setBudgetBytes(long budgetBytes_) {
+        this.budgetBytes = budgetBytes_;
+        this.evictToBudget(QuadTreeNodePool.NONE);
+    }
+
+    /**
+     *  Changes the budget without evicting anything yet, the cache shrinking to fit as further masks are admitted - so
+     *  may be called from any thread, holding no lock
+     */
+    void setBudgetBytesLazily(long budgetBytes_) {
+        this.budgetBytes = budgetBytes_;
+    }
+
+    int getEntryCount() {
+        return this.ringSize;
+    }
+
+    long getHitCount() {
+        return this.hits.sum();
+    }
+
+    long getMissCount() {
+        return this.misses.sum();
+    }
+
+    long getEvictionCount() {
+        return this.evictions;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "QuadTreeMaskCache[entries=%d, usedBytes=%d, budgetBytes=%d, hits=%d, misses=%d, evictions=%d]",
+            this.getEntryCount(),
+            this.getUsedBytes(),
+            this.budgetBytes,
+            this.getHitCount(),
+            this.getMissCount(),
+            this.evictions
+        );
+    }
+}
@@ -0,0 +1,119 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+/**
+ *  Keeps track of when each canonical mask of a quadtree was last accessed, allowing those of regions left unvisited
+ *  for long enough to be frozen into QuadTreeMask's compressed cold form. Canonical masks can't simply be dropped like
+ *  derived ones, being the only record of what has been seen, but a mask of a region the user worked in hours ago is
+ *  unlikely to be looked at again soon, and deflates to a fraction of its size. Optionally the cold masks can be held
+ *  off-heap, so that a large record of coverage stops counting against the heap limit JOSM was started with.
+ *
+ *  Accesses are timed to the second, which is plenty for idle times measured in minutes. touch() may be called by
+ *  readers holding just the quadtree's read-lock, everything else requires the write-lock.
+ */
+class QuadTreeMaskColdStore {
+    private final QuadTreeNodePool pool;
+    private final long epochNanos = System.nanoTime();
+
+    private long freezeCount;
+    private long thawCount;
+
+    QuadTreeMaskColdStore(QuadTreeNodePool pool_) {
+        this.pool = pool_;
+    }
+
+    /** Seconds since this store was created */
+    private int now() {
+        return (int) ((System.nanoTime() - this.epochNanos) / 1000000000L);
+    }
+
+    /** Records an access to `node`'s canonical mask */
+    void touch(int node) {
+        this.pool.setLastAccessed(node, this.now());
+    }
+
+    /** Thaws `node`'s canonical mask should it be cold, recording the access */
+    void thaw(int node) {
+        final QuadTreeMask canonicalMask = this.pool.getCanonicalMask(node);
+        if (canonicalMask.isCold()) {
+            canonicalMask.thaw();
+            this.thawCount++;
+        }
+        this.touch(node);
+    }
+
+    /**
+     *  Freezes `node`'s canonical mask if it hasn't been accessed for at least `minIdleMillis`, off-heap if `offHeap`
+     *
+     *  @return whether the mask was newly frozen
+     */
+    boolean freezeIfIdle(int node, long minIdleMillis, boolean offHeap) {
+        final QuadTreeMask canonicalMask = this.pool.getCanonicalMask(node);
+        if (canonicalMask == null || canonicalMask.isCold()) {
+            return false;
+        }
+        if (1000L * (this.now() - this.pool.getLastAccessed(node)) < minIdleMillis) {
+            return false;
+        }
+        if (canonicalMask.isPublished()) {
+            // readers may be holding on to it, so it's replaced by a frozen copy instead
+            final QuadTreeMask frozenMask = canonicalMask.frozenCopy(offHeap);
+            if (frozenMask == null) {
+                return false;
+            }
+            this.pool.setCanonicalMask(node, frozenMask);
+            this.pool.setMask(node, frozenMask);
+        } else if (!canonicalMask.freeze(offHeap)) {
+            return false;
+        }
+        this.freezeCount++;
+        return true;
+    }
+
+    /** Number of canonical masks currently cold - counted afresh, so not for use in anything hot */
+    int getColdCount() {
+        int count = 0;
+        for (int node = 0; node < this.pool.size(); node++) {
+            final QuadTreeMask canonicalMask = this.pool.getCanonicalMask(node);
+            if (canonicalMask != null && canonicalMask.isCold()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     *  Footprint of the canonical masks currently cold, either on or off the heap - counted afresh, so not for use in
+     *  anything hot
+     */
+    long getColdBytes(boolean offHeap) {
+        long bytes = 0;
+        for (int node = 0; node < this.pool.size(); node++) {
+            final QuadTreeMask canonicalMask = this.pool.getCanonicalMask(node);
+            if (canonicalMask != null && canonicalMask.isCold() && canonicalMask.isFrozenOffHeap() == offHeap) {
+                bytes += canonicalMask.frozenBytes();
+            }
+        }
+        return bytes;
+    }
+
+    long getFreezeCount() {
+        return this.freezeCount;
+    }
+
+    long getThawCount() {
+        return this.thawCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "QuadTreeMaskColdStore[cold=%d (%d bytes heap, %d bytes off-heap), frozen=%d, thawed=%d]",
+            this.getColdCount(),
+            this.getColdBytes(false),
+            this.getColdBytes(true),
+            this.freezeCount,
+            this.thawCount
+        );
+    }
+}
@@ -0,0 +1,85 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.util.HashMap;
+
+/**
+ *  A table of immutable masks keyed by their contents, allowing canonical masks with identical (but not uniform)
+ *  contents - as regular grids of marks tend to produce, e.g. the same edge repeated along a row of tiles - to share a
+ *  single instance the way uniform masks share FULL_MASK or EMPTY_MASK.
+ *
+ *  Interned masks are made immutable, so whoever next wants to draw into one must replace it with a copy of their
+ *  own. The table itself holds on to every mask it has seen, so is intended to be rebuilt by each optimize() pass
+ *  rather than kept - a pass visits every canonical mask anyway, including those already interned.
+ *
+ *  Like its quadtree's node pool, may only be used while holding the quadtree's write-lock.
+ */
+class QuadTreeMaskInterner {
+    /** Wraps a mask, giving it content-based equality */
+    private static final class Key {
+        private final QuadTreeMask mask;
+        private final int hash;
+
+        Key(QuadTreeMask mask_) {
+            this.mask = mask_;
+            this.hash = mask_.contentHash();
+        }
+
+        @Override
+        public int hashCode() {
+            return this.hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof Key && ((Key) other).hash == this.hash
+                && ((Key) other).mask.contentEquals(this.mask);
+        }
+    }
+
+    private final HashMap<Key, QuadTreeMask> table = new HashMap<>();
+
+    private long internedCount;
+    private long sharedCount;
+
+    /**
+     *  @return the interned mask with the same contents as `mask` - `mask` itself, now immutable, if there was none
+     *          yet
+     */
+    QuadTreeMask intern(QuadTreeMask mask) {
+        final QuadTreeMask existing = this.table.putIfAbsent(new Key(mask), mask);
+        if (existing != null) {
+            if (existing != mask) {
+                this.sharedCount++;
+            }
+            return existing;
+        }
+        mask.makeImmutable();
+        this.internedCount++;
+        return mask;
+    }
+
+    int size() {
+        return this.table.size();
+    }
+
+    /** Number of distinct masks interned */
+    long getInternedCount() {
+        return this.internedCount;
+    }
+
+    /** Number of times an identical, already interned mask has been found to share */
+    long getSharedCount() {
+        return this.sharedCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "QuadTreeMaskInterner[size=%d, interned=%d, shared=%d]",
+            this.table.size(),
+            this.internedCount,
+            this.sharedCount
+        );
+    }
+}
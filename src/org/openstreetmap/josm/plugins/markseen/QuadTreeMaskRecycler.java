@@ -0,0 +1,127 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ *  A capped free list of same-size mask buffers, allowing masks a quadtree drops (replaced by constants, evicted from
+ *  its mask cache, ...) to be reused for the next construction rather than left to the gc.
+ *
+ *  A dropped mask could well still be in use further up the stack of the operation dropping it - e.g. a mask evicted
+ *  while being redrawn, which its node will go on to re-adopt - so released masks are only held as pending until
+ *  recycle() is called at the end of each modifying operation, when any that have since been re-adopted by the node
+ *  they were released from are skipped. Each non-constant mask only ever belongs to a single node, so no other
+ *  references can remain. Masks handed out to readers are only valid while the reader holds the quadtree's lock, so
+ *  can't be affected.
+ *
+ *  Like its quadtree's node pool, may only be used while holding the quadtree's write-lock - except for acquire &
+ *  release, which readers building masks may call holding the read-lock & QuadTreeNode's mask build monitor. Masks
+ *  released meanwhile can't be reused before recycle(), so can't be pulled from under other readers.
+ */
+class QuadTreeMaskRecycler {
+    static final int DEFAULT_CAPACITY = 64;
+
+    private final QuadTreeNodePool pool;
+    private final int maskSize;
+    private final int capacity;
+
+    private final ArrayList<QuadTreeMask> pending = new ArrayList<>();
+    /** The node each pending mask was released from */
+    private int[] pendingNodes = new int[16];
+    private final ArrayDeque<QuadTreeMask> available = new ArrayDeque<>();
+
+    private long reusedCount;
+    private long allocatedCount;
+    private long discardedCount;
+
+    QuadTreeMaskRecycler(QuadTreeNodePool pool_, int maskSize_, int capacity_) {
+        this.pool = pool_;
+        this.maskSize = maskSize_;
+        this.capacity = capacity_;
+    }
+
+    /** @return a clear, writable mask, recycled if possible */
+    QuadTreeMask acquire() {
+        final QuadTreeMask mask = this.available.pollFirst();
+        if (mask == null) {
+            this.allocatedCount++;
+            return new QuadTreeMask(this.maskSize);
+        }
+        this.reusedCount++;
+        mask.fill(false);
+        return mask;
+    }
+
+    /** Offers a mask `node` has dropped, to be recycled at the next call of recycle() */
+    void release(int node, QuadTreeMask mask) {
+        assert mask.size == this.maskSize;
+        if (!mask.isDense()) {
+            // no buffer worth recycling
+            return;
+        }
+        if (mask.isImmutable()) {
+            // a published mask may still be in the hands of readers holding no lock
+            return;
+        }
+        if (this.pending.size() == this.pendingNodes.length) {
+            this.pendingNodes = Arrays.copyOf(this.pendingNodes, this.pendingNodes.length * 2);
+        }
+        this.pendingNodes[this.pending.size()] = node;
+        this.pending.add(mask);
+    }
+
+    /** Makes all released masks available for reuse, up to capacity, leaving the rest to the gc */
+    void recycle() {
+        if (this.pending.isEmpty()) {
+            return;
+        }
+        // a mask may have been released, re-adopted and released again
+        final Set<QuadTreeMask> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (int i = 0; i < this.pending.size(); i++) {
+            final QuadTreeMask mask = this.pending.get(i);
+            if (this.pool.getMask(this.pendingNodes[i]) == mask || !seen.add(mask)) {
+                // re-adopted since being released, or already dealt with
+                continue;
+            }
+            if (this.available.size() < this.capacity) {
+                this.available.addFirst(mask);
+            } else {
+                this.discardedCount++;
+            }
+        }
+        this.pending.clear();
+    }
+
+    int getAvailableCount() {
+        return this.available.size();
+    }
+
+    long getReusedCount() {
+        return this.reusedCount;
+    }
+
+    long getAllocatedCount() {
+        return this.allocatedCount;
+    }
+
+    long getDiscardedCount() {
+        return this.discardedCount;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(
+            "QuadTreeMaskRecycler[available=%d, capacity=%d, reused=%d, allocated=%d, discarded=%d]",
+            this.available.size(),
+            this.capacity,
+            this.reusedCount,
+            this.allocatedCount,
+            this.discardedCount
+        );
+    }
+}
@@ -0,0 +1,40 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.nio.ByteBuffer;
+
+/**
+ *  Hands out the direct buffers of off-heap cold masks as slices of large shared slabs, arena-style. A mask's cold form
+ *  is typically a few hundred bytes, for which a direct buffer of its own would cost a native allocation, a
+ *  page-aligned reservation & a Cleaner each - more than the bytes themselves.
+ *
+ *  Slices are never freed individually: each holds a reference to its slab, which the gc frees along with the last of
+ *  them. A slab left holding a single cold mask stays whole until that's thawed, which is the price of the arena - kept
+ *  modest by the slab size. Shared between every quadtree, so safe to use from any thread.
+ */
+final class QuadTreeMaskSlabs {
+    static final int SLAB_BYTES = 1 << 20;
+    /** Anything larger gets a buffer of its own rather than wasting the tail of a slab */
+    static final int MAX_SLICE_BYTES = SLAB_BYTES / 16;
+
+    /** The slab currently being carved up, its position marking the start of the free space */
+    private static ByteBuffer slab;
+
+    private QuadTreeMaskSlabs() {
+    }
+
+    /** A direct buffer of exactly `bytes` capacity, positioned at 0 */
+    static ByteBuffer allocate(int bytes) {
+        if (bytes > MAX_SLICE_BYTES) {
+            return ByteBuffer.allocateDirect(bytes);
+        }
+        synchronized (QuadTreeMaskSlabs.class) {
+            if (slab == null || slab.remaining() < bytes) {
+                slab = ByteBuffer.allocateDirect(SLAB_BYTES);
+            }
+            final int start = slab.position();
+            slab.position(start + bytes);
+            return slab.duplicate().position(start).limit(start + bytes).slice();
+        }
+    }
+}
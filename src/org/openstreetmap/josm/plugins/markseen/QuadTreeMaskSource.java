@@ -0,0 +1,39 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.awt.image.IndexColorModel;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.josm.data.Bounds;
+
+/**
+ *  What the minimap records seen areas into & reads its tiles' masks from - either a single QuadTreeMeta or a
+ *  QuadTreeShards.
+ */
+interface QuadTreeMaskSource {
+    /** A tile's way into the masks, to be kept for as long as the tile is, so as to hold on to whatever it's found */
+    interface TileReference {
+        /** As QuadTreeNodeDynamicReference.optimisticMaskReadOperation */
+        <R> R optimisticMaskReadOperation(BiFunction<QuadTreeMask, Integer, R> operation);
+
+        /** As QuadTreeNodeDynamicReference.maskReadOperation */
+        <R> R maskReadOperation(Function<QuadTreeMask, R> operation);
+    }
+
+    TileReference getTileReference(Tile tile);
+
+    /** The mask passed to readers of tiles with nothing seen in them, to be compared to by identity */
+    QuadTreeMask getEmptyMask();
+
+    IndexColorModel getMaskColorModel();
+
+    void addModifiedListener(QuadTreeMeta.QuadTreeModifiedListener modifiedListener);
+
+    void requestSeenBoundsMark(Bounds bounds, double minTilesAcross);
+
+    void requestClear();
+
+    void setMaxLockHoldMillis(int millis);
+}
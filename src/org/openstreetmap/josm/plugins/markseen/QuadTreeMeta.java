@@ -1,79 +1,62 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.markseen;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongFunction;
 
 import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
 import java.awt.image.IndexColorModel;
-import java.awt.image.WritableRaster;
 
+import org.openstreetmap.gui.jmapviewer.OsmMercator;
+import org.openstreetmap.gui.jmapviewer.Tile;
 import org.openstreetmap.josm.data.Bounds;
 import org.openstreetmap.josm.spi.preferences.Config;
 import org.openstreetmap.josm.tools.Logging;
 
-public class QuadTreeMeta {
-    // is there a better way to create a properly read-only BufferedImage? don't know. for now, all we want to be able
-    // to do is catch potential bugs where something attempts to write to a mask that is intended to be shared &
-    // constant
-    private static class WriteInhibitedBufferedImage extends BufferedImage {
-        private boolean inhibitWrites = false;
-
-        WriteInhibitedBufferedImage(int width, int height, int imageType, IndexColorModel cm, Color constColor) {
-            super(width, height, imageType, cm);
-            Graphics2D g = this.createGraphics();
-            g.setBackground(constColor);
-            g.clearRect(0, 0, width, height);
-            this.inhibitWrites = true;
-        }
-
-        @Override
-        public Graphics2D createGraphics() {
-            if (this.inhibitWrites) {
-                throw new RuntimeException("Attempt to draw to WriteInhibitedBufferedImage with inhibitWrites set");
-            } else {
-                return super.createGraphics();
-            }
-        }
-
-        @Override
-        public WritableRaster getWritableTile(int tileX, int tileY) {
-            if (this.inhibitWrites) {
-                throw new RuntimeException("Attempt to draw to WriteInhibitedBufferedImage with inhibitWrites set");
-            } else {
-                return super.getWritableTile(tileX, tileY);
-            }
-        }
-    }
-
+public class QuadTreeMeta implements QuadTreeMaskSource {
     private class QuadTreeEditExecutor extends ThreadPoolExecutor {
+        /** When the write-lock was last acquired, only accessed from the worker thread */
+        private long lockedSince;
+
         QuadTreeEditExecutor() {
-            super(1, 1, 5, java.util.concurrent.TimeUnit.MINUTES, new ArrayBlockingQueue<Runnable>(16));
+            super(1, 1, 5, java.util.concurrent.TimeUnit.MINUTES, new QuadTreeEditQueue(EDIT_QUEUE_MAX_BOUNDS));
+            // the lock is always released once the queue is empty, so the thread can safely go - not least for the
+            // sake of the many mostly idle shards of a QuadTreeShards
+            this.allowCoreThreadTimeOut(true);
         }
 
         @Override
         public void beforeExecute(Thread thread, Runnable runnable) {
             if (!QuadTreeMeta.this.quadTreeRWLock.isWriteLockedByCurrentThread()) {
                 QuadTreeMeta.this.quadTreeRWLock.writeLock().lock();
+                this.lockedSince = System.nanoTime();
             }
         }
 
         @Override
         public void afterExecute(Runnable runnable, Throwable throwable) {
-            if (this.getQueue().isEmpty()) {
+            // before the edit counts as complete, so that snapshots taken from then on include it
+            QuadTreeMeta.this.commitVersion();
+            // requests coalesced into this one, or superseded by it, are complete too
+            QuadTreeMeta.this.editCompletedCount = ((EditRequest) runnable).sequence;
+
+            if (this.getQueue().isEmpty() || (
+                QuadTreeMeta.this.quadTreeRWLock.hasQueuedThreads()
+                && System.nanoTime() - this.lockedSince >= QuadTreeMeta.this.maxLockHoldNanos
+            )) {
                 QuadTreeMeta.this.quadTreeRWLock.writeLock().unlock();
-                synchronized (QuadTreeMeta.this.modifiedListeners) {
-                    for (QuadTreeModifiedListener listener: QuadTreeMeta.this.modifiedListeners) {
-                        listener.quadTreeModified();
-                    }
-                }
+                QuadTreeMeta.this.notifyModified();
             }
             // else we will elide the lock re-acquisition to allow our worker thread to pick the next edit to make
             // immediately. the reason we do this is that any other threads that managed to acquire the write-lock
@@ -86,6 +69,9 @@ public class QuadTreeMeta {
             // a different thread which *didn't* have the write-lock. if that were the last Runnable in the queue it
             // would lose this thread its chance to release this lock (which it could only do by picking up another
             // Runnable and completing that)
+            //
+            // we do give way once we've held the lock for maxLockHoldNanos if anyone is waiting for it though, so a
+            // long run of edits can't keep the minimap from being painted indefinitely
         }
 
         @Override
@@ -105,23 +91,167 @@ public class QuadTreeMeta {
         }
     }
 
-    private class MarkBoundsSeenRequest implements Runnable {
-        private final Bounds bounds;
+    /** An edit request, numbered in the order requested */
+    private abstract static class EditRequest implements QuadTreeEditQueue.Edit {
+        protected final long sequence;
+
+        EditRequest(long sequence_) {
+            this.sequence = sequence_;
+        }
+
+        @Override
+        public QuadTreeEditQueue.Edit coalesce(QuadTreeEditQueue.Edit newer) {
+            return null;
+        }
+
+        @Override
+        public boolean supersedesPredecessors() {
+            return false;
+        }
+
+        @Override
+        public int weight() {
+            return 1;
+        }
+    }
+
+    private class MarkBoundsSeenRequest extends EditRequest {
+        private final List<Bounds> bounds;
         private final double minTilesAcross;
         private final boolean checkIntegrity;
+        /**
+         *  Each of bounds snapped as markBoundsSeen will draw it, 4 coordinates apiece followed by the zoom it's drawn
+         *  at - or all NaN should it be too thin to draw
+         */
+        private final double[] snapped;
+
+        MarkBoundsSeenRequest(long sequence_, List<Bounds> bounds_, double minTilesAcross_, boolean checkIntegrity_) {
+            this(sequence_, bounds_, minTilesAcross_, checkIntegrity_, null);
+        }
 
-        MarkBoundsSeenRequest(Bounds bounds_, double minTilesAcross_, boolean checkIntegrity_) {
+        private MarkBoundsSeenRequest(
+            long sequence_,
+            List<Bounds> bounds_,
+            double minTilesAcross_,
+            boolean checkIntegrity_,
+            double[] snapped_
+        ) {
+            super(sequence_);
             this.bounds = bounds_;
             this.minTilesAcross = minTilesAcross_;
             this.checkIntegrity = checkIntegrity_;
+            this.snapped = snapped_ != null ? snapped_ : this.snapAll();
+        }
+
+        private double[] snapAll() {
+            final OsmMercator merc = new OsmMercator(QuadTreeMeta.this.tileSize);
+            final double[] snapped_ = new double[5 * this.bounds.size()];
+            for (int i = 0; i < this.bounds.size(); i++) {
+                try {
+                    snapped_[(5*i) + 4] = QuadTreeNode.snapBounds(
+                        this.bounds.get(i),
+                        this.minTilesAcross,
+                        QuadTreeMeta.this.tileSize,
+                        merc,
+                        snapped_,
+                        5*i
+                    );
+                } catch (QuadTreeNode.ExtremeAspectRatioException e) {
+                    Arrays.fill(snapped_, 5*i, (5*i) + 5, Double.NaN);
+                }
+            }
+            return snapped_;
+        }
+
+        /**
+         *  Whether the `i`th snapped bounds of `a` draw nothing the `j`th of `b` don't - the latter's rect containing
+         *  the former's and being drawn at the same zoom or a coarser one, both rects lying on pixel boundaries of the
+         *  zooms they're drawn at
+         */
+        private boolean covers(double[] b, int j, double[] a, int i) {
+            // comparisons with NaN being false, bounds too thin to draw neither cover nor are covered
+            return b[5*j] <= a[5*i] && b[(5*j) + 1] <= a[(5*i) + 1]
+                && b[(5*j) + 2] >= a[(5*i) + 2] && b[(5*j) + 3] >= a[(5*i) + 3]
+                && b[(5*j) + 4] <= a[(5*i) + 4];
+        }
+
+        /**
+         *  Marks commute with each other, so any two with the same minTilesAcross can be applied as one batch. Bounds
+         *  covered by others of the batch - including a viewport re-marked without having moved - are dropped, so
+         *  panning back & forth over the same area doesn't grow the batch.
+         */
+        @Override
+        public QuadTreeEditQueue.Edit coalesce(QuadTreeEditQueue.Edit newer) {
+            if (!(newer instanceof MarkBoundsSeenRequest)) {
+                return null;
+            }
+            final MarkBoundsSeenRequest newerMark = (MarkBoundsSeenRequest) newer;
+            if (newerMark.minTilesAcross != this.minTilesAcross) {
+                return null;
+            }
+            final int count = this.bounds.size() + newerMark.bounds.size();
+            final ArrayList<Bounds> combined = new ArrayList<>(count);
+            final double[] combinedSnapped = new double[5 * count];
+            int kept = 0;
+            for (int k = 0; k < this.bounds.size(); k++) {
+                if (!newerMark.coversAny(this.snapped, k)) {
+                    combined.add(this.bounds.get(k));
+                    System.arraycopy(this.snapped, 5*k, combinedSnapped, 5*kept, 5);
+                    kept++;
+                }
+            }
+            for (int n = 0; n < newerMark.bounds.size(); n++) {
+                boolean covered = false;
+                for (int k = 0; k < kept && !covered; k++) {
+                    covered = this.covers(combinedSnapped, k, newerMark.snapped, n);
+                }
+                if (!covered) {
+                    combined.add(newerMark.bounds.get(n));
+                    System.arraycopy(newerMark.snapped, 5*n, combinedSnapped, 5*kept, 5);
+                    kept++;
+                }
+            }
+            return new MarkBoundsSeenRequest(
+                newerMark.sequence,
+                combined,
+                this.minTilesAcross,
+                this.checkIntegrity || newerMark.checkIntegrity,
+                Arrays.copyOf(combinedSnapped, 5*kept)
+            );
+        }
+
+        /** Whether any of this request's bounds covers the `i`th of those snapped as `a` */
+        private boolean coversAny(double[] a, int i) {
+            for (int j = 0; j < this.bounds.size(); j++) {
+                if (this.covers(this.snapped, j, a, i)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public int weight() {
+            return this.bounds.size();
         }
 
         @Override
         public void run() {
-            try {
-                QuadTreeMeta.this.quadTreeRoot.markBoundsSeen(this.bounds, this.minTilesAcross);
-            } catch (QuadTreeNode.ExtremeAspectRatioException e) {
-                Logging.warn(e.getMessage());
+            final int skipped = QuadTreeMeta.this.quadTreeRoot.markBoundsSeen(
+                this.bounds,
+                this.minTilesAcross,
+                QuadTreeMeta.this.maxLockHoldNanos
+            );
+            if (skipped != 0) {
+                Logging.warn(skipped + " of " + this.bounds.size()
+                    + " bounds skipped: proposed rect has such extreme aspect ratio that it would be zero-width");
+            }
+            final QuadTreeJournal journal_ = QuadTreeMeta.this.journal;
+            if (journal_ != null) {
+                // skipped bounds will just be skipped again on replay
+                for (Bounds b : this.bounds) {
+                    journal_.appendMark(b, this.minTilesAcross);
+                }
             }
             if (this.checkIntegrity) {
                 QuadTreeMeta.this.quadTreeRoot.checkIntegrity();
@@ -129,10 +259,23 @@ public class QuadTreeMeta {
         }
     }
 
-    private final class ClearRequest implements Runnable {
+    private final class ClearRequest extends EditRequest {
+        ClearRequest(long sequence_) {
+            super(sequence_);
+        }
+
+        @Override
+        public boolean supersedesPredecessors() {
+            return true;
+        }
+
         @Override
         public void run() {
             QuadTreeMeta.this.quadTreeRoot.clear();
+            final QuadTreeJournal journal_ = QuadTreeMeta.this.journal;
+            if (journal_ != null) {
+                journal_.appendClear();
+            }
         }
     }
 
@@ -140,12 +283,84 @@ public class QuadTreeMeta {
         void quadTreeModified();
     }
 
+    /**
+     *  How a QuadTreeMeta is to be set up, everything beyond the tile size & mask appearance being optional, e.g.
+     *  {@code new QuadTreeMeta(new QuadTreeMeta.Options(256, color, 0.5).autoOptimize(true).immutableMasks(true))}
+     */
+    public static final class Options {
+        final int tileSize;
+        final Color maskColor;
+        final double maskOpacity;
+        boolean autoOptimize;
+        int maskReductionThreshold = 1;
+        long maskCacheBytes = DEFAULT_MASK_CACHE_BYTES;
+        boolean immutableMasks;
+        boolean persistent;
+        int shardZoom;
+        int shardX;
+        int shardY;
+        /** Shared between the shards of a QuadTreeShards, otherwise null to have the quadtree create its own */
+        QuadTreeMask emptyMask;
+        QuadTreeMask fullMask;
+
+        public Options(int tileSize_, Color maskColor_, double maskOpacity_) {
+            this.tileSize = tileSize_;
+            this.maskColor = maskColor_;
+            this.maskOpacity = maskOpacity_;
+        }
+
+        /** Whether the optimize thread tidies up the quadtree after edits */
+        public Options autoOptimize(boolean autoOptimize_) {
+            this.autoOptimize = autoOptimize_;
+            return this;
+        }
+
+        /** See QuadTreeMeta.maskReductionThreshold, between 1 and 4 */
+        public Options maskReductionThreshold(int maskReductionThreshold_) {
+            this.maskReductionThreshold = maskReductionThreshold_;
+            return this;
+        }
+
+        /** See QuadTreeMeta.maskCacheBytes */
+        public Options maskCacheBytes(long maskCacheBytes_) {
+            this.maskCacheBytes = maskCacheBytes_;
+            return this;
+        }
+
+        /** See QuadTreeMeta.immutableMasks */
+        public Options immutableMasks(boolean immutableMasks_) {
+            this.immutableMasks = immutableMasks_;
+            return this;
+        }
+
+        /** See QuadTreeMeta.persistent */
+        public Options persistent(boolean persistent_) {
+            this.persistent = persistent_;
+            return this;
+        }
+
+        /** For the shards of a QuadTreeShards, which share a single pair of constant masks */
+        Options shard(int shardZoom_, int shardX_, int shardY_, QuadTreeMask emptyMask_, QuadTreeMask fullMask_) {
+            this.shardZoom = shardZoom_;
+            this.shardX = shardX_;
+            this.shardY = shardY_;
+            this.emptyMask = emptyMask_;
+            this.fullMask = fullMask_;
+            return this;
+        }
+    }
+
+    /** Waits until every edit requested so far, and any optimize & save they've led to, have been completed */
     public void awaitIdle() throws InterruptedException {
         while (true) {
-            if (quadTreeEditExecutor.getQueue().isEmpty()
+            // a newly started edit thread can have an edit neither queued nor active yet
+            if (this.editCompletedCount >= this.editRequestCount
+                && quadTreeEditExecutor.getQueue().isEmpty()
                 && quadTreeOptimizeExecutor.getQueue().isEmpty()
+                && quadTreeSaveExecutor.getQueue().isEmpty()
                 && quadTreeEditExecutor.getActiveCount() == 0
-                && quadTreeOptimizeExecutor.getActiveCount() == 0) {
+                && quadTreeOptimizeExecutor.getActiveCount() == 0
+                && quadTreeSaveExecutor.getActiveCount() == 0) {
                 return;
             }
             Thread.sleep(10);
@@ -183,6 +398,7 @@ public class QuadTreeMeta {
 
         @Override
         public void afterExecute(Runnable runnable, Throwable throwable) {
+            QuadTreeMeta.this.commitVersion();
             // we should only have acquired the lock once but let's not risk not being completely unlocked
             while (QuadTreeMeta.this.quadTreeRWLock.isWriteLockedByCurrentThread()) {
                 QuadTreeMeta.this.quadTreeRWLock.writeLock().unlock();
@@ -193,8 +409,29 @@ public class QuadTreeMeta {
         public void quadTreeModified() {
             this.execute(() -> {
                 try {
-                    QuadTreeMeta.this.quadTreeRoot.optimize(true);
-                    Logging.debug("QuadTreeMeta completed optimize() run");
+                    QuadTreeMeta.this.quadTreeRoot.optimize(
+                        true,
+                        Config.getPref().getBoolean("markseen.internMasks", false)
+                    );
+                    // regions left unvisited can be compressed while we hold the lock anyway - off by default
+                    final int coldMaskIdleMinutes = Config.getPref().getInt("markseen.coldMaskIdleMinutes", 0);
+                    if (coldMaskIdleMinutes > 0) {
+                        QuadTreeMeta.this.quadTreeRoot.freezeIdleMasks(
+                            coldMaskIdleMinutes * 60000L,
+                            Config.getPref().getBoolean("markseen.offHeapColdMasks", false),
+                            true
+                        );
+                    }
+                    final Path persistPath_ = QuadTreeMeta.this.persistPath;
+                    if (persistPath_ != null) {
+                        QuadTreeMeta.this.requestSave(persistPath_);
+                    }
+                    Logging.debug(
+                        "QuadTreeMeta completed optimize() run, "
+                        + QuadTreeMeta.this.quadTreeRoot.getMaskCache() + ", "
+                        + QuadTreeMeta.this.quadTreeRoot.getMaskRecycler() + ", "
+                        + QuadTreeMeta.this.quadTreeRoot.getColdStore()
+                    );
                 } catch (InterruptedException e) {
                     Logging.debug("QuadTreeMeta optimize() interrupted");
                 }
@@ -205,87 +442,403 @@ public class QuadTreeMeta {
         // pool, it just won't be useful
     }
 
-    // we don't worry about using the specific configured color ("maskColor") for marking regions, instead just expect
-    // the palette to match opaque white to that color and transparent black to the "background" color
-    protected static final Color UNMARK_COLOR = new Color(0, 0, 0, 0);
-    protected static final Color MARK_COLOR = new Color(255, 255, 255, 255);
+    /** Number of bounds the edit queue may hold before it warns of edits falling behind */
+    private static final int EDIT_QUEUE_MAX_BOUNDS = 1 << 16;
+
+    /** Suggested setMaxLockHoldMillis for interactive use - the quadtree itself doesn't give way unless told to */
+    public static final int DEFAULT_MAX_LOCK_HOLD_MILLIS = 50;
 
-    public final ReentrantReadWriteLock quadTreeRWLock = new ReentrantReadWriteLock();
+    public static final long DEFAULT_MASK_CACHE_BYTES = 32L * 1024 * 1024;
 
+    public final QuadTreeLock quadTreeRWLock = new QuadTreeLock();
+
+    // masks are only rendered to BufferedImages at paint time, using this palette, mapping clear bits to transparent
+    // black and set bits to the configured "maskColor"
     protected IndexColorModel maskColorModel;
 
     protected final int tileSize;
     protected final Color maskColor;
     protected final double maskOpacity;
+    /** How many of the 4 bits of a 2x2 block must be set for the bit representing it one zoom level up to be set */
+    protected final int maskReductionThreshold;
+    /** Approximate number of bytes derived (non-canonical) masks may occupy before they start being evicted */
+    protected final long maskCacheBytes;
+    /**
+     *  Whether masks, once readable, are never modified again - changes instead being made to a copy which then
+     *  replaces the original. A reader thus only needs the lock to get hold of a mask, not while using it.
+     */
+    protected final boolean immutableMasks;
+    /**
+     *  The tile, at shardZoom, which is the only part of the world this quadtree marks anything in - when acting as
+     *  one of the shards of a QuadTreeShards. The whole world, tile 0/0/0, otherwise.
+     */
+    protected final int shardZoom;
+    protected final int shardX;
+    protected final int shardY;
+    /**
+     *  Whether the quadtree keeps a persistent version of its seen areas up to date after each edit, from which
+     *  snapshot()s can be taken. Implies immutableMasks.
+     */
+    protected final boolean persistent;
+    /** The latest version of a persistent quadtree, written under the write-lock */
+    private volatile QuadTreeSnapshot latestVersion;
 
-    protected final BufferedImage EMPTY_MASK;
-    protected final BufferedImage FULL_MASK;
+    /** Where the quadtree is saved after each optimize run, null if it isn't */
+    private volatile Path persistPath;
+    /**
+     *  How long the edit thread may hold the write-lock while other threads are waiting for it, Long.MAX_VALUE if
+     *  indefinitely
+     */
+    private volatile long maxLockHoldNanos = Long.MAX_VALUE;
+    /** Journal of the edits made since the quadtree was last saved, null if there isn't one */
+    private volatile QuadTreeJournal journal;
+    /** Closes the journal should the jvm exit while it's open, null if there isn't one. Guarded by journalMonitor */
+    private Thread journalShutdownHook;
+
+    protected final QuadTreeMask EMPTY_MASK;
+    protected final QuadTreeMask FULL_MASK;
 
     private final ThreadPoolExecutor quadTreeEditExecutor;
     private final QuadTreeOptimizeExecutor quadTreeOptimizeExecutor;
+    /**
+     *  Writes out the copies of the quadtree the optimize thread takes, without holding any lock - only the latest
+     *  being kept should another be taken before the last has been written
+     */
+    private final ThreadPoolExecutor quadTreeSaveExecutor;
 
     private final Set<QuadTreeModifiedListener> modifiedListeners;
 
+    private final Object editSubmitMonitor = new Object();
+    private final Object journalMonitor = new Object();
+    /** Written under editSubmitMonitor */
+    private volatile long editRequestCount;
+    /**
+     *  Written by the edit thread. As requests can be coalesced, advanced to the sequence number of each request as it
+     *  completes rather than incremented.
+     */
+    private volatile long editCompletedCount;
+
     public final QuadTreeNode quadTreeRoot;
 
-    public QuadTreeMeta(int tileSize_, Color maskColor_, double maskOpacity_, boolean autoOptimize) {
-        this.tileSize = tileSize_;
-        this.maskColor = maskColor_;
-        this.maskOpacity = maskOpacity_;
-        this.maskColorModel = new IndexColorModel(
+    /** A palette for rendering masks in `maskColor_`, as maskColorModel */
+    static IndexColorModel newMaskColorModel(Color maskColor_, double maskOpacity_) {
+        return new IndexColorModel(
             1,
             2,
-            new byte[]{(byte) 0, (byte) this.maskColor.getRed()},
-            new byte[]{(byte) 0, (byte) this.maskColor.getGreen()},
-            new byte[]{(byte) 0, (byte) this.maskColor.getBlue()},
-            new byte[]{(byte) 0, (byte) (this.maskOpacity*255)}
+            new byte[]{(byte) 0, (byte) maskColor_.getRed()},
+            new byte[]{(byte) 0, (byte) maskColor_.getGreen()},
+            new byte[]{(byte) 0, (byte) maskColor_.getBlue()},
+            new byte[]{(byte) 0, (byte) (maskOpacity_*255)}
         );
+    }
 
-        this.EMPTY_MASK = new WriteInhibitedBufferedImage(
-            this.tileSize,
-            this.tileSize,
-            BufferedImage.TYPE_BYTE_BINARY,
-            this.maskColorModel,
-            UNMARK_COLOR
-        );
-        this.FULL_MASK = new WriteInhibitedBufferedImage(
-            this.tileSize,
-            this.tileSize,
-            BufferedImage.TYPE_BYTE_BINARY,
-            this.maskColorModel,
-            MARK_COLOR
-        );
+    public QuadTreeMeta(int tileSize_, Color maskColor_, double maskOpacity_, boolean autoOptimize) {
+        this(new Options(tileSize_, maskColor_, maskOpacity_).autoOptimize(autoOptimize));
+    }
+
+    public QuadTreeMeta(Options options) {
+        if (options.maskReductionThreshold < 1 || options.maskReductionThreshold > 4) {
+            throw new IllegalArgumentException("maskReductionThreshold must be between 1 and 4");
+        }
+        if (options.shardZoom < 0 || options.tileSize % (1 << options.shardZoom) != 0) {
+            throw new IllegalArgumentException("tileSize must be a multiple of the number of shards across");
+        }
+        if (options.shardX < 0 || options.shardX >= 1 << options.shardZoom
+            || options.shardY < 0 || options.shardY >= 1 << options.shardZoom) {
+            throw new IllegalArgumentException("Shard tile outside the world");
+        }
+        this.tileSize = options.tileSize;
+        this.maskColor = options.maskColor;
+        this.maskOpacity = options.maskOpacity;
+        this.maskReductionThreshold = options.maskReductionThreshold;
+        this.maskCacheBytes = options.maskCacheBytes;
+        this.immutableMasks = options.immutableMasks || options.persistent;
+        this.persistent = options.persistent;
+        this.shardZoom = options.shardZoom;
+        this.shardX = options.shardX;
+        this.shardY = options.shardY;
+        this.maskColorModel = newMaskColorModel(this.maskColor, this.maskOpacity);
+
+        this.EMPTY_MASK = options.emptyMask != null
+            ? options.emptyMask
+            : QuadTreeMask.newConstant(this.tileSize, false);
+        this.FULL_MASK = options.fullMask != null
+            ? options.fullMask
+            : QuadTreeMask.newConstant(this.tileSize, true);
+        assert this.EMPTY_MASK.isImmutable() && this.EMPTY_MASK.isAllClear();
+        assert this.FULL_MASK.isImmutable() && this.FULL_MASK.isAllSet();
 
         this.quadTreeRoot = new QuadTreeNode(this);
         this.quadTreeEditExecutor = new QuadTreeEditExecutor();
         this.quadTreeOptimizeExecutor = new QuadTreeOptimizeExecutor();
+        this.quadTreeSaveExecutor = new ThreadPoolExecutor(
+            1,
+            1,
+            2,
+            java.util.concurrent.TimeUnit.MINUTES,
+            new ArrayBlockingQueue<Runnable>(1),
+            new ThreadPoolExecutor.DiscardOldestPolicy()
+        );
+        this.quadTreeSaveExecutor.allowCoreThreadTimeOut(true);
         this.modifiedListeners = Collections.synchronizedSet(new HashSet<QuadTreeModifiedListener>());
 
-        if (autoOptimize) {
+        if (options.autoOptimize) {
             this.modifiedListeners.add(this.quadTreeOptimizeExecutor);
         }
+
+        this.quadTreeRWLock.writeLock().lock();
+        try {
+            this.commitVersion();
+        } finally {
+            this.quadTreeRWLock.writeLock().unlock();
+        }
+    }
+
+    /** Brings the latest version of a persistent quadtree up to date, to be called holding the write-lock */
+    private void commitVersion() {
+        if (!this.persistent) {
+            return;
+        }
+        final QuadTreeSnapshot.Node root = this.quadTreeRoot.commitVersion();
+        final QuadTreeSnapshot latestVersion_ = this.latestVersion;
+        if (latestVersion_ == null || latestVersion_.root != root) {
+            this.latestVersion = new QuadTreeSnapshot(this, root);
+        }
     }
 
+    /**
+     *  The seen areas as of the latest completed edit, unaffected by any later edits and readable without taking any
+     *  lock - e.g. to export, compare or render them while recording carries on. Taking one costs no more than a
+     *  volatile read, successive snapshots sharing everything the edits between them didn't change. Edits still queued
+     *  aren't waited for. Only available if the quadtree is persistent.
+     */
+    public QuadTreeSnapshot snapshot() {
+        if (!this.persistent) {
+            throw new IllegalStateException("Snapshots can only be taken of a persistent quadtree");
+        }
+        if (this.quadTreeRWLock.isWriteLockedByCurrentThread()) {
+            // including any edits the caller has made directly
+            this.commitVersion();
+        }
+        return this.latestVersion;
+    }
+
+    @Override
     public void requestSeenBoundsMark(Bounds bounds, double minTilesAcross) {
         this.requestSeenBoundsMark(bounds, minTilesAcross, false);
     }
 
     public void requestSeenBoundsMark(Bounds bounds, double minTilesAcross, boolean checkIntegrity) {
-        this.quadTreeEditExecutor.execute(new MarkBoundsSeenRequest(bounds, minTilesAcross, checkIntegrity));
+        this.submitEdit(sequence -> new MarkBoundsSeenRequest(
+            sequence,
+            Collections.singletonList(bounds),
+            minTilesAcross,
+            checkIntegrity
+        ));
+    }
+
+    /**
+     *  Requests all of `bounds` be marked seen as a single edit, far cheaper than requesting them one by one when
+     *  there are many
+     */
+    public void requestSeenBoundsMarkBatch(Collection<Bounds> bounds, double minTilesAcross) {
+        this.requestSeenBoundsMarkBatch(bounds, minTilesAcross, false);
+    }
+
+    public void requestSeenBoundsMarkBatch(Collection<Bounds> bounds, double minTilesAcross, boolean checkIntegrity) {
+        // copying, as the caller is free to reuse the collection once we return
+        final List<Bounds> boundsCopy = new ArrayList<>(bounds);
+        this.submitEdit(sequence -> new MarkBoundsSeenRequest(sequence, boundsCopy, minTilesAcross, checkIntegrity));
     }
 
+    @Override
     public void requestClear() {
-        this.quadTreeEditExecutor.execute(new ClearRequest());
+        this.submitEdit(ClearRequest::new);
+    }
+
+    private void submitEdit(LongFunction<EditRequest> requestFactory) {
+        // requests must be queued in the order they're numbered in. the edit queue never blocks, so this is never
+        // held for long - requests come from the EDT
+        synchronized (this.editSubmitMonitor) {
+            final long sequence = this.editRequestCount + 1;
+            // only counted once queued, execute() rejecting the request once shut down
+            this.quadTreeEditExecutor.execute(requestFactory.apply(sequence));
+            this.editRequestCount = sequence;
+        }
+    }
+
+    /**
+     *  Loads seen areas previously saved to `path` - or rather the latest generation of it, as saved by the optimize
+     *  thread - if it exists. Intended to be called before any edits have been requested.
+     *
+     *  @return whether anything was loaded
+     */
+    public boolean load(Path path) throws IOException {
+        final long generation = QuadTreeFile.latestGeneration(path);
+        if (generation < 0) {
+            return false;
+        }
+        this.quadTreeRWLock.writeLock().lock();
+        try {
+            final boolean loaded = this.quadTreeRoot.readFrom(QuadTreeFile.generationPath(path, generation));
+            this.commitVersion();
+            return loaded;
+        } finally {
+            this.quadTreeRWLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     *  Has the save thread write the quadtree as it stands to `path` and then compact the journal. To be called holding
+     *  the write-lock, which the save thread doesn't need.
+     */
+    private void requestSave(Path path) {
+        // a persistent quadtree's latest version can be saved as it is, anything else needs copying
+        final QuadTreeSnapshot copy = this.persistent
+            ? this.snapshot()
+            : new QuadTreeSnapshot(this, this.quadTreeRoot.copyCanonical());
+        final QuadTreeJournal journal_ = this.journal;
+        final long checkpoint = journal_ != null ? journal_.checkpoint() : 0;
+        this.quadTreeSaveExecutor.execute(() -> {
+            try {
+                copy.writeGenerationTo(path);
+                if (journal_ != null) {
+                    journal_.compact(checkpoint);
+                }
+            } catch (IOException e) {
+                Logging.warn("MarkSeen failed to save seen areas to " + path + ": " + e);
+            }
+        });
+    }
+
+    /**
+     *  Has the quadtree saved to `path` after each automatic optimize run, i.e. shortly after each burst of edits -
+     *  each save being a new generation of the file, see QuadTreeFile. null disables saving.
+     */
+    public void setPersistPath(Path path) {
+        this.persistPath = path;
+    }
+
+    /**
+     *  Sets how long the edit thread may keep the write-lock to itself while other threads - e.g. painting the
+     *  minimap - are waiting for it. Large marks are split into chunks so that it can give way between them. A
+     *  negative value, the default, lets it keep the lock until it runs out of edits to make.
+     */
+    @Override
+    public void setMaxLockHoldMillis(int millis) {
+        this.maxLockHoldNanos = millis < 0 ? Long.MAX_VALUE : millis * 1000000L;
     }
 
+    /**
+     *  Replays the edits held in the journal at `path`, if it exists, and then has all further edits appended to it.
+     *  The journal is compacted each time the quadtree is saved to the path set by setPersistPath, which should
+     *  have been loaded beforehand. Intended to be called before any edits have been requested.
+     *
+     *  Until closeJournal is called, a shutdown hook makes sure the records still queued are written out & synced.
+     */
+    public void openJournal(Path path) throws IOException {
+        this.quadTreeRWLock.writeLock().lock();
+        try {
+            // replaying all the edits under a single hold of the lock
+            this.journal = new QuadTreeJournal(path, new QuadTreeJournal.Visitor() {
+                @Override
+                public void markBoundsSeen(List<Bounds> bounds, double minTilesAcross) {
+                    final int skipped = QuadTreeMeta.this.quadTreeRoot.markBoundsSeen(bounds, minTilesAcross);
+                    if (skipped != 0) {
+                        Logging.warn(skipped + " of " + bounds.size()
+                            + " journaled bounds skipped: proposed rect has such extreme aspect ratio that it would be"
+                            + " zero-width");
+                    }
+                }
+
+                @Override
+                public void clear() {
+                    QuadTreeMeta.this.quadTreeRoot.clear();
+                }
+            });
+            this.commitVersion();
+        } finally {
+            this.quadTreeRWLock.writeLock().unlock();
+        }
+        synchronized (this.journalMonitor) {
+            if (this.journalShutdownHook == null) {
+                this.journalShutdownHook = new Thread(() -> {
+                    try {
+                        this.closeJournal();
+                    } catch (InterruptedException e) {
+                        Logging.debug("MarkSeen journal shutdown interrupted");
+                    }
+                }, "MarkSeen journal shutdown");
+                Runtime.getRuntime().addShutdownHook(this.journalShutdownHook);
+            }
+        }
+        // getting the replayed edits optimized & saved like any others
+        this.notifyModified();
+    }
+
+    /** Writes out any edits not yet journaled & stops journaling */
+    public void closeJournal() throws InterruptedException {
+        synchronized (this.journalMonitor) {
+            final Thread journalShutdownHook_ = this.journalShutdownHook;
+            if (journalShutdownHook_ != null && journalShutdownHook_ != Thread.currentThread()) {
+                try {
+                    Runtime.getRuntime().removeShutdownHook(journalShutdownHook_);
+                } catch (IllegalStateException e) {
+                    // already shutting down, the hook will find the journal closed
+                }
+            }
+            this.journalShutdownHook = null;
+        }
+        final QuadTreeJournal journal_ = this.journal;
+        if (journal_ != null) {
+            this.journal = null;
+            journal_.close();
+        }
+    }
+
+    private void notifyModified() {
+        synchronized (this.modifiedListeners) {
+            for (QuadTreeModifiedListener listener: this.modifiedListeners) {
+                listener.quadTreeModified();
+            }
+        }
+    }
+
+    /** Number of requested edits completed, including those coalesced into or superseded by others */
     protected long getEditRequestQueueCompletedTaskCount() {
-        return this.quadTreeEditExecutor.getCompletedTaskCount();
+        return this.editCompletedCount;
     }
 
     /**
      *  A word of caution - handlers could be called from any thread
      */
+    @Override
     public void addModifiedListener(QuadTreeModifiedListener modifiedListener) {
         this.modifiedListeners.add(modifiedListener);
     }
+
+    @Override
+    public QuadTreeMaskSource.TileReference getTileReference(Tile tile) {
+        return new QuadTreeNodeDynamicReference(this, tile);
+    }
+
+    @Override
+    public QuadTreeMask getEmptyMask() {
+        return this.EMPTY_MASK;
+    }
+
+    @Override
+    public IndexColorModel getMaskColorModel() {
+        return this.maskColorModel;
+    }
+
+    /**
+     *  Stops the quadtree's threads, abandoning any edits yet to be made, for a quadtree that's being thrown away.
+     *  Nothing may be requested of it afterwards.
+     */
+    void shutdown() {
+        this.quadTreeEditExecutor.shutdownNow();
+        this.quadTreeOptimizeExecutor.shutdownNow();
+        this.quadTreeSaveExecutor.shutdownNow();
+    }
 }
@@ -1,14 +1,15 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.markseen;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.Rectangle;
-import java.awt.geom.AffineTransform;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
-import java.lang.ref.SoftReference;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.openstreetmap.gui.jmapviewer.JMapViewer;
 import org.openstreetmap.gui.jmapviewer.OsmMercator;
@@ -22,54 +23,184 @@ class QuadTreeNode {
         }
     }
 
-    private SoftReference<BufferedImage> mask;
-    private BufferedImage canonicalMask;
+    /** Longest markBoundsSeen will wait for waiting threads to take the lock once it has yielded it */
+    private static final int[] NO_RECTS = new int[0];
 
-    private final QuadTreeNode parent;
     private final QuadTreeMeta quadTreeMeta;
-    private boolean belowCanonical;
-    private boolean dirty;
-
-    /** Children listed in z-order, x-minor */
-    private final QuadTreeNode[] children = {null, null, null, null};
+    /** Storage for all nodes of this quadtree, shared between all QuadTreeNode objects referring to it */
+    private final QuadTreeNodePool pool;
+    /** Bounds the memory used by the derived masks held in pool */
+    private final QuadTreeMaskCache maskCache;
+    /** Recycles the mask buffers dropped from pool */
+    private final QuadTreeMaskRecycler maskRecycler;
+    /** Compresses the canonical masks held in pool which have gone unused for a while */
+    private final QuadTreeMaskColdStore coldStore;
+    /**
+     *  Derived masks being built by readers holding just the read-lock, keyed by node, so that those wanting the same
+     *  mask can wait for the first to have started building it
+     */
+    private final ConcurrentHashMap<Integer, CompletableFuture<QuadTreeMask>> maskBuilds;
+    /**
+     *  While the quadtree is only read-locked, guards the derived masks & dirty flags held in pool, the mask cache &
+     *  the mask recycler against the readers building derived masks concurrently
+     */
+    private final Object maskBuildMonitor;
+    /** The node within pool this object refers to */
+    private final int handle;
 
     /** Intended for constructing the root node */
     QuadTreeNode(QuadTreeMeta quadTreeMeta_) {
         this.quadTreeMeta = quadTreeMeta_;
+        this.pool = new QuadTreeNodePool();
+        this.maskRecycler = new QuadTreeMaskRecycler(
+            this.pool,
+            this.quadTreeMeta.tileSize,
+            QuadTreeMaskRecycler.DEFAULT_CAPACITY
+        );
+        this.maskCache = new QuadTreeMaskCache(
+            this.pool,
+            this.maskRecycler,
+            this.quadTreeMeta.tileSize,
+            this.quadTreeMeta.maskCacheBytes
+        );
+        this.coldStore = new QuadTreeMaskColdStore(this.pool);
+        this.maskBuilds = new ConcurrentHashMap<>();
+        this.maskBuildMonitor = new Object();
+        this.handle = QuadTreeNodePool.ROOT;
 
-        this.belowCanonical = false;
-        this.parent = null;
-
-        this.canonicalMask = this.quadTreeMeta.EMPTY_MASK;
-        this.mask = new SoftReference<BufferedImage>(this.canonicalMask);
+        this.setCanonicalMask(this.handle, this.quadTreeMeta.EMPTY_MASK);
     }
 
-    /** Intended for constructing child nodes */
-    QuadTreeNode(QuadTreeNode parent, QuadTreeMeta quadTreeMeta_) {
-        assert parent != null;
-        this.parent = parent;
-        this.quadTreeMeta = quadTreeMeta_;
-        this.belowCanonical = true;
+    /** Intended for referring to a non-root node of an existing tree */
+    private QuadTreeNode(QuadTreeNode root, int handle_) {
+        this.quadTreeMeta = root.quadTreeMeta;
+        this.pool = root.pool;
+        this.maskCache = root.maskCache;
+        this.maskRecycler = root.maskRecycler;
+        this.coldStore = root.coldStore;
+        this.maskBuilds = root.maskBuilds;
+        this.maskBuildMonitor = root.maskBuildMonitor;
+        this.handle = handle_;
     }
 
-    private BufferedImage newBufferedImage() {
+    private QuadTreeMask newMask() {
         assert this.quadTreeMeta.tileSize > 0;
-        return new BufferedImage(
-            this.quadTreeMeta.tileSize,
-            this.quadTreeMeta.tileSize,
-            BufferedImage.TYPE_BYTE_BINARY,
-            this.quadTreeMeta.maskColorModel
-        );
+        synchronized (this.maskBuildMonitor) {
+            return this.maskRecycler.acquire();
+        }
+    }
+
+    private boolean isBelowCanonical(int node) {
+        return this.pool.hasFlag(node, QuadTreeNodePool.FLAG_BELOW_CANONICAL);
+    }
+
+    private void setBelowCanonical(int node, boolean value) {
+        this.pool.setFlag(node, QuadTreeNodePool.FLAG_BELOW_CANONICAL, value);
+    }
+
+    boolean isBelowCanonical() {
+        return this.isBelowCanonical(this.handle);
     }
 
-    private boolean isAboveCanonical() {
-        return this.canonicalMask == null && !this.belowCanonical;
+    private boolean isAboveCanonical(int node) {
+        return this.pool.getCanonicalMask(node) == null && !this.isBelowCanonical(node);
     }
 
-    private QuadTreeNode getChild(int childIndex, boolean write) {
-        QuadTreeNode child = this.children[childIndex];
-        if (child == null && write) {
-            this.children[childIndex] = child = new QuadTreeNode(this, this.quadTreeMeta);
+    /**
+     *  Whether mask_ is one of the shared constants, an interned mask or a published one - either way never written to
+     *  or recycled
+     */
+    private boolean isConstantMask(QuadTreeMask mask_) {
+        // the constants are immutable too
+        return mask_ != null && mask_.isImmutable();
+    }
+
+    /** Whether mask_ is shared between nodes, so not to be held in (& accounted for by) the mask cache */
+    private boolean isSharedMask(QuadTreeMask mask_) {
+        return this.isConstantMask(mask_) && !mask_.isPublished();
+    }
+
+    /**
+     *  With immutableMasks, makes mask_ read-only now that it's about to be readable by others, any later change to it
+     *  having to be made to a copy. Cold masks aren't readable as they are, so only need publishing once thawed.
+     */
+    private void publish(QuadTreeMask mask_) {
+        if (this.quadTreeMeta.immutableMasks && !mask_.isImmutable() && !mask_.isCold()) {
+            mask_.publish();
+        }
+    }
+
+    /** Sets node's mask slot to mask_, releasing any non-constant mask it replaces for recycling */
+    private void replaceMask(int node, QuadTreeMask mask_) {
+        final QuadTreeMask oldMask = this.pool.getMask(node);
+        if (oldMask != null && oldMask != mask_ && !this.isConstantMask(oldMask)) {
+            this.maskRecycler.release(node, oldMask);
+        }
+        this.pool.setMask(node, mask_);
+    }
+
+    /** Has node & its ancestors copied afresh into the next version of a persistent quadtree */
+    private void invalidateVersion(int node) {
+        if (this.quadTreeMeta.persistent) {
+            for (int n = node; n != QuadTreeNodePool.NONE; n = this.pool.getParent(n)) {
+                this.pool.setVersionNode(n, null);
+            }
+        }
+    }
+
+    private void setCanonicalMask(int node, QuadTreeMask canonicalMask) {
+        this.publish(canonicalMask);
+        this.invalidateVersion(node);
+        this.pool.setCanonicalMask(node, canonicalMask);
+        this.replaceMask(node, canonicalMask);
+        // canonical masks must never be evicted
+        this.maskCache.remove(node);
+        this.coldStore.touch(node);
+    }
+
+    /**
+     *  Gives up node's canonicalism, its former canonical mask being retained as a (now evictable) derived mask -
+     *  unless it's cold, derived masks having to be readable without further ado
+     */
+    private void relinquishCanonical(int node) {
+        this.invalidateVersion(node);
+        this.pool.setCanonicalMask(node, null);
+        final QuadTreeMask mask_ = this.pool.getMask(node);
+        if (mask_ != null && mask_.isCold()) {
+            this.pool.setMask(node, null);
+        } else if (mask_ != null && !this.isSharedMask(mask_)) {
+            this.maskCache.admit(node);
+        }
+    }
+
+    private void setDerivedMask(int node, QuadTreeMask mask_) {
+        assert this.pool.getCanonicalMask(node) == null;
+        this.publish(mask_);
+        this.replaceMask(node, mask_);
+        if (this.isSharedMask(mask_)) {
+            this.maskCache.remove(node);
+        } else {
+            this.maskCache.admit(node);
+        }
+    }
+
+    QuadTreeMaskCache getMaskCache() {
+        return this.maskCache;
+    }
+
+    QuadTreeMaskRecycler getMaskRecycler() {
+        return this.maskRecycler;
+    }
+
+    QuadTreeMaskColdStore getColdStore() {
+        return this.coldStore;
+    }
+
+    private int getChild(int node, int childIndex, boolean write) {
+        int child = this.pool.getChild(node, childIndex);
+        if (child == QuadTreeNodePool.NONE && write) {
+            child = this.pool.allocate(node, childIndex);
+            this.setBelowCanonical(child, true);
         }
         return child;
     }
@@ -82,12 +213,36 @@ class QuadTreeNode {
     ) {
         assert !write || this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
         // if we don't know we're the root we can't be sure we're not belowCanonical
-        assert parent == null;
+        assert this.handle == QuadTreeNodePool.ROOT;
+        assert zoom <= JMapViewer.MAX_ZOOM;
 
-        return getNodeForTileInner(0, 0, 0, xtile, ytile, zoom, false, write);
+        final long key = QuadTreeNodeIndex.tileKey(xtile, ytile, zoom);
+        int node = this.pool.findNode(key);
+        if (node == QuadTreeNodePool.NONE) {
+            if (!write) {
+                // there's nothing more we can do without write access
+                return null;
+            }
+            // descend from the nearest existing ancestor, creating the missing nodes on the way
+            final int levels = this.pool.findNearestExistingLevels(key, zoom);
+            final int ancestor = this.pool.findNode(QuadTreeNodeIndex.ancestorKey(key, levels));
+            node = this.getNodeForTileInner(
+                ancestor,
+                xtile >>> levels,
+                ytile >>> levels,
+                zoom - levels,
+                xtile,
+                ytile,
+                zoom,
+                this.isBelowCanonical(ancestor),
+                true
+            );
+        }
+        return node == this.handle ? this : new QuadTreeNode(this, node);
     }
 
-    private QuadTreeNode getNodeForTileInner(
+    private int getNodeForTileInner(
+        int node,
         int xtileThis,
         int ytileThis,
         int zoomThis,
@@ -101,7 +256,7 @@ class QuadTreeNode {
         if (zoomThis == zoomTarget) {
             assert xtileThis == xtileTarget;
             assert ytileThis == ytileTarget;
-            return this;
+            return node;
         }
         // assert this tile is actually beneath us
         assert zoomThis < zoomTarget;
@@ -110,7 +265,7 @@ class QuadTreeNode {
         assert (ytileThis << (zoomTarget-zoomThis)) <= ytileTarget;
         assert ytileTarget <= ((ytileThis << (zoomTarget-zoomThis)) + (1 << (zoomTarget-zoomThis)));
         // also assert consistency of belowCanonical
-        assert this.belowCanonical == recBelowCanonical;
+        assert this.isBelowCanonical(node) == recBelowCanonical;
 
         int childIndex = 0;
         int xtileNext = 2*xtileThis;
@@ -125,361 +280,707 @@ class QuadTreeNode {
             ytileNext++;
         }
 
-        QuadTreeNode child = this.getChild(childIndex, write);
-        if (child == null) {
+        final int child = this.getChild(node, childIndex, write);
+        if (child == QuadTreeNodePool.NONE) {
             // signal that we can't perform our job without write access
-            return null;
+            return QuadTreeNodePool.NONE;
         }
 
         if (zoomTarget-zoomThis == 1) {
             return child;
         } else {
-            return child.getNodeForTileInner(
+            return this.getNodeForTileInner(
+                child,
                 xtileNext,
                 ytileNext,
                 zoomThis+1,
                 xtileTarget,
                 ytileTarget,
                 zoomTarget,
-                this.belowCanonical || (this.canonicalMask != null),
+                this.isBelowCanonical(node) || (this.pool.getCanonicalMask(node) != null),
                 write
             );
         }
     }
 
-    private BufferedImage transformedToDescendant(
-        AffineTransform affineTransform,
-        BufferedImage targetImage,  // can be null if descendant doesn't have an allocated image to donate
+    private QuadTreeMask transformedToDescendant(
+        int node,
+        int qx,  // quadrant position of the descendant relative to the calling child, at the descendant's level
+        int qy,
+        int depth,  // number of levels the descendant lies below the calling child
+        QuadTreeMask targetMask,  // can be null if descendant doesn't have an allocated mask to donate
         boolean construct,
-        QuadTreeNode child
+        int childIndex  // the calling child's position in our children
     ) {
-        int childIndex = Arrays.asList(this.children).indexOf(child);
-        assert childIndex != -1;
-
-        int tileSize = this.quadTreeMeta.tileSize;
+        assert this.pool.getChild(node, childIndex) != QuadTreeNodePool.NONE;
 
-        // when traversing *up* the quadtree, adding the transform to the AffineTransform must happen *after*
-        // propagating the recursion because it's the *parent* (the callee) which holds the information about the
-        // child's positioning.
-
-        // affineTransform was supplied to us as the AffineTransform that the calling child would have used had it
-        // drawn *itself* for the descendant. we have to transform it so that has the appropriate transform for
-        // *us* to use for drawing.
-        if ((childIndex & 1) != 0) {
-            affineTransform.translate(-tileSize, 0);
-        }
-        if ((childIndex & (1 << 1)) != 0) {
-            affineTransform.translate(0, -tileSize);
-        }
-        affineTransform.scale(2, 2);
+        // when traversing *up* the quadtree, extending the quadrant path must happen *after* propagating the
+        // recursion because it's the *parent* (the callee) which holds the information about the child's
+        // positioning. the calling child's quadrant forms the most significant bits of the descendant's position
+        // relative to us.
+        qx |= (childIndex & 1) << depth;
+        qy |= ((childIndex >>> 1) & 1) << depth;
+        depth++;
 
         // using a `false` write arg here because we don't want to bother generating a mask which is only going to be
         // used as an intermediary
-        BufferedImage mask_ = this.getMask(false, false);
+        QuadTreeMask mask_ = this.getMask(node, false, false);
         if (mask_ == this.quadTreeMeta.EMPTY_MASK || mask_ == this.quadTreeMeta.FULL_MASK) {
             return mask_;
         } else if (mask_ != null) {
             if (!construct) {
                 return null;
             }
-            if (targetImage == null) {
-                // we have to allocate an image ourselves
-                targetImage = this.newBufferedImage();
+            if (targetMask == null) {
+                // we have to allocate a mask ourselves
+                targetMask = this.newMask();
             }
-            Graphics2D g = targetImage.createGraphics();
-            g.drawImage(mask_, affineTransform, null);
-            return targetImage;
+            targetMask.drawUpscaled(mask_, qx, qy, depth);
+            return targetMask;
+        } else if (this.pool.getCanonicalMask(node) != null) {
+            // a cold canonical mask, which we can't thaw without the write-lock - any further up we'd only find coarser
+            // renderings of it
+            return null;
         } else {
             // we don't currently have a valid mask to use. recurse.
-            return this.parent.transformedToDescendant(affineTransform, targetImage, construct, this);
+            return this.transformedToDescendant(
+                this.pool.getParent(node),
+                qx,
+                qy,
+                depth,
+                targetMask,
+                construct,
+                this.pool.getChildIndex(node)
+            );
         }
     }
 
-    /** Effectively a way of accessing the latter half of drawOntoAncestor, needed for initial entry point into
-     *  recursion */
-    private void drawChildrenOntoAncestor(Graphics2D g) {
-        assert this.isAboveCanonical();
-
-        int tileSize = this.quadTreeMeta.tileSize;
-        Graphics2D gCopy;
-        QuadTreeNode child;
+    /**
+     *  Reduces node's children's masks onto a buffer of `buffers` - or, should they all resolve to the same one of
+     *  EMPTY_MASK or FULL_MASK, returns that constant without allocating or drawing anything. Because children above
+     *  the canonical level resolve their own masks this same way, a uniform region of any extent is detected for free.
+     *
+     *  The halving kernel only works a single level at a time, so a child above the canonical level without a mask to
+     *  hand needs one built before it can be reduced onto ours. It's built & kept in the mask cache as long as the
+     *  cache has room for it - it's exactly the one we'd need next anyway when zooming in from this view - else it's
+     *  reduced into the buffer for the next depth down, which its siblings then reuse. So however far above the
+     *  canonical level we are, a build needs at most one buffer per level rather than one per node in between.
+     *
+     *  @param write    Whether we hold the write-lock, else child masks are built concurrently with other readers
+     *  @param buffers  Per-depth buffers relative to the mask being built, allocated as needed. The first may be
+     *                  given as node's stale mask to be redrawn in place.
+     *  @return null if a child's mask couldn't be had without the write-lock, else the constant or drawn buffer
+     */
+    private QuadTreeMask reduceChildren(int node, boolean write, List<QuadTreeMask> buffers, int depth) {
+        assert this.isAboveCanonical(node);
 
-        for (int i = 0; i < children.length; i++) {
-            child = this.children[i];
+        QuadTreeMask uniformMask = null;
+        QuadTreeMask target = null;
+        for (int i = 0; i < 4; i++) {
+            final int child = this.pool.getChild(node, i);
             // we shouldn't be encountering null children above canonical level
-            assert child != null;
+            assert child != QuadTreeNodePool.NONE;
+            assert !this.isBelowCanonical(child);
 
-            // when traversing *down* the quadtree, the transform of the g object has to be performed *before*
-            // propagating the recursion because it's the *parent* (the caller) which holds the information about
-            // the child's positioning
+            QuadTreeMask childMask = this.getMask(child, write, false);
+            if (childMask == null) {
+                if (this.pool.getCanonicalMask(child) != null) {
+                    // cold, which needs the write-lock
+                    return null;
+                }
+                childMask = this.maskCache.hasRoomForAnother()
+                    ? this.getMask(child, write, true)
+                    : this.reduceChildren(child, write, buffers, depth + 1);
+                if (childMask == null) {
+                    return null;
+                }
+            }
 
-            gCopy = (Graphics2D) g.create();
-            gCopy.scale(0.5, 0.5);
-            if ((i & 1) != 0) {
-                gCopy.translate(tileSize, 0);
+            if (target == null) {
+                if (
+                    (i == 0 || childMask == uniformMask)
+                    && (childMask == this.quadTreeMeta.EMPTY_MASK || childMask == this.quadTreeMeta.FULL_MASK)
+                ) {
+                    uniformMask = childMask;
+                    continue;
+                }
+                target = this.acquireBuffer(buffers, depth);
+                // catching up with the uniform children before this one
+                for (int j = 0; uniformMask == this.quadTreeMeta.FULL_MASK && j < i; j++) {
+                    target.drawReduced(uniformMask, j, this.quadTreeMeta.maskReductionThreshold);
+                }
             }
-            if ((i & (1 << 1)) != 0) {
-                gCopy.translate(0, tileSize);
+            if (childMask != this.quadTreeMeta.EMPTY_MASK) {
+                target.drawReduced(childMask, i, this.quadTreeMeta.maskReductionThreshold);
             }
-            child.drawOntoAncestor(gCopy);
-            gCopy.dispose();
         }
+        return target != null ? target : uniformMask;
     }
 
-    private void drawOntoAncestor(Graphics2D g) {
-        assert !this.belowCanonical;
-        // using a `false` write arg here because we don't want to bother generating a mask which is only going to be
-        // used as an intermediary
-        BufferedImage mask_ = this.getMask(false, false);
-        if (mask_ != null) {
-            g.drawImage(mask_, new AffineTransform(), null);
+    /** buffers' mask for `depth`, cleared ready to draw onto */
+    private QuadTreeMask acquireBuffer(List<QuadTreeMask> buffers, int depth) {
+        while (buffers.size() <= depth) {
+            buffers.add(null);
+        }
+        QuadTreeMask buffer = buffers.get(depth);
+        if (buffer == null) {
+            buffer = this.newMask();
+            buffers.set(depth, buffer);
         } else {
-            this.drawChildrenOntoAncestor(g);
+            buffer.fill(false);
         }
+        return buffer;
     }
 
-    /** Get a BufferedImage "mask" for this node.
+    /** Get a QuadTreeMask "mask" for this node.
      *
      * @param write     Whether getMask is permitted to perform operations that will modify the quadtree
      *                  to retrieve this mask. If false and getMask finds this necessary, null will be 
      *                  returned.
      * @param construct Whether getMask is permitted to construct a mask from a mask at a different
-     *                  zoomlevel, as opposed to simply passing back an aliased BufferedImage. Again, null
+     *                  zoomlevel, as opposed to simply passing back an aliased QuadTreeMask. Again, null
      *                  will be returned if getMask can't return a sensible result without this flag.
+     *                  Without `write`, only needs the read-lock, the mask being built concurrently with
+     *                  other readers - null being returned should that turn out to need the write-lock
+     *                  after all, e.g. to thaw a cold mask.
      */
-    public BufferedImage getMask(boolean write, boolean construct) {
+    public QuadTreeMask getMask(boolean write, boolean construct) {
         assert !write || this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
-        assert write || !construct : "Use of the construct argument requires write access";
 
-        if (this.canonicalMask != null) {
-            return this.canonicalMask;
-        }
+        return this.getMask(this.handle, write, construct);
+    }
 
-        BufferedImage mask_;
-        if (this.mask == null) {
-            if (!write) {
-                // there's nothing more we can do without write access
+    /**
+     *  This node's mask if it's available as it is, else null. Reads nothing but the node's own state & has no side
+     *  effects beyond recording an access to a canonical mask, making it usable by optimistic readers holding no lock
+     *  at all - who must validate whatever it returns.
+     */
+    QuadTreeMask peekMask() {
+        final QuadTreeMask canonicalMask = this.pool.getCanonicalMask(this.handle);
+        if (canonicalMask != null) {
+            if (canonicalMask.isCold()) {
                 return null;
             }
-            mask_ = null;
-        } else {
-            mask_ = this.mask.get();
+            // at worst lost should it race with a writer
+            this.coldStore.touch(this.handle);
+            return canonicalMask;
         }
+        // derived masks may be being installed by readers, which validation wouldn't catch - but a mask is always
+        // installed before its dirty flag is cleared, so a clear flag means the mask read after it is at least as new
+        if (this.pool.hasFlagAcquire(this.handle, QuadTreeNodePool.FLAG_DIRTY)) {
+            return null;
+        }
+        return this.pool.getMaskAcquire(this.handle);
+    }
 
-        if (this.dirty || mask_ == null) {
-            // we're going to have to redraw our mask from descendents or ancestors
-            if (!write) {
-                // there's nothing more we can do without write access
-                return null;
-            }
-
-            if (this.belowCanonical) {
-                mask_ = this.parent.transformedToDescendant(
-                    new AffineTransform(),
-                    mask_ != this.quadTreeMeta.EMPTY_MASK && mask_ != this.quadTreeMeta.FULL_MASK ? mask_ : null,
-                    construct,
-                    this
-                );
-                if (mask_ == null) {
-                    // transformedToDescendant would have had to construct a mask and we must have told it not to
+    private QuadTreeMask getMask(int node, boolean write, boolean construct) {
+        final QuadTreeMask canonicalMask = this.pool.getCanonicalMask(node);
+        if (canonicalMask != null) {
+            if (canonicalMask.isCold()) {
+                // thawing modifies the mask in place, so needs the write-lock - which (unlike the `write` argument)
+                // internal callers only reading an ancestor's canonical mask may well hold
+                if (!this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread()) {
                     return null;
                 }
-                this.mask = new SoftReference<BufferedImage>(mask_);
+                this.coldStore.thaw(node);
+                this.publish(canonicalMask);
             } else {
-                if (!construct) {
-                    return null;
-                }
-                // TODO make this memory efficient - could there be a way to detect all children being
-                // either all-EMPTY_MASK or all-FULL_MASK and avoid allocation?
-                if (mask_ == null || mask_ == this.quadTreeMeta.EMPTY_MASK || mask_ == this.quadTreeMeta.FULL_MASK) {
-                    // drawChildrenOntoAncestor needs a writable image pre-allocated for it
-                    mask_ = this.newBufferedImage();
-                    this.mask = new SoftReference<BufferedImage>(mask_);
+                this.coldStore.touch(node);
+            }
+            return canonicalMask;
+        }
+
+        if (!write) {
+            synchronized (this.maskBuildMonitor) {
+                final QuadTreeMask mask_ = this.pool.getMask(node);
+                if (mask_ != null && !this.pool.hasFlag(node, QuadTreeNodePool.FLAG_DIRTY)) {
+                    this.maskCache.touch(node);
+                    return mask_;
                 }
-                int tileSize = this.quadTreeMeta.tileSize;
-                Graphics2D g = mask_.createGraphics();
-                g.setBackground(new Color(0, 0, 0, 0));
-                g.clearRect(0, 0, tileSize, tileSize);
-                this.drawChildrenOntoAncestor(g);
             }
-            this.dirty = false;
+            // we're going to have to build our mask from descendents or ancestors, alongside any other readers
+            return construct ? this.buildMaskConcurrently(node) : null;
+        }
+
+        QuadTreeMask mask_ = this.pool.getMask(node);
+        if (!this.pool.hasFlag(node, QuadTreeNodePool.FLAG_DIRTY) && mask_ != null) {
+            this.maskCache.touch(node);
+            return mask_;
         }
 
+        // we're going to have to redraw our mask from descendents or ancestors
+        mask_ = this.buildMask(node, mask_, true, construct);
+        if (mask_ != null) {
+            this.installDerivedMask(node, mask_);
+        }
         return mask_;
     }
 
-    private void dirtyAncestors(boolean dirtySelf) {
+    /**
+     *  Builds node's derived mask, for the caller to install. Without `write`, only holding the read-lock, other
+     *  readers may be building other masks meanwhile.
+     *
+     *  @param oldMask  node's stale mask, to be redrawn in place if possible - only with `write`, as under the
+     *                  read-lock another reader could be evicting it
+     *  @return null if the mask would have to be constructed and `construct` is false, or the write-lock would be
+     *          needed and `write` is false
+     */
+    private QuadTreeMask buildMask(int node, QuadTreeMask oldMask, boolean write, boolean construct) {
+        if (this.isBelowCanonical(node)) {
+            // null should transformedToDescendant have had to construct a mask and we told it not to
+            return this.transformedToDescendant(
+                this.pool.getParent(node),
+                0,
+                0,
+                0,
+                write && !this.isConstantMask(oldMask) ? oldMask : null,
+                construct,
+                this.pool.getChildIndex(node)
+            );
+        }
+
+        if (!construct) {
+            return null;
+        }
+        final List<QuadTreeMask> buffers = new ArrayList<>();
+        // any mask we already had is redrawn in place, or released for recycling should the children turn out uniform
+        buffers.add(write && oldMask != null && !this.isConstantMask(oldMask) ? oldMask : null);
+        // buffers never installed can just be left to the gc
+        return this.reduceChildren(node, write, buffers, 0);
+    }
+
+    private void installDerivedMask(int node, QuadTreeMask mask_) {
+        synchronized (this.maskBuildMonitor) {
+            // (re-)admitting the mask even if it was already cached - it could have been evicted as a side effect of
+            // building other masks during its construction
+            this.setDerivedMask(node, mask_);
+            this.pool.setFlag(node, QuadTreeNodePool.FLAG_DIRTY, false);
+            this.maskCache.recordMiss();
+        }
+    }
+
+    /**
+     *  Builds & installs node's derived mask holding just the read-lock, unless another reader is already doing so,
+     *  in which case waits for theirs. Different masks can thus be built in parallel but none is built twice.
+     *
+     *  @return null if the mask couldn't be built without the write-lock
+     */
+    private QuadTreeMask buildMaskConcurrently(int node) {
+        final CompletableFuture<QuadTreeMask> build = new CompletableFuture<>();
+        final CompletableFuture<QuadTreeMask> inFlight = this.maskBuilds.putIfAbsent(node, build);
+        if (inFlight != null) {
+            return inFlight.join();
+        }
+        try {
+            QuadTreeMask mask_;
+            synchronized (this.maskBuildMonitor) {
+                // a build may have completed between our caller's check & our registering this one
+                mask_ = this.pool.hasFlag(node, QuadTreeNodePool.FLAG_DIRTY) ? null : this.pool.getMask(node);
+            }
+            if (mask_ == null) {
+                mask_ = this.buildMask(node, null, false, true);
+                if (mask_ != null) {
+                    this.installDerivedMask(node, mask_);
+                }
+            }
+            build.complete(mask_);
+            return mask_;
+        } catch (RuntimeException | Error e) {
+            build.completeExceptionally(e);
+            throw e;
+        } finally {
+            this.maskBuilds.remove(node, build);
+        }
+    }
+
+    private void dirtyAncestors(int node, boolean dirtySelf) {
         if (dirtySelf) {
-            this.dirty = true;
+            this.pool.setFlag(node, QuadTreeNodePool.FLAG_DIRTY, true);
         }
-        if (this.parent != null) {
-            this.parent.dirtyAncestors(true);
+        for (int ancestor = this.pool.getParent(node); ancestor != QuadTreeNodePool.NONE;
+            ancestor = this.pool.getParent(ancestor)) {
+            this.pool.setFlag(ancestor, QuadTreeNodePool.FLAG_DIRTY, true);
         }
     }
 
-    private void dirtyDescendants(boolean dirtySelf) {
+    private void dirtyDescendants(int node, boolean dirtySelf) {
         if (dirtySelf) {
-            this.dirty = true;
+            this.pool.setFlag(node, QuadTreeNodePool.FLAG_DIRTY, true);
         }
-        for (int i = 0; i < this.children.length; i++) {
-            QuadTreeNode child = this.getChild(i, false);
-            if (child != null) {
-                child.dirtyDescendants(true);
+        for (int i = 0; i < 4; i++) {
+            final int child = this.pool.getChild(node, i);
+            if (child != QuadTreeNodePool.NONE) {
+                this.dirtyDescendants(child, true);
             }
         }
     }
 
-    private void setDescendantsBelowCanonical(boolean setSelf) {
+    private void setDescendantsBelowCanonical(int node, boolean setSelf) {
         if (setSelf) {
-            this.canonicalMask = null;
-            this.belowCanonical = true;
+            if (this.pool.getCanonicalMask(node) != null) {
+                this.relinquishCanonical(node);
+            }
+            this.setBelowCanonical(node, true);
+            this.pool.setVersionNode(node, null);
         }
-        for (int i = 0; i < this.children.length; i++) {
-            QuadTreeNode child = this.getChild(i, false);
-            if (child != null) {
-                child.setDescendantsBelowCanonical(true);
+        for (int i = 0; i < 4; i++) {
+            final int child = this.pool.getChild(node, i);
+            if (child != QuadTreeNodePool.NONE) {
+                this.setDescendantsBelowCanonical(child, true);
             }
         }
     }
 
-    private void markRectSeenInner(
+    /**
+     *  The size in pixels of the part of the tile at `zoom` whose top-left corner is at `x`, `y` (in pixels) lying
+     *  within this quadtree's shard - the whole tile unless it's an ancestor of the shard's tile. The part is square,
+     *  its top-left corner offset from the tile's by getShardClipOffset.
+     *
+     *  @return 0 if the tile lies outside the shard altogether
+     */
+    private int getShardClipSize(int zoom, int x, int y) {
+        final int tileSize = this.quadTreeMeta.tileSize;
+        if (this.quadTreeMeta.shardZoom == 0) {
+            // not sharded, so everything's within it
+            return tileSize;
+        }
+        final int depth = zoom - this.quadTreeMeta.shardZoom;
+        if (depth >= 0) {
+            if ((x / tileSize) >>> depth != this.quadTreeMeta.shardX
+                || (y / tileSize) >>> depth != this.quadTreeMeta.shardY) {
+                return 0;
+            }
+            return tileSize;
+        }
+        if (this.quadTreeMeta.shardX >>> -depth != x / tileSize
+            || this.quadTreeMeta.shardY >>> -depth != y / tileSize) {
+            return 0;
+        }
+        // exact, the tile size being a multiple of the number of shards across
+        return tileSize >> -depth;
+    }
+
+    /**
+     *  Offset in pixels, along one axis, of the shard's part of a tile at `zoom` from the tile's top-left corner,
+     *  `shardCoord` being the shard's x or y. Only meaningful where getShardClipSize is non-zero.
+     */
+    private int getShardClipOffset(int zoom, int shardCoord) {
+        final int depth = zoom - this.quadTreeMeta.shardZoom;
+        if (depth >= 0) {
+            return 0;
+        }
+        return (shardCoord & ((1 << -depth) - 1)) * (this.quadTreeMeta.tileSize >> -depth);
+    }
+
+    /**
+     *  Marks the rects of `rects` listed by `candidates` seen in the subtree rooted at `node`. `rects` holds each
+     *  rect's x0, y0, x1 & y1 in zoom-0 coordinates, `preferredZooms` the zoom each should be drawn at. Rather than
+     *  doubling the coordinates on every step down, they're scaled to this node's zoom on the spot - scaling by a
+     *  power of two is exact, so comes to the same thing.
+     *
+     *  The work can be confined to a single chunk - the subtree of the tile at `chunkZoom` whose top-left corner is
+     *  at `chunkX`, `chunkY` - in which case nodes on the path down to it are always split, any of their children
+     *  off the path being treated as though no rects touched them. Passing a `chunkZoom` of 0 does the whole lot.
+     *
+     *  Nothing is drawn outside the quadtree's shard. A tile only partly within it can't be made FULL_MASK, so has the
+     *  shard's part of it drawn instead.
+     *
+     *  @return whether anything was drawn into the subtree, in which case the caller is responsible for marking
+     *          `node`'s ancestors dirty
+     */
+    private boolean markRectsSeenInner(
+        int node,
         int xThis,
         int yThis,
         int zoomThis,
-        double x0,
-        double y0,
-        double x1,
-        double y1,
-        int preferredZoom
+        double[] rects,
+        int[] preferredZooms,
+        int[] candidates,
+        int chunkZoom,
+        int chunkX,
+        int chunkY
     ) {
         int tileSize = this.quadTreeMeta.tileSize;
         // the central task of this method is to descend the quadtree to the point it can classify each branch as
-        // either fully contained by bbox, fully outside bbox or is forced to create a new node at or below
-        // preferredZoom
-        if (x1 < xThis || x0 > xThis+tileSize || y1 < yThis || y0 > yThis+tileSize) {
+        // either fully contained by a rect, lying outside all rects or is forced to create a new node at or below
+        // the preferredZoom of a rect straddling it. rects not touching this node can be forgotten about for the rest
+        // of the descent.
+        final int[] hits = new int[candidates.length];
+        int hitCount = 0;
+        boolean contained = false;
+        boolean recurse = this.isAboveCanonical(node);
+        final int clipSize = this.getShardClipSize(zoomThis, xThis, yThis);
+        final int clipX = xThis + this.getShardClipOffset(zoomThis, this.quadTreeMeta.shardX);
+        final int clipY = yThis + this.getShardClipOffset(zoomThis, this.quadTreeMeta.shardY);
+        for (int r : clipSize != 0 ? candidates : NO_RECTS) {
+            final double x0 = Math.scalb(rects[4*r], zoomThis);
+            final double y0 = Math.scalb(rects[4*r+1], zoomThis);
+            final double x1 = Math.scalb(rects[4*r+2], zoomThis);
+            final double y1 = Math.scalb(rects[4*r+3], zoomThis);
+            if (x1 < clipX || x0 > clipX+clipSize || y1 < clipY || y0 > clipY+clipSize) {
+                continue;
+            }
+            hits[hitCount++] = r;
+            if (zoomThis < preferredZooms[r]) {
+                recurse = true;
+            }
+            if (x0 < clipX && x1 > clipX+clipSize && y0 < clipY && y1 > clipY+clipSize) {
+                // any other rects make no difference
+                contained = true;
+                break;
+            }
+        }
+
+        if (hitCount == 0) {
             if (Logging.isDebugEnabled()) {
                 Logging.debug("Tile "+zoomThis+"/"+(xThis/tileSize)+"/"+(yThis/tileSize)+": ignoring\n");
             }
-            // this tile lies completely outside the rect
-            if (this.belowCanonical) {
+            // this tile lies completely outside the rects
+            if (this.isBelowCanonical(node)) {
                 // we have to claim canonicalism for this node - an ancestor must be being split for us to have arrived
                 // here (also we should be able to rely on any ancestors relinquishing their canonicalism during the
                 // unwind without us having to do anything about it)
-                this.canonicalMask = this.getMask(true, true);
-                this.belowCanonical = false;
+                this.setCanonicalMask(node, this.getMask(node, true, true));
+                this.setBelowCanonical(node, false);
             }
             // otherwise nothing else to do
-        } else if (x0 < xThis && x1 > xThis+tileSize && y0 < yThis && y1 > yThis+tileSize) {
-            // this tile lies completely inside the rect - make this node canonical, set mask to all-seen (unless this
+            return false;
+        } else if (contained && zoomThis >= chunkZoom && clipSize == tileSize) {
+            // this tile lies completely inside a rect - make this node canonical, set mask to all-seen (unless this
             // is already the case)
-            if (this.canonicalMask != this.quadTreeMeta.FULL_MASK) {
-                if (Logging.isDebugEnabled()) {
-                    Logging.debug("Tile "+zoomThis+"/"+(xThis/tileSize)+"/"+(yThis/tileSize)+": marking as FULL_MASK\n");
-                }
-                this.canonicalMask = this.quadTreeMeta.FULL_MASK;
-                this.mask = new SoftReference<BufferedImage>(this.canonicalMask);
+            if (this.pool.getCanonicalMask(node) == this.quadTreeMeta.FULL_MASK) {
+                return false;
+            }
+            if (Logging.isDebugEnabled()) {
+                Logging.debug("Tile "+zoomThis+"/"+(xThis/tileSize)+"/"+(yThis/tileSize)+": marking as FULL_MASK\n");
+            }
+            this.setCanonicalMask(node, this.quadTreeMeta.FULL_MASK);
 
-                this.setDescendantsBelowCanonical(false);
-                this.belowCanonical = false;
-                // (again ancestors should be relinquishing their canonicalism during the unwind)
+            this.setDescendantsBelowCanonical(node, false);
+            this.setBelowCanonical(node, false);
+            // (again ancestors should be relinquishing their canonicalism during the unwind)
 
-                // mark ancestors & descendants dirty
-                this.dirtyAncestors(false);
-                this.dirtyDescendants(false);
-            }
-        } else if (this.getMask(true, false) == this.quadTreeMeta.FULL_MASK) {
+            this.dirtyDescendants(node, false);
+            return true;
+        } else if (this.getMask(node, true, false) == this.quadTreeMeta.FULL_MASK) {
             // using the false construct argument to getMask above as we don't want to bother building a mask - we just
             // want to poke it to know if we can take a shortcut, which it appears we can - drawing to this mask
             // wouldn't make a difference anyway.
             if (Logging.isDebugEnabled()) {
                 Logging.debug("Tile "+zoomThis+"/"+(xThis/tileSize)+"/"+(yThis/tileSize)+": ignoring as FULL_MASK\n");
             }
-            if (this.belowCanonical) {
+            if (this.isBelowCanonical(node)) {
                 // claim canonicalism for this node from below
-                this.canonicalMask = this.getMask(true, true);
-                this.belowCanonical = false;
+                this.setCanonicalMask(node, this.getMask(node, true, true));
+                this.setBelowCanonical(node, false);
                 // (again ancestors should be relinquishing their canonicalism during the unwind)
-            } else if (this.canonicalMask == null) {
+            } else if (this.pool.getCanonicalMask(node) == null) {
                 // claim canonicalism for this node from above
-                this.canonicalMask = this.getMask(true, true);
-                this.setDescendantsBelowCanonical(false);
+                this.setCanonicalMask(node, this.getMask(node, true, true));
+                this.setDescendantsBelowCanonical(node, false);
             }
             // no dirtying required - nothing has actually changed
+            return false;
+        } else if (recurse || zoomThis < chunkZoom) {
+            // tile straddles at least one edge of a rect wanting drawing at a higher zoom - we should recurse, which
+            // will also have the effect of more finely pinning down the edge. rects happy to be drawn at this zoom
+            // come along too - they'd have to be pushed down to our children anyway once this node is split.
+            final int[] childCandidates = hitCount == hits.length ? hits : Arrays.copyOf(hits, hitCount);
+            // the child on the path to the chunk, if we're above it
+            final int shift = chunkZoom - zoomThis - 1;
+            final int chunkChild = shift < 0 ? -1
+                : (((chunkX / tileSize) >>> shift) & 1) | ((((chunkY / tileSize) >>> shift) & 1) << 1);
+            boolean drawn = false;
+            for (int i = 0; i < 4; i++) {
+                drawn |= this.markRectsSeenInner(
+                    this.getChild(node, i, true),
+                    (xThis*2)+((i & 1) != 0 ? tileSize : 0),
+                    (yThis*2)+((i & (1 << 1)) != 0 ? tileSize : 0),
+                    zoomThis+1,
+                    rects,
+                    preferredZooms,
+                    chunkChild == -1 || chunkChild == i ? childCandidates : NO_RECTS,
+                    chunkZoom,
+                    chunkX,
+                    chunkY
+                );
+            }
+
+            // the descendents we recursed into should have, in all cases, claimed canonicalism at a level lower
+            // than this node, so if we did have canonicalism we now need to relinquish it during the unwind
+            if (this.pool.getCanonicalMask(node) != null) {
+                this.relinquishCanonical(node);
+            }
+            this.setBelowCanonical(node, false);
+            if (drawn) {
+                // dirtying each ancestor once on the way back up, however many descendants were drawn to
+                this.pool.setFlag(node, QuadTreeNodePool.FLAG_DIRTY, true);
+            }
+            return drawn;
         } else {
-            // tile straddles at least one edge of rect
-            if (zoomThis < preferredZoom || this.isAboveCanonical()) {
-                // we're at too low a zoom level to start any drawing - we should recurse, which will also have the
-                // effect of more finely pinning down the edge
-                for (int i = 0; i < this.children.length; i++) {
-                    QuadTreeNode child = this.getChild(i, true);
-                    child.markRectSeenInner(
-                        (xThis*2)+((i & 1) != 0 ? tileSize : 0),
-                        (yThis*2)+((i & (1 << 1)) != 0 ? tileSize : 0),
-                        zoomThis+1,
-                        x0*2,
-                        y0*2,
-                        x1*2,
-                        y1*2,
-                        preferredZoom
-                    );
-                }
+            if (Logging.isDebugEnabled()) {
+                Logging.debug("Tile "+zoomThis+"/"+(xThis/tileSize)+"/"+(yThis/tileSize)+": drawing to\n");
+            }
+            // this is a node we should be drawing to - it should be canonical or belowCanonical
+            if (this.isBelowCanonical(node)) {
+                // claim canonicalism for this node
+                this.setCanonicalMask(node, this.getMask(node, true, true));
+                this.setBelowCanonical(node, false);
+                // (again ancestors should be relinquishing their canonicalism during the unwind)
+            }
 
-                // the descendents we recursed into should have, in all cases, claimed canonicalism at a level lower
-                // than this node, so if we did have canonicalism we now need to relinquish it during the unwind
-                this.canonicalMask = null;
-                this.belowCanonical = false;
+            QuadTreeMask canonicalMask = this.pool.getCanonicalMask(node);
+            if (canonicalMask == this.quadTreeMeta.FULL_MASK) {
+                // drawing this will make no difference
+                return false;
+            }
+            final QuadTreeMask targetMask;
+            if (canonicalMask == this.quadTreeMeta.EMPTY_MASK) {
+                // we can't write to this mask - allocate another (already clear) one. a freshly marked mask will hold
+                // just a handful of rects, so start it out in rectangle-union form
+                targetMask = QuadTreeMask.newRectUnion(this.quadTreeMeta.tileSize);
             } else {
-                if (Logging.isDebugEnabled()) {
-                    Logging.debug("Tile "+zoomThis+"/"+(xThis/tileSize)+"/"+(yThis/tileSize)+": drawing to\n");
-                }
-                // this is a node we should be drawing to - it should be canonical or belowCanonical
-                if (this.belowCanonical) {
-                    // claim canonicalism for this node
-                    this.canonicalMask = this.getMask(true, true);
-                    this.belowCanonical = false;
-                    // (again ancestors should be relinquishing their canonicalism during the unwind)
-                }
+                // a thawed mask hasn't been seen by any reader in its current incarnation, so may be drawn to in place
+                this.coldStore.thaw(node);
+                // an interned or published mask, shared with other nodes or readers - copy on write
+                targetMask = canonicalMask.isImmutable() ? canonicalMask.copy() : canonicalMask;
+            }
 
-                if (this.canonicalMask != this.quadTreeMeta.FULL_MASK) {  // else drawing this will make no difference
-                    Graphics2D g;
-                    if (this.canonicalMask == this.quadTreeMeta.EMPTY_MASK) {
-                        // we can't write to this mask - allocate another one
-                        this.canonicalMask = this.newBufferedImage();
-                        this.mask = new SoftReference<BufferedImage>(this.canonicalMask);
-
-                        // clear it
-                        g = this.canonicalMask.createGraphics();
-                        g.setBackground(this.quadTreeMeta.UNMARK_COLOR);
-                        g.clearRect(0, 0, tileSize, tileSize);
-                    } else {
-                        g = this.canonicalMask.createGraphics();
-                    }
-
-                    // draw.
-                    g.setPaint(this.quadTreeMeta.MARK_COLOR);
-                    g.translate(-xThis, -yThis);
-                    g.fill(new Rectangle(
-                        (int) Math.round(x0),
-                        (int) Math.round(y0),
-                        (int) Math.round(x1-x0),
-                        (int) Math.round(y1-y0)
-                    ));
-
-                    // mark ancestors & descendants dirty
-                    this.dirtyAncestors(false);
-                    this.dirtyDescendants(false);
-                }
+            for (int h = 0; h < hitCount; h++) {
+                final int r = hits[h];
+                final double x0 = Math.scalb(rects[4*r], zoomThis);
+                final double y0 = Math.scalb(rects[4*r+1], zoomThis);
+                final double x1 = Math.scalb(rects[4*r+2], zoomThis);
+                final double y1 = Math.scalb(rects[4*r+3], zoomThis);
+                // draw. rounding the width & height independently of the origin matches what we used to get from
+                // filling a java.awt.Rectangle, keeping results consistent between masks drawn at different times
+                final long left = Math.round(x0);
+                final long top = Math.round(y0);
+                // clipped to the shard, which also keeps everything within int range
+                final int clipLeft = (int) Math.max(left, clipX);
+                final int clipTop = (int) Math.max(top, clipY);
+                targetMask.fillRect(
+                    clipLeft - xThis,
+                    clipTop - yThis,
+                    (int) (Math.min(left + Math.round(x1-x0), clipX+clipSize) - clipLeft),
+                    (int) (Math.min(top + Math.round(y1-y0), clipY+clipSize) - clipTop)
+                );
+            }
+            // only made available to readers once completely drawn
+            if (targetMask != canonicalMask) {
+                this.setCanonicalMask(node, targetMask);
+            } else {
+                this.publish(targetMask);
+                // a version may hold a cold copy of its former contents
+                this.invalidateVersion(node);
             }
+
+            this.dirtyDescendants(node, false);
+            return true;
         }
     }
 
-    public void markBoundsSeen(Bounds bbox, double minTilesAcross) {
-        assert this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
-        // *should* only be called on root node, right?
-        assert this.parent == null;
+    /**
+     *  Divides the work of marking the rects of `rects` listed by `candidates` within `node`'s tile into chunks for
+     *  markRectsSeenInner, appending each chunk's zoom & the coordinates of its top-left corner to `chunks`. A tile is
+     *  divided further, down to `maxChunkZoom`, as long as marking it would involve descending into its subtree
+     *  anyway - to reach a rect's preferredZoom, or to dirty an existing subtree a rect covers entirely - so that
+     *  each chunk is a bounded amount of work. `node` may be NONE for tiles with no node yet.
+     */
+    private void planChunks(
+        int node,
+        int xThis,
+        int yThis,
+        int zoomThis,
+        double[] rects,
+        int[] preferredZooms,
+        int[] candidates,
+        int maxChunkZoom,
+        ArrayList<int[]> chunks
+    ) {
+        final int tileSize = this.quadTreeMeta.tileSize;
+        final int[] hits = new int[candidates.length];
+        int hitCount = 0;
+        boolean contained = false;
+        boolean deeper = false;
+        final int clipSize = this.getShardClipSize(zoomThis, xThis, yThis);
+        final int clipX = xThis + this.getShardClipOffset(zoomThis, this.quadTreeMeta.shardX);
+        final int clipY = yThis + this.getShardClipOffset(zoomThis, this.quadTreeMeta.shardY);
+        for (int r : clipSize != 0 ? candidates : NO_RECTS) {
+            final double x0 = Math.scalb(rects[4*r], zoomThis);
+            final double y0 = Math.scalb(rects[4*r+1], zoomThis);
+            final double x1 = Math.scalb(rects[4*r+2], zoomThis);
+            final double y1 = Math.scalb(rects[4*r+3], zoomThis);
+            if (x1 < clipX || x0 > clipX+clipSize || y1 < clipY || y0 > clipY+clipSize) {
+                continue;
+            }
+            hits[hitCount++] = r;
+            if (x0 < clipX && x1 > clipX+clipSize && y0 < clipY && y1 > clipY+clipSize && clipSize == tileSize) {
+                contained = true;
+            } else if (zoomThis < preferredZooms[r]) {
+                deeper = true;
+            }
+        }
+        if (hitCount == 0) {
+            // no work here at all - if this tile needs splitting off from an ancestor, a chunk touching a sibling will
+            // take care of it
+            return;
+        }
 
-        OsmMercator merc = new OsmMercator(this.quadTreeMeta.tileSize);
+        boolean hasChildren = false;
+        for (int i = 0; node != QuadTreeNodePool.NONE && i < 4; i++) {
+            hasChildren |= this.pool.getChild(node, i) != QuadTreeNodePool.NONE;
+        }
+        final boolean divide = zoomThis < maxChunkZoom
+            && (node == QuadTreeNodePool.NONE || this.getMask(node, true, false) != this.quadTreeMeta.FULL_MASK)
+            && (contained ? hasChildren : (deeper || (node != QuadTreeNodePool.NONE && this.isAboveCanonical(node))));
+        if (!divide) {
+            chunks.add(new int[] {zoomThis, xThis, yThis});
+            return;
+        }
+        final int[] childCandidates = Arrays.copyOf(hits, hitCount);
+        for (int i = 0; i < 4; i++) {
+            this.planChunks(
+                node == QuadTreeNodePool.NONE ? QuadTreeNodePool.NONE : this.pool.getChild(node, i),
+                (xThis*2)+((i & 1) != 0 ? tileSize : 0),
+                (yThis*2)+((i & (1 << 1)) != 0 ? tileSize : 0),
+                zoomThis+1,
+                rects,
+                preferredZooms,
+                childCandidates,
+                maxChunkZoom,
+                chunks
+            );
+        }
+    }
 
+    /**
+     *  Lets any threads waiting for the quadtree's lock have it before taking it back. The tree must be in a consistent
+     *  state, the current thread holding the write-lock just the once.
+     */
+    private void yieldWriteLock() {
+        final ReentrantReadWriteLock lock = this.quadTreeMeta.quadTreeRWLock;
+        // an outer hold would be protecting something our caller is in the middle of, so mustn't be given up
+        assert lock.getWriteHoldCount() == 1;
+        lock.writeLock().unlock();
+        // the lock being fair, this queues us up behind everyone already waiting for it
+        lock.writeLock().lock();
+    }
+
+    /**
+     *  Converts `bbox` to zoom-0 coordinates snapped to the precision of the zoom it should be drawn at, storing them
+     *  in `rects` from `offset`, for a quadtree of the given tile size
+     *
+     *  @return the zoom it should be drawn at
+     */
+    static int snapBounds(
+        Bounds bbox,
+        double minTilesAcross,
+        int tileSize,
+        OsmMercator merc,
+        double[] rects,
+        int offset
+    ) {
         double x0 = merc.lonToX(bbox.getMinLon(), 0);
         double y0 = merc.latToY(bbox.getMaxLat(), 0);
         double x1 = merc.lonToX(bbox.getMaxLon(), 0);
@@ -488,7 +989,7 @@ class QuadTreeNode {
         double longSideLen = (x1-x0) > (y1-y0) ? (x1-x0) : (y1-y0);
         // calculate the factor that the longSideLen would have to be multiplied by to get it to occupy minTilesAcross
         // tiles
-        double factor = minTilesAcross*this.quadTreeMeta.tileSize/longSideLen;
+        double factor = minTilesAcross*tileSize/longSideLen;
         // now calculate how many zoom levels this would equate to
         int preferredZoom = (int) Math.ceil(Math.log(factor)/Math.log(2));
 
@@ -504,47 +1005,156 @@ class QuadTreeNode {
             throw new ExtremeAspectRatioException();
         }
 
-        this.markRectSeenInner(
-            0,
-            0,
-            0,
-            x0s,
-            y0s,
-            x1s,
-            y1s,
-            preferredZoom
-        );
+        rects[offset] = x0s;
+        rects[offset+1] = y0s;
+        rects[offset+2] = x1s;
+        rects[offset+3] = y1s;
+        return preferredZoom;
+    }
+
+    /** Interleaves the bits of the low 16 bits of `x` & `y` */
+    private static long mortonCode(int x, int y) {
+        long code = 0;
+        for (int bit = 0; bit < 16; bit++) {
+            code |= ((long) ((x >>> bit) & 1) << (2*bit)) | ((long) ((y >>> bit) & 1) << ((2*bit)+1));
+        }
+        return code;
+    }
+
+    public void markBoundsSeen(Bounds bbox, double minTilesAcross) {
+        assert this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
+        // *should* only be called on root node, right?
+        assert this.handle == QuadTreeNodePool.ROOT;
+
+        final double[] rects = new double[4];
+        final int[] preferredZooms = {
+            snapBounds(
+                bbox,
+                minTilesAcross,
+                this.quadTreeMeta.tileSize,
+                new OsmMercator(this.quadTreeMeta.tileSize),
+                rects,
+                0
+            )
+        };
+        this.markRectsSeenInner(this.handle, 0, 0, 0, rects, preferredZooms, new int[] {0}, 0, 0, 0);
+        this.maskRecycler.recycle();
+    }
+
+    /**
+     *  Marks all of `bboxes` seen in a single descent of the quadtree, each branch being visited once however many of
+     *  the bounds touch it and each ancestor of a modified node being dirtied once. Much cheaper than marking them one
+     *  by one when there are many, e.g. when bulk-loading previously recorded viewports.
+     *
+     *  Bounds of such extreme aspect ratio that they can't be drawn are skipped rather than abandoning the rest.
+     *
+     *  @return the number of bounds skipped
+     */
+    public int markBoundsSeen(Collection<Bounds> bboxes, double minTilesAcross) {
+        return this.markBoundsSeen(bboxes, minTilesAcross, Long.MAX_VALUE);
+    }
+
+    /**
+     *  As markBoundsSeen(bboxes, minTilesAcross), but preemptible: unless `maxLockHoldNanos` is Long.MAX_VALUE, the
+     *  work is split into chunks each confined to a single subtree, and once the write-lock has been held for
+     *  `maxLockHoldNanos` it is yielded between chunks to any threads waiting for it. Each chunk leaves the tree
+     *  consistent, so readers let in meanwhile see some of the bounds marked - never a half-drawn tile - and can't
+     *  be kept waiting for long by even the largest marks.
+     */
+    public int markBoundsSeen(Collection<Bounds> bboxes, double minTilesAcross, long maxLockHoldNanos) {
+        assert this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
+        assert this.handle == QuadTreeNodePool.ROOT;
+
+        final OsmMercator merc = new OsmMercator(this.quadTreeMeta.tileSize);
+        final double[] rects = new double[4*bboxes.size()];
+        final int[] preferredZooms = new int[bboxes.size()];
+        final long[] keyedRects = new long[bboxes.size()];
+        final double scale = 65536. / this.quadTreeMeta.tileSize;
+        int rectCount = 0;
+        for (Bounds bbox : bboxes) {
+            try {
+                preferredZooms[rectCount] = snapBounds(
+                    bbox,
+                    minTilesAcross,
+                    this.quadTreeMeta.tileSize,
+                    merc,
+                    rects,
+                    4*rectCount
+                );
+            } catch (ExtremeAspectRatioException e) {
+                continue;
+            }
+            // keyed by the z-order of the rect's centre (at the resolution of zoom 16), which is the order the descent
+            // will visit them in, so rects drawn to the same mask end up adjacent
+            final long code = mortonCode(
+                (int) Math.max(0., Math.min(65535., ((rects[4*rectCount]+rects[4*rectCount+2])/2) * scale)),
+                (int) Math.max(0., Math.min(65535., ((rects[4*rectCount+1]+rects[4*rectCount+3])/2) * scale))
+            );
+            keyedRects[rectCount] = (code << 31) | rectCount;
+            rectCount++;
+        }
+        Arrays.sort(keyedRects, 0, rectCount);
+        final int[] candidates = new int[rectCount];
+        for (int i = 0; i < rectCount; i++) {
+            candidates[i] = (int) (keyedRects[i] & Integer.MAX_VALUE);
+        }
+
+        if (maxLockHoldNanos == Long.MAX_VALUE) {
+            this.markRectsSeenInner(this.handle, 0, 0, 0, rects, preferredZooms, candidates, 0, 0, 0);
+            this.maskRecycler.recycle();
+            return bboxes.size() - rectCount;
+        }
+
+        int maxPreferredZoom = 0;
+        for (int r : candidates) {
+            maxPreferredZoom = Math.max(maxPreferredZoom, preferredZooms[r]);
+        }
+        final ArrayList<int[]> chunks = new ArrayList<>();
+        this.planChunks(this.handle, 0, 0, 0, rects, preferredZooms, candidates, maxPreferredZoom, chunks);
+
+        long heldSince = System.nanoTime();
+        for (int[] chunk : chunks) {
+            this.markRectsSeenInner(
+                this.handle,
+                0,
+                0,
+                0,
+                rects,
+                preferredZooms,
+                candidates,
+                chunk[0],
+                chunk[1],
+                chunk[2]
+            );
+            this.maskRecycler.recycle();
+            if (System.nanoTime() - heldSince >= maxLockHoldNanos
+                && this.quadTreeMeta.quadTreeRWLock.hasQueuedThreads()) {
+                this.yieldWriteLock();
+                heldSince = System.nanoTime();
+            }
+        }
+        return bboxes.size() - rectCount;
     }
 
     public void clear() {
         assert this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
-        assert !this.belowCanonical;
+        assert !this.isBelowCanonical(this.handle);
 
-        this.canonicalMask = this.quadTreeMeta.EMPTY_MASK;
-        this.mask = new SoftReference<BufferedImage>(this.canonicalMask);
+        this.setCanonicalMask(this.handle, this.quadTreeMeta.EMPTY_MASK);
 
-        this.setDescendantsBelowCanonical(false);
+        this.setDescendantsBelowCanonical(this.handle, false);
 
         // mark ancestors & descendants dirty
-        this.dirtyAncestors(true);
-        this.dirtyDescendants(true);
+        this.dirtyAncestors(this.handle, true);
+        this.dirtyDescendants(this.handle, true);
+        this.maskRecycler.recycle();
 
         // something we're notably *not* doing here is destroying all the child nodes because it is assumed the user
         // will be working in a similar area and there will be opportunities to re-use these nodes. the majority of the
-        // node's memory can be reclaimed through mask SoftReferences anyway.
+        // node's memory can be reclaimed through the mask cache anyway.
     }
 
-    protected static boolean masksEqual(
-        final BufferedImage maskA,
-        final BufferedImage maskB
-    ) {
-        return Arrays.equals(
-            ((DataBufferByte) maskA.getData().getDataBuffer()).getData(),
-            ((DataBufferByte) maskB.getData().getDataBuffer()).getData()
-        );
-    }
-
-    public BufferedImage optimize() {
+    public QuadTreeMask optimize() {
         try {
             return this.optimize(false);
         } catch (InterruptedException e) {
@@ -553,9 +1163,71 @@ class QuadTreeNode {
         }
     }
 
-    public BufferedImage optimize(boolean interruptable) throws InterruptedException {
+    public QuadTreeMask optimize(boolean interruptable) throws InterruptedException {
+        return this.optimize(interruptable, false);
+    }
+
+    /**
+     * @param internMasks Whether to also have canonical masks with identical (non-uniform) contents share a single,
+     *                    immutable instance, copied again only when next drawn to
+     */
+    public QuadTreeMask optimize(boolean interruptable, boolean internMasks) throws InterruptedException {
         assert this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
-        assert !this.belowCanonical;
+        final QuadTreeMaskInterner interner = internMasks ? new QuadTreeMaskInterner() : null;
+        try {
+            return this.optimize(this.handle, interruptable, interner);
+        } finally {
+            this.maskRecycler.recycle();
+            if (interner != null) {
+                Logging.debug("optimize() " + interner);
+            }
+        }
+    }
+
+    public int freezeIdleMasks(long minIdleMillis, boolean interruptable) throws InterruptedException {
+        return this.freezeIdleMasks(minIdleMillis, false, interruptable);
+    }
+
+    /**
+     *  Freezes the canonical masks which haven't been accessed for at least `minIdleMillis` into their compressed cold
+     *  form, to be thawed again as soon as they're next needed.
+     *
+     *  @param offHeap  Whether to hold the cold masks outside the java heap
+     *  @return number of masks frozen
+     */
+    public int freezeIdleMasks(
+        long minIdleMillis,
+        boolean offHeap,
+        boolean interruptable
+    ) throws InterruptedException {
+        assert this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
+        assert this.handle == QuadTreeNodePool.ROOT;
+
+        if (this.quadTreeMeta.persistent) {
+            // the latest version would keep every canonical mask readable regardless, so freezing would only add to
+            // what's held
+            return 0;
+        }
+        int frozenCount = 0;
+        for (int node = 0; node < this.pool.size(); node++) {
+            // deflating a mask takes long enough that checking before each is sufficient
+            if (interruptable
+                && (Thread.currentThread().isInterrupted() || this.quadTreeMeta.quadTreeRWLock.hasQueuedThreads())) {
+                throw new InterruptedException();
+            }
+            if (this.coldStore.freezeIfIdle(node, minIdleMillis, offHeap)) {
+                frozenCount++;
+            }
+        }
+        return frozenCount;
+    }
+
+    private QuadTreeMask optimize(
+        int node,
+        boolean interruptable,
+        QuadTreeMaskInterner interner  // null if not interning
+    ) throws InterruptedException {
+        assert !this.isBelowCanonical(node);
 
         if (interruptable) {
             // this is a safe place to abort the operation if it's better to defer to a more
@@ -565,33 +1237,51 @@ class QuadTreeNode {
             }
         }
 
-        if (this.canonicalMask != null) {
+        final QuadTreeMask canonicalMask = this.pool.getCanonicalMask(node);
+        if (canonicalMask != null) {
             // this is the canonical level. if we can determine that the canonicalMask could be switched
-            // for an aliasable one, do so and return that BufferedImage
-            if (this.canonicalMask == this.quadTreeMeta.FULL_MASK || this.canonicalMask == this.quadTreeMeta.EMPTY_MASK) {
-                return this.canonicalMask;
+            // for an aliasable one, do so and return that QuadTreeMask
+            if (canonicalMask == this.quadTreeMeta.FULL_MASK || canonicalMask == this.quadTreeMeta.EMPTY_MASK) {
+                return canonicalMask;
             }
-            if (masksEqual(this.canonicalMask, this.quadTreeMeta.FULL_MASK)) {
+            // constant-time checks thanks to the mask's tracked set-bit count
+            if (canonicalMask.isAllSet()) {
                 Logging.debug("optimize() setting canonical node as FULL_MASK");
-                this.canonicalMask = this.quadTreeMeta.FULL_MASK;
-                this.mask = new SoftReference<BufferedImage>(this.canonicalMask);
-                return this.canonicalMask;
+                this.setCanonicalMask(node, this.quadTreeMeta.FULL_MASK);
+                return this.quadTreeMeta.FULL_MASK;
             }
-            if (masksEqual(this.canonicalMask, this.quadTreeMeta.EMPTY_MASK)) {
+            if (canonicalMask.isAllClear()) {
                 Logging.debug("optimize() setting canonical node as EMPTY_MASK");
-                this.canonicalMask = this.quadTreeMeta.EMPTY_MASK;
-                this.mask = new SoftReference<BufferedImage>(this.canonicalMask);
-                return this.canonicalMask;
+                this.setCanonicalMask(node, this.quadTreeMeta.EMPTY_MASK);
+                return this.quadTreeMeta.EMPTY_MASK;
             }
 
-            // contents not aliasable
+            // contents not aliasable, but may well be stored more compactly
+            QuadTreeMask compactMask = canonicalMask;
+            if (canonicalMask.isPublished()) {
+                compactMask = canonicalMask.compactedCopy();
+                if (compactMask != null) {
+                    this.setCanonicalMask(node, compactMask);
+                } else {
+                    compactMask = canonicalMask;
+                }
+            } else {
+                canonicalMask.compact();
+            }
+            if (interner != null && !compactMask.isCold()) {
+                // or shared with other nodes having identical contents
+                final QuadTreeMask internedMask = interner.intern(compactMask);
+                if (internedMask != compactMask) {
+                    this.setCanonicalMask(node, internedMask);
+                }
+            }
             return null;
         } else {
             // continue to descend to canonical level, keeping note whether all children return the
-            // same aliasable BufferedImage
-            BufferedImage commonAliasable = null;
-            for (int i = 0; i < this.children.length; i++) {
-                BufferedImage childResult = this.children[i].optimize(interruptable);
+            // same aliasable QuadTreeMask
+            QuadTreeMask commonAliasable = null;
+            for (int i = 0; i < 4; i++) {
+                QuadTreeMask childResult = this.optimize(this.pool.getChild(node, i), interruptable, interner);
 
                 if (i == 0) {
                     // commonAliasable will be its initial null value anyway, overwrite.
@@ -606,33 +1296,154 @@ class QuadTreeNode {
             if (commonAliasable != null) {
                 // raise the canonical level to ourselves
                 Logging.debug("optimize() raising canonical level");
-                this.canonicalMask = commonAliasable;
-                this.mask = new SoftReference<BufferedImage>(this.canonicalMask);
-                this.setDescendantsBelowCanonical(false);
-                return this.canonicalMask;
+                this.setCanonicalMask(node, commonAliasable);
+                this.setDescendantsBelowCanonical(node, false);
+                return commonAliasable;
             } else {
                 return null;
             }
         }
     }
 
-    private void checkIntegrityInner(boolean recBelowCanonical, QuadTreeNode recParent) {
-        assert this.parent == recParent;
-        assert this.belowCanonical == recBelowCanonical;
-        if (this.belowCanonical) {
-            assert this.canonicalMask == null;
+    /** Saves the canonical contents of the quadtree to `path` in QuadTreeFile's format */
+    public void writeTo(Path path) throws IOException {
+        assert this.quadTreeMeta.quadTreeRWLock.getReadHoldCount() != 0
+            || this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
+        assert this.handle == QuadTreeNodePool.ROOT;
+
+        QuadTreeFile.write(
+            this.pool,
+            this.quadTreeMeta.tileSize,
+            this.quadTreeMeta.EMPTY_MASK,
+            this.quadTreeMeta.FULL_MASK,
+            path
+        );
+    }
+
+    /**
+     *  A copy of the canonical contents of the quadtree as they stand, for saving once the lock has been released - so
+     *  it costs a walk down to the canonical level plus a copy of each canonical mask that may yet be modified in
+     *  place. Cold masks, thawed in place, are given cold copies.
+     *
+     *  @return the root of the copy
+     */
+    QuadTreeSnapshot.Node copyCanonical() {
+        assert this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
+        assert this.handle == QuadTreeNodePool.ROOT;
+
+        return this.copyCanonical(this.handle);
+    }
+
+    private QuadTreeSnapshot.Node copyCanonical(int node) {
+        final QuadTreeMask canonicalMask = this.pool.getCanonicalMask(node);
+        if (canonicalMask == null) {
+            final QuadTreeSnapshot.Node[] children = new QuadTreeSnapshot.Node[4];
+            for (int i = 0; i < 4; i++) {
+                children[i] = this.copyCanonical(this.pool.getChild(node, i));
+            }
+            return new QuadTreeSnapshot.Node(children);
+        }
+        if (canonicalMask.isCold()) {
+            return new QuadTreeSnapshot.Node(canonicalMask.coldCopy());
+        }
+        if (canonicalMask.isImmutable()) {
+            return new QuadTreeSnapshot.Node(canonicalMask);
+        }
+        final QuadTreeMask copy = canonicalMask.copy();
+        copy.makeImmutable();
+        return new QuadTreeSnapshot.Node(copy);
+    }
+
+    /**
+     *  Loads a quadtree saved by writeTo into this one, which must not have been modified yet. Mask data is only read
+     *  from the file as each mask is first needed.
+     *
+     *  @return whether the file was loaded - false if it was saved with a different tile size
+     */
+    public boolean readFrom(Path path) throws IOException {
+        assert this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
+        assert this.handle == QuadTreeNodePool.ROOT;
+        if (this.pool.size() != 1 || this.pool.getCanonicalMask(this.handle) != this.quadTreeMeta.EMPTY_MASK) {
+            throw new IllegalStateException("Can only read a quadtree file into an unmodified quadtree");
+        }
+
+        final boolean read = QuadTreeFile.read(
+            this.pool,
+            this.quadTreeMeta.tileSize,
+            this.quadTreeMeta.EMPTY_MASK,
+            this.quadTreeMeta.FULL_MASK,
+            path
+        );
+        this.invalidateVersion(this.handle);
+        return read;
+    }
+
+    /**
+     *  Brings the latest version of a persistent quadtree up to date with the edits made since it was last called,
+     *  copying just the nodes on the paths to the canonical masks they changed - see QuadTreeSnapshot. Cold canonical
+     *  masks, e.g. those of a freshly loaded file, are left cold - the version getting a cold copy of its own, as ours
+     *  will be thawed in place.
+     *
+     *  @return the root of the latest version
+     */
+    QuadTreeSnapshot.Node commitVersion() {
+        assert this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
+        assert this.handle == QuadTreeNodePool.ROOT;
+        assert this.quadTreeMeta.persistent;
+
+        return this.commitVersion(this.handle);
+    }
+
+    private QuadTreeSnapshot.Node commitVersion(int node) {
+        QuadTreeSnapshot.Node versionNode = this.pool.getVersionNode(node);
+        if (versionNode != null) {
+            // unchanged, so shared with the previous version
+            return versionNode;
+        }
+        final QuadTreeMask canonicalMask = this.pool.getCanonicalMask(node);
+        if (canonicalMask != null) {
+            versionNode = new QuadTreeSnapshot.Node(canonicalMask.isCold() ? canonicalMask.coldCopy() : canonicalMask);
+        } else {
+            final QuadTreeSnapshot.Node[] children = new QuadTreeSnapshot.Node[4];
+            for (int i = 0; i < 4; i++) {
+                children[i] = this.commitVersion(this.pool.getChild(node, i));
+            }
+            versionNode = new QuadTreeSnapshot.Node(children);
+        }
+        this.pool.setVersionNode(node, versionNode);
+        return versionNode;
+    }
+
+    private void checkIntegrityInner(int node, boolean recBelowCanonical, int recParent) {
+        assert this.pool.getParent(node) == recParent;
+        assert this.isBelowCanonical(node) == recBelowCanonical;
+        final QuadTreeMask canonicalMask = this.pool.getCanonicalMask(node);
+        if (this.isBelowCanonical(node)) {
+            assert canonicalMask == null;
+        }
+        assert canonicalMask == null || canonicalMask.checkCardinality();
+        final QuadTreeSnapshot.Node versionNode = this.pool.getVersionNode(node);
+        if (versionNode != null) {
+            // a version node must still represent its node as it is
+            assert !this.isBelowCanonical(node);
+            assert canonicalMask != null
+                ? versionNode.mask == canonicalMask
+                    || (versionNode.mask.isCold() && versionNode.mask.cardinality() == canonicalMask.cardinality())
+                : versionNode.children != null;
         }
-        for (int i = 0; i < this.children.length; i++) {
-            QuadTreeNode child = this.getChild(i, false);
-            if (child == null) {
-                assert !this.isAboveCanonical();
+        for (int i = 0; i < 4; i++) {
+            final int child = this.pool.getChild(node, i);
+            if (child == QuadTreeNodePool.NONE) {
+                assert !this.isAboveCanonical(node);
             } else {
-                child.checkIntegrityInner(this.belowCanonical || (this.canonicalMask != null), this);
+                assert this.pool.getChildIndex(child) == i;
+                this.checkIntegrityInner(child, this.isBelowCanonical(node) || (canonicalMask != null), node);
             }
         }
     }
 
     public void checkIntegrity() {
-        this.checkIntegrityInner(false, null);
+        assert this.handle == QuadTreeNodePool.ROOT;
+        this.checkIntegrityInner(this.handle, false, QuadTreeNodePool.NONE);
     }
 }
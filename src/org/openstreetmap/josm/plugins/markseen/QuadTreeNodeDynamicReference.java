@@ -1,20 +1,18 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.markseen;
 
-import java.awt.image.BufferedImage;
-
-import java.lang.ref.WeakReference;
+import java.util.function.BiFunction;
 import java.util.function.Function;
 
 import org.openstreetmap.gui.jmapviewer.Tile;
 
 /**
-*  The idea of this being a "dynamic reference" is that, given a tile's x/y/z, could keep a memo to that QuadTreeNode
-*  while still allowing it to be garbage-collected if it became defunct. In such a case it would be able to re-fetch
-*  a current QuadTreeNode.
+*  The idea of this being a "dynamic reference" is that, given a tile's x/y/z, it can keep a memo to that tile's
+*  QuadTreeNode, saving a descent from the root on each access. Nodes are never removed from a quadtree so, once found,
+*  the memo remains valid.
 */
-class QuadTreeNodeDynamicReference {
-    private WeakReference<QuadTreeNode> quadTreeNodeMemo;
+class QuadTreeNodeDynamicReference implements QuadTreeMaskSource.TileReference {
+    private QuadTreeNode quadTreeNodeMemo;
     private final QuadTreeMeta quadTreeMeta;
     private final Tile tile;
 
@@ -24,14 +22,10 @@ class QuadTreeNodeDynamicReference {
     }
 
     public QuadTreeNode getQuadTreeNode(boolean write) {
-        QuadTreeNode node;
         if (this.quadTreeNodeMemo != null) {
-            node = this.quadTreeNodeMemo.get();
-            if (node != null) {
-                return node;
-            }
+            return this.quadTreeNodeMemo;
         }
-        node = this.quadTreeMeta.quadTreeRoot.getNodeForTile(
+        QuadTreeNode node = this.quadTreeMeta.quadTreeRoot.getNodeForTile(
             this.tile.getXtile(),
             this.tile.getYtile(),
             this.tile.getZoom(),
@@ -41,19 +35,57 @@ class QuadTreeNodeDynamicReference {
             // there's nothing more we can do without write access
             return null;
         }
-        this.quadTreeNodeMemo = new WeakReference<QuadTreeNode>(node);
+        this.quadTreeNodeMemo = node;
         return node;
     }
 
-    public <R> R maskReadOperation(Function<BufferedImage, R> operation) {
+    /**
+     *  Performs `operation` without taking any lock, passing it the current QuadTreeNode mask & that mask's version as
+     *  they were at a moment the tree wasn't being written to, confirmed with an optimistic read of quadTreeRWLock.
+     *  Such a read doesn't contend with anything else using the lock, so is immune to a busy edit thread. The mask may
+     *  however be modified at any time once `operation` has it, so `operation` mustn't look at its contents - it's
+     *  intended for checking whether something previously derived from the mask is still current. The exception is
+     *  with immutableMasks, where the mask is never modified at all.
+     *
+     *  @return the result of `operation`, or null if no consistent snapshot could be taken without locking - e.g.
+     *          because the tree was written to meanwhile or the mask would have to be constructed first - in which
+     *          case `operation` wasn't performed
+     */
+    @Override
+    public <R> R optimisticMaskReadOperation(BiFunction<QuadTreeMask, Integer, R> operation) {
+        final long stamp = this.quadTreeMeta.quadTreeRWLock.tryOptimisticRead();
+        // the memo is only ever written under the lock, so this is no less racy than the rest
+        final QuadTreeNode node = this.quadTreeNodeMemo;
+        if (stamp == 0 || node == null) {
+            return null;
+        }
+        final QuadTreeMask mask_ = node.peekMask();
+        final int version = mask_ != null ? mask_.getVersion() : 0;
+        if (mask_ == null || !this.quadTreeMeta.quadTreeRWLock.validate(stamp)) {
+            return null;
+        }
+        return operation.apply(mask_, version);
+    }
+
+    @Override
+    public <R> R maskReadOperation(Function<QuadTreeMask, R> operation) {
         return this.maskReadOperation(operation, false);
     }
 
     /**
      *  Performs minimal amount of locking required to be able to perform `operation`, a function which accepts the
-     *  current QuadTreeNode mask as an argument and releases the lock(s) afterwards.
+     *  current QuadTreeNode mask as an argument and releases the lock(s) afterwards. With immutableMasks the lock is
+     *  only held while getting hold of the mask, possibly not at all, `operation` being performed after its release.
      */
-    public <R> R maskReadOperation(Function<BufferedImage, R> operation, boolean checkIntegrity) {
+    public <R> R maskReadOperation(Function<QuadTreeMask, R> operation, boolean checkIntegrity) {
+        if (this.quadTreeMeta.immutableMasks && !checkIntegrity) {
+            final QuadTreeMask publishedMask = this.optimisticMaskReadOperation((mask, version) -> mask);
+            if (publishedMask != null) {
+                assert publishedMask.isImmutable();
+                return operation.apply(publishedMask);
+            }
+        }
+
         // attempt with read-lock first
         this.quadTreeMeta.quadTreeRWLock.readLock().lock();
         QuadTreeNode node = this.getQuadTreeNode(false);
@@ -66,27 +98,30 @@ class QuadTreeNodeDynamicReference {
         }
 
         // if we already have the write-lock we won't drop it - it's likely we'll need the write-lock to perform
-        // getMask if this tile didn't previously have a valid quadTreeNodeMemo
-        BufferedImage mask_ = node.getMask(
-            this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread(),
-            this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread()
-        );
+        // getMask if this tile didn't previously have a valid quadTreeNodeMemo. otherwise a missing mask is built
+        // under the read-lock, alongside other readers building theirs
+        QuadTreeMask mask_ = node.getMask(this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread(), true);
         if (mask_ == null) {
             // this should only have been possible if we hadn't already taken the write-lock
             assert !this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread();
-            // operation could not be performed with only a read-lock, we'll have to drop the read-lock and
-            // reacquire with write lock so that any required resources can be created or modified
+            // the mask could not be built with only a read-lock, e.g. needing a cold mask thawing, we'll have to drop
+            // the read-lock and reacquire with write lock so that any required resources can be created or modified
             this.quadTreeMeta.quadTreeRWLock.readLock().unlock();
             this.quadTreeMeta.quadTreeRWLock.writeLock().lock();
             mask_ = node.getMask(true, true);
         }
 
         try {
-            R r = operation.apply(mask_);
+            if (!this.quadTreeMeta.immutableMasks) {
+                R r = operation.apply(mask_);
+                if (checkIntegrity) {
+                    this.quadTreeMeta.quadTreeRoot.checkIntegrity();
+                }
+                return r;
+            }
             if (checkIntegrity) {
                 this.quadTreeMeta.quadTreeRoot.checkIntegrity();
             }
-            return r;
         } finally {
             // release whichever lock we had
             if (this.quadTreeMeta.quadTreeRWLock.isWriteLockedByCurrentThread()) {
@@ -95,5 +130,8 @@ class QuadTreeNodeDynamicReference {
                 this.quadTreeMeta.quadTreeRWLock.readLock().unlock();
             }
         }
+        // the mask will never be modified now, so needs no lock to be used
+        assert mask_.isImmutable();
+        return operation.apply(mask_);
     }
 }
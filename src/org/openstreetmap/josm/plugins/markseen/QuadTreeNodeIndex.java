@@ -0,0 +1,112 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+/**
+ *  An open-addressing hash map from a tile's Morton key to the handle of its node in a QuadTreeNodePool.
+ *
+ *  A tile's Morton key interleaves the bits of its x & y coordinates, x occupying the even bits, below a single
+ *  "sentinel" bit at position 2*zoom which both distinguishes tiles of different zooms and means a child's key is
+ *  simply its parent's shifted left by two with its z-order childIndex in the low bits. The root's key is 1.
+ *
+ *  Like its pool, may only be modified while holding the quadtree's write-lock.
+ */
+class QuadTreeNodeIndex {
+    static final long ROOT_KEY = 1L;
+    /** Never a valid key, so can mark empty slots */
+    private static final long EMPTY = 0L;
+
+    private static final int INITIAL_CAPACITY = 128;
+
+    private long[] keys;
+    private int[] handles;
+    private int count;
+
+    QuadTreeNodeIndex() {
+        this.keys = new long[INITIAL_CAPACITY];
+        this.handles = new int[INITIAL_CAPACITY];
+    }
+
+    /** Spreads the low 32 bits of `v` out into the even bits of a long */
+    private static long spreadBits(int v) {
+        long x = v & 0xFFFFFFFFL;
+        x = (x | (x << 16)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x << 8)) & 0x00FF00FF00FF00FFL;
+        x = (x | (x << 4)) & 0x0F0F0F0F0F0F0F0FL;
+        x = (x | (x << 2)) & 0x3333333333333333L;
+        x = (x | (x << 1)) & 0x5555555555555555L;
+        return x;
+    }
+
+    static long tileKey(int xtile, int ytile, int zoom) {
+        assert 0 <= zoom && zoom < 32;
+        assert 0 <= xtile && xtile < (1L << zoom) && 0 <= ytile && ytile < (1L << zoom);
+        return (1L << (2 * zoom)) | spreadBits(xtile) | (spreadBits(ytile) << 1);
+    }
+
+    static long childKey(long parentKey, int childIndex) {
+        return (parentKey << 2) | childIndex;
+    }
+
+    /** Key of the ancestor `levels` levels above the tile with the given key */
+    static long ancestorKey(long key, int levels) {
+        return key >>> (2 * levels);
+    }
+
+    private int slotFor(long key) {
+        // fibonacci hashing - the low bits of keys are far from uniformly distributed
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> (64 - Integer.numberOfTrailingZeros(this.keys.length)));
+    }
+
+    /** @return handle of the node with the given key, or QuadTreeNodePool.NONE if absent */
+    int get(long key) {
+        final int mask = this.keys.length - 1;
+        for (int slot = this.slotFor(key);; slot = (slot + 1) & mask) {
+            final long slotKey = this.keys[slot];
+            if (slotKey == key) {
+                return this.handles[slot];
+            } else if (slotKey == EMPTY) {
+                return QuadTreeNodePool.NONE;
+            }
+        }
+    }
+
+    void put(long key, int handle) {
+        assert key != EMPTY;
+        // keep the load factor at or below one half
+        if (2 * (this.count + 1) > this.keys.length) {
+            this.rehash(this.keys.length * 2);
+        }
+        if (this.insert(key, handle)) {
+            this.count++;
+        }
+    }
+
+    /** @return whether the key was newly added */
+    private boolean insert(long key, int handle) {
+        final int mask = this.keys.length - 1;
+        for (int slot = this.slotFor(key);; slot = (slot + 1) & mask) {
+            final long slotKey = this.keys[slot];
+            if (slotKey == EMPTY || slotKey == key) {
+                this.keys[slot] = key;
+                this.handles[slot] = handle;
+                return slotKey == EMPTY;
+            }
+        }
+    }
+
+    private void rehash(int newCapacity) {
+        final long[] oldKeys = this.keys;
+        final int[] oldHandles = this.handles;
+        this.keys = new long[newCapacity];
+        this.handles = new int[newCapacity];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != EMPTY) {
+                this.insert(oldKeys[i], oldHandles[i]);
+            }
+        }
+    }
+
+    int size() {
+        return this.count;
+    }
+}
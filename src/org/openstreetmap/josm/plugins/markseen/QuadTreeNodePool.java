@@ -0,0 +1,203 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ *  Struct-of-arrays storage for the nodes of a quadtree. Rather than each node being an object holding references to
+ *  its parent, a children array and its masks, a node is an int handle indexing into a handful of parallel arrays. This
+ *  does away with two object headers and a number of pointers per node and keeps descents through the tree within a
+ *  few dense arrays rather than chasing objects scattered across the heap.
+ *
+ *  Nodes are never removed from a quadtree (see QuadTreeNode.clear()), so handles remain valid for the lifetime of the
+ *  pool and there is nothing that a free list could recycle.
+ *
+ *  Each node is also registered in a QuadTreeNodeIndex by its Morton key, allowing a tile's node (or its nearest
+ *  existing ancestor) to be found without descending from the root.
+ *
+ *  The pool may only be modified while holding the quadtree's write-lock - readers holding the read-lock may access it
+ *  concurrently. The exception is nodes' derived masks & dirty flags, which readers building derived masks may also
+ *  modify while holding QuadTreeNode's mask build monitor. Both are written with release semantics, a derived mask
+ *  always being installed before its dirty flag is cleared, so that optimistic readers holding no lock or monitor at
+ *  all can use getMaskAcquire & hasFlagAcquire to see a clear flag only alongside the mask it was cleared for.
+ */
+class QuadTreeNodePool {
+    /** Denotes the absence of a node, e.g. an unallocated child or the root's parent */
+    static final int NONE = -1;
+    static final int ROOT = 0;
+
+    static final int FLAG_BELOW_CANONICAL = 1;
+    static final int FLAG_DIRTY = 1 << 1;
+    // bits 2-3 of a node's flags hold its index in its parent's children
+    private static final int CHILD_INDEX_SHIFT = 2;
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private static final VarHandle FLAGS = MethodHandles.arrayElementVarHandle(byte[].class);
+    private static final VarHandle MASKS = MethodHandles.arrayElementVarHandle(QuadTreeMask[].class);
+
+    /** Four per node, listed in z-order, x-minor */
+    private int[] children;
+    private int[] parents;
+    private byte[] flags;
+    private QuadTreeMask[] canonicalMasks;
+    /** The most recently built mask of each node, which for canonical nodes is the canonical mask itself */
+    private QuadTreeMask[] masks;
+    private long[] keys;
+    /** When each node's canonical mask was last accessed, in QuadTreeMaskColdStore's clock */
+    private int[] lastAccessed;
+    /**
+     *  For persistent quadtrees, the node of the latest version representing each node at or above the canonical
+     *  level, null if it has changed since - see QuadTreeSnapshot
+     */
+    private QuadTreeSnapshot.Node[] versionNodes;
+
+    private final QuadTreeNodeIndex index = new QuadTreeNodeIndex();
+
+    private int count;
+
+    QuadTreeNodePool() {
+        this.children = new int[4 * INITIAL_CAPACITY];
+        Arrays.fill(this.children, NONE);
+        this.parents = new int[INITIAL_CAPACITY];
+        this.flags = new byte[INITIAL_CAPACITY];
+        this.canonicalMasks = new QuadTreeMask[INITIAL_CAPACITY];
+        this.masks = new QuadTreeMask[INITIAL_CAPACITY];
+        this.keys = new long[INITIAL_CAPACITY];
+        this.lastAccessed = new int[INITIAL_CAPACITY];
+        this.versionNodes = new QuadTreeSnapshot.Node[INITIAL_CAPACITY];
+
+        // the root
+        this.parents[ROOT] = NONE;
+        this.keys[ROOT] = QuadTreeNodeIndex.ROOT_KEY;
+        this.index.put(QuadTreeNodeIndex.ROOT_KEY, ROOT);
+        this.count = 1;
+    }
+
+    private void grow() {
+        final int oldCapacity = this.parents.length;
+        final int newCapacity = oldCapacity * 2;
+        this.children = Arrays.copyOf(this.children, 4 * newCapacity);
+        Arrays.fill(this.children, 4 * oldCapacity, 4 * newCapacity, NONE);
+        this.parents = Arrays.copyOf(this.parents, newCapacity);
+        this.flags = Arrays.copyOf(this.flags, newCapacity);
+        this.canonicalMasks = Arrays.copyOf(this.canonicalMasks, newCapacity);
+        this.masks = Arrays.copyOf(this.masks, newCapacity);
+        this.keys = Arrays.copyOf(this.keys, newCapacity);
+        this.lastAccessed = Arrays.copyOf(this.lastAccessed, newCapacity);
+        this.versionNodes = Arrays.copyOf(this.versionNodes, newCapacity);
+    }
+
+    /** Allocates a new node with no flags set or masks, linking it in as child `childIndex` of `parent` */
+    int allocate(int parent, int childIndex) {
+        assert this.children[(4 * parent) + childIndex] == NONE;
+        if (this.count == this.parents.length) {
+            this.grow();
+        }
+        final int node = this.count++;
+        this.parents[node] = parent;
+        this.flags[node] = (byte) (childIndex << CHILD_INDEX_SHIFT);
+        this.children[(4 * parent) + childIndex] = node;
+        this.keys[node] = QuadTreeNodeIndex.childKey(this.keys[parent], childIndex);
+        this.index.put(this.keys[node], node);
+        return node;
+    }
+
+    /** @return handle of the node with Morton key `key`, or NONE if it doesn't exist */
+    int findNode(long key) {
+        return this.index.get(key);
+    }
+
+    /**
+     *  Number of levels above the tile with Morton key `key` (at `zoom`) that its nearest existing ancestor-or-self
+     *  lies. A node is only ever created after all of its ancestors, so existence is monotonic over the levels of a
+     *  tile's ancestry and this can binary search them, rather than stepping up a level at a time.
+     */
+    int findNearestExistingLevels(long key, int zoom) {
+        // the root always exists
+        int low = 0;
+        int high = zoom;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (this.index.get(QuadTreeNodeIndex.ancestorKey(key, mid)) != NONE) {
+                high = mid;
+            } else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    /** Number of nodes allocated */
+    int size() {
+        return this.count;
+    }
+
+    int getChild(int node, int childIndex) {
+        return this.children[(4 * node) + childIndex];
+    }
+
+    int getParent(int node) {
+        return this.parents[node];
+    }
+
+    /** The node's position in its parent's children */
+    int getChildIndex(int node) {
+        assert node != ROOT;
+        return (this.flags[node] >>> CHILD_INDEX_SHIFT) & 3;
+    }
+
+    boolean hasFlag(int node, int flag) {
+        return (this.flags[node] & flag) != 0;
+    }
+
+    /** As hasFlag, but with acquire semantics - see class comment */
+    boolean hasFlagAcquire(int node, int flag) {
+        return ((byte) FLAGS.getAcquire(this.flags, node) & flag) != 0;
+    }
+
+    void setFlag(int node, int flag, boolean value) {
+        final byte oldFlags = this.flags[node];
+        FLAGS.setRelease(this.flags, node, (byte) (value ? oldFlags | flag : oldFlags & ~flag));
+    }
+
+    QuadTreeMask getCanonicalMask(int node) {
+        return this.canonicalMasks[node];
+    }
+
+    void setCanonicalMask(int node, QuadTreeMask canonicalMask) {
+        this.canonicalMasks[node] = canonicalMask;
+    }
+
+    QuadTreeMask getMask(int node) {
+        return this.masks[node];
+    }
+
+    /** As getMask, but with acquire semantics - see class comment */
+    QuadTreeMask getMaskAcquire(int node) {
+        return (QuadTreeMask) MASKS.getAcquire(this.masks, node);
+    }
+
+    void setMask(int node, QuadTreeMask mask) {
+        MASKS.setRelease(this.masks, node, mask);
+    }
+
+    int getLastAccessed(int node) {
+        return this.lastAccessed[node];
+    }
+
+    /** Unlike other modifications, may be made by readers holding only the read-lock - a lost update is harmless */
+    void setLastAccessed(int node, int time) {
+        this.lastAccessed[node] = time;
+    }
+
+    QuadTreeSnapshot.Node getVersionNode(int node) {
+        return this.versionNodes[node];
+    }
+
+    void setVersionNode(int node, QuadTreeSnapshot.Node versionNode) {
+        this.versionNodes[node] = versionNode;
+    }
+}
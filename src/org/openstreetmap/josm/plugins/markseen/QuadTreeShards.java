@@ -0,0 +1,372 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.awt.Color;
+import java.awt.image.IndexColorModel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+import org.openstreetmap.gui.jmapviewer.OsmMercator;
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.tools.Logging;
+
+/**
+ *  The world split into the 4^shardZoom tiles at shardZoom, each region having a quadtree - a "shard" - of its own
+ *  with its own lock & edit thread, so that edits to distant regions needn't wait for one another and readers are only
+ *  held up by edits to the region they're reading. Each shard is a complete QuadTreeMeta which simply never draws
+ *  anything outside its region, created the first time anything is marked in it.
+ *
+ *  The shards share a single pair of constant masks, and split the derived mask cache budget between them - evenly
+ *  among those that exist so far. Their threads, like those of any QuadTreeMeta, only last while they have work.
+ *
+ *  Tiles at or below shardZoom are read straight from the shard they lie in. Tiles above it span several shards, so
+ *  their masks are combined from those of the shards created under them so far - which are indexed by each of their
+ *  ancestor tiles - exactly, the tile size being required to be a multiple of the number of shards across, so that no
+ *  pixel at any zoom straddles two shards. Each tile's combined mask is kept until one of those shards' masks changes.
+ *
+ *  Used by MarkSeenRoot in place of a single QuadTreeMeta when markseen.shardZoom is set. A sharded quadtree has
+ *  neither a file format nor a journal of its own - each shard's saves & journal records being consistent only with
+ *  themselves - so its seen areas aren't kept across restarts.
+ */
+public class QuadTreeShards implements QuadTreeMaskSource {
+    public final int tileSize;
+    public final int shardZoom;
+
+    private final Color maskColor;
+    private final double maskOpacity;
+    private final boolean autoOptimize;
+    private final int maskReductionThreshold;
+    private final long maskCacheBytes;
+    private final OsmMercator merc;
+    private final QuadTreeMask EMPTY_MASK;
+    private final QuadTreeMask FULL_MASK;
+    private final IndexColorModel maskColorModel;
+
+    /** Keyed by (y << shardZoom) | x */
+    private final Map<Integer, QuadTreeMeta> shards = new ConcurrentHashMap<>();
+    /** The shards under each tile above shardZoom, keyed by ancestorKey */
+    private final Map<Integer, List<QuadTreeMeta>> shardsByAncestor = new ConcurrentHashMap<>();
+    private volatile int maxLockHoldMillis = -1;
+    /** Applied to every shard, present & future */
+    private final List<QuadTreeMeta.QuadTreeModifiedListener> modifiedListeners = new CopyOnWriteArrayList<>();
+
+    /** The shards are set up as per `options`, the mask cache budget being the total for all of them */
+    public QuadTreeShards(QuadTreeMeta.Options options, int shardZoom_) {
+        if (shardZoom_ < 0 || shardZoom_ > 15 || options.tileSize % (1 << shardZoom_) != 0) {
+            throw new IllegalArgumentException("tileSize must be a multiple of the number of shards across");
+        }
+        if (options.immutableMasks || options.persistent) {
+            throw new IllegalArgumentException("Shards can't have immutable masks or be persistent");
+        }
+        this.tileSize = options.tileSize;
+        this.maskColor = options.maskColor;
+        this.maskOpacity = options.maskOpacity;
+        this.autoOptimize = options.autoOptimize;
+        this.maskReductionThreshold = options.maskReductionThreshold;
+        this.maskCacheBytes = options.maskCacheBytes;
+        this.shardZoom = shardZoom_;
+        this.merc = new OsmMercator(this.tileSize);
+        this.EMPTY_MASK = QuadTreeMask.newConstant(this.tileSize, false);
+        this.FULL_MASK = QuadTreeMask.newConstant(this.tileSize, true);
+        this.maskColorModel = QuadTreeMeta.newMaskColorModel(this.maskColor, this.maskOpacity);
+    }
+
+    private QuadTreeMeta getShard(int shardX, int shardY) {
+        final int key = (shardY << this.shardZoom) | shardX;
+        final QuadTreeMeta shard = this.shards.get(key);
+        if (shard != null) {
+            return shard;
+        }
+        // built outside the map, so as not to hold up anyone else using it while we do
+        final QuadTreeMeta newShard = new QuadTreeMeta(
+            new QuadTreeMeta.Options(this.tileSize, this.maskColor, this.maskOpacity)
+                .autoOptimize(this.autoOptimize)
+                .maskReductionThreshold(this.maskReductionThreshold)
+                .maskCacheBytes(this.maskCacheBytes / (this.shards.size() + 1))
+                .shard(this.shardZoom, shardX, shardY, this.EMPTY_MASK, this.FULL_MASK)
+        );
+        final QuadTreeMeta existingShard = this.shards.putIfAbsent(key, newShard);
+        if (existingShard != null) {
+            // somebody else beat us to it
+            newShard.shutdown();
+            return existingShard;
+        }
+
+        // anything set meanwhile is applied to the newcomer by the setter itself, having been published by now
+        newShard.setMaxLockHoldMillis(this.maxLockHoldMillis);
+        for (QuadTreeMeta.QuadTreeModifiedListener listener : this.modifiedListeners) {
+            newShard.addModifiedListener(listener);
+        }
+        for (int depth = 1; depth <= this.shardZoom; depth++) {
+            this.shardsByAncestor.computeIfAbsent(
+                ancestorKey(this.shardZoom - depth, shardX >>> depth, shardY >>> depth),
+                ancestorKey -> new CopyOnWriteArrayList<>()
+            ).add(newShard);
+        }
+        // the others give up their share of the budget for the newcomer's as & when they next cache a mask
+        final long shardMaskCacheBytes = this.maskCacheBytes / this.shards.size();
+        for (QuadTreeMeta otherShard : this.shards.values()) {
+            otherShard.quadTreeRoot.getMaskCache().setBudgetBytesLazily(shardMaskCacheBytes);
+        }
+        return newShard;
+    }
+
+    /** A key unique to the tile at `zoom` (at most 15), `xtile`, `ytile`, numbering the tiles zoom by zoom */
+    private static int ancestorKey(int zoom, int xtile, int ytile) {
+        return (((1 << (2 * zoom)) - 1) / 3) + ((ytile << zoom) | xtile);
+    }
+
+    /** The shards created so far */
+    Collection<QuadTreeMeta> getShards() {
+        return Collections.unmodifiableCollection(this.shards.values());
+    }
+
+    /**
+     *  Groups `bounds` by the shards they touch, as judged by the rects they'd actually be drawn as
+     */
+    private Map<QuadTreeMeta, List<Bounds>> route(Collection<Bounds> bounds, double minTilesAcross) {
+        final Map<QuadTreeMeta, List<Bounds>> routed = new HashMap<>();
+        final double[] rect = new double[4];
+        final double scale = (double) (1 << this.shardZoom) / this.tileSize;
+        final int shardsAcross = 1 << this.shardZoom;
+        for (Bounds bbox : bounds) {
+            try {
+                QuadTreeNode.snapBounds(bbox, minTilesAcross, this.tileSize, this.merc, rect, 0);
+            } catch (QuadTreeNode.ExtremeAspectRatioException e) {
+                Logging.warn(e.getMessage());
+                continue;
+            }
+            final int sx0 = Math.max(0, (int) Math.floor(rect[0] * scale));
+            final int sy0 = Math.max(0, (int) Math.floor(rect[1] * scale));
+            final int sx1 = Math.min(shardsAcross, (int) Math.ceil(rect[2] * scale));
+            final int sy1 = Math.min(shardsAcross, (int) Math.ceil(rect[3] * scale));
+            for (int sy = sy0; sy < sy1; sy++) {
+                for (int sx = sx0; sx < sx1; sx++) {
+                    routed.computeIfAbsent(this.getShard(sx, sy), shard -> new ArrayList<>()).add(bbox);
+                }
+            }
+        }
+        return routed;
+    }
+
+    @Override
+    public void requestSeenBoundsMark(Bounds bounds, double minTilesAcross) {
+        this.requestSeenBoundsMark(bounds, minTilesAcross, false);
+    }
+
+    public void requestSeenBoundsMark(Bounds bounds, double minTilesAcross, boolean checkIntegrity) {
+        for (QuadTreeMeta shard : this.route(Collections.singletonList(bounds), minTilesAcross).keySet()) {
+            shard.requestSeenBoundsMark(bounds, minTilesAcross, checkIntegrity);
+        }
+    }
+
+    /**
+     *  Requests all of `bounds` be marked seen, as a single edit to each shard they touch
+     */
+    public void requestSeenBoundsMarkBatch(Collection<Bounds> bounds, double minTilesAcross) {
+        this.requestSeenBoundsMarkBatch(bounds, minTilesAcross, false);
+    }
+
+    public void requestSeenBoundsMarkBatch(Collection<Bounds> bounds, double minTilesAcross, boolean checkIntegrity) {
+        for (Map.Entry<QuadTreeMeta, List<Bounds>> entry : this.route(bounds, minTilesAcross).entrySet()) {
+            entry.getKey().requestSeenBoundsMarkBatch(entry.getValue(), minTilesAcross, checkIntegrity);
+        }
+    }
+
+    @Override
+    public void requestClear() {
+        for (QuadTreeMeta shard : this.shards.values()) {
+            shard.requestClear();
+        }
+    }
+
+    /** Applies QuadTreeMeta.setMaxLockHoldMillis to every shard, present & future */
+    @Override
+    public void setMaxLockHoldMillis(int millis) {
+        this.maxLockHoldMillis = millis;
+        for (QuadTreeMeta shard : this.shards.values()) {
+            shard.setMaxLockHoldMillis(millis);
+        }
+    }
+
+    public void awaitIdle() throws InterruptedException {
+        for (QuadTreeMeta shard : this.shards.values()) {
+            shard.awaitIdle();
+        }
+    }
+
+    @Override
+    public void addModifiedListener(QuadTreeMeta.QuadTreeModifiedListener modifiedListener) {
+        this.modifiedListeners.add(modifiedListener);
+        for (QuadTreeMeta shard : this.shards.values()) {
+            shard.addModifiedListener(modifiedListener);
+        }
+    }
+
+    @Override
+    public QuadTreeMaskSource.TileReference getTileReference(Tile tile) {
+        return new ShardedTileReference(tile);
+    }
+
+    @Override
+    public QuadTreeMask getEmptyMask() {
+        return this.EMPTY_MASK;
+    }
+
+    @Override
+    public IndexColorModel getMaskColorModel() {
+        return this.maskColorModel;
+    }
+
+    /**
+     *  A tile's reference into the shards. Tiles at or below shardZoom just use a QuadTreeNodeDynamicReference into
+     *  the shard they lie in, once it exists. Tiles spanning several shards keep one into each of the shards under
+     *  them, and the mask combined from theirs, which is only rebuilt once any of those has changed - as judged by
+     *  their identities & versions. A combined mask is never modified once built, so readers are free to hold onto it.
+     */
+    private final class ShardedTileReference implements QuadTreeMaskSource.TileReference {
+        private final Tile tile;
+        private final int depth;
+        /** The shards under the tile so far, in the order they were created */
+        private final List<QuadTreeMeta> tileShards;
+        /** One for each of tileShards the reference has caught up with */
+        private QuadTreeNodeDynamicReference[] references = new QuadTreeNodeDynamicReference[0];
+
+        // the latest combined mask, and the masks & their versions it was built from. all guarded by `this`
+        private QuadTreeMask combinedMask;
+        private QuadTreeMask[] combinedSources = new QuadTreeMask[0];
+        private int[] combinedVersions = new int[0];
+
+        ShardedTileReference(Tile tile_) {
+            this.tile = tile_;
+            this.depth = tile_.getZoom() - QuadTreeShards.this.shardZoom;
+            if (this.depth >= 0) {
+                this.tileShards = null;
+            } else {
+                this.tileShards = QuadTreeShards.this.shardsByAncestor.computeIfAbsent(
+                    ancestorKey(tile_.getZoom(), tile_.getXtile(), tile_.getYtile()),
+                    ancestorKey -> new CopyOnWriteArrayList<>()
+                );
+            }
+        }
+
+        /** @return a reference into each of the shards under the tile as things stand */
+        private synchronized QuadTreeNodeDynamicReference[] getReferences() {
+            if (this.depth >= 0) {
+                if (this.references.length == 0) {
+                    final QuadTreeMeta shard = QuadTreeShards.this.shards.get(
+                        ((this.tile.getYtile() >>> this.depth) << QuadTreeShards.this.shardZoom)
+                        | (this.tile.getXtile() >>> this.depth)
+                    );
+                    if (shard != null) {
+                        this.references = new QuadTreeNodeDynamicReference[] {
+                            new QuadTreeNodeDynamicReference(shard, this.tile)
+                        };
+                    }
+                }
+                return this.references;
+            }
+            // shards are only ever appended
+            final int shardCount = this.tileShards.size();
+            if (this.references.length < shardCount) {
+                final int oldLength = this.references.length;
+                this.references = Arrays.copyOf(this.references, shardCount);
+                for (int i = oldLength; i < shardCount; i++) {
+                    this.references[i] = new QuadTreeNodeDynamicReference(this.tileShards.get(i), this.tile);
+                }
+            }
+            return this.references;
+        }
+
+        /** @return the combined mask if it's still current as far as an optimistic read of each shard can tell */
+        private QuadTreeMask getCurrentCombinedMask(QuadTreeNodeDynamicReference[] references_) {
+            final QuadTreeMask combinedMask_;
+            final QuadTreeMask[] sources;
+            final int[] versions;
+            synchronized (this) {
+                combinedMask_ = this.combinedMask;
+                sources = this.combinedSources;
+                versions = this.combinedVersions;
+            }
+            if (combinedMask_ == null || sources.length != references_.length) {
+                return null;
+            }
+            for (int i = 0; i < references_.length; i++) {
+                final int i_ = i;
+                final Boolean current = references_[i].optimisticMaskReadOperation(
+                    (mask, version) -> mask == sources[i_] && version == versions[i_]
+                );
+                if (current == null || !current) {
+                    return null;
+                }
+            }
+            return combinedMask_;
+        }
+
+        @Override
+        public <R> R optimisticMaskReadOperation(BiFunction<QuadTreeMask, Integer, R> operation) {
+            final QuadTreeNodeDynamicReference[] references_ = this.getReferences();
+            if (references_.length == 0) {
+                return operation.apply(QuadTreeShards.this.EMPTY_MASK, 0);
+            }
+            if (references_.length == 1) {
+                return references_[0].optimisticMaskReadOperation(operation);
+            }
+            final QuadTreeMask combinedMask_ = this.getCurrentCombinedMask(references_);
+            if (combinedMask_ == null) {
+                return null;
+            }
+            return operation.apply(combinedMask_, combinedMask_.getVersion());
+        }
+
+        /**
+         *  With the same locking as QuadTreeNodeDynamicReference's maskReadOperation - of just the one shard or, when
+         *  the combined mask has to be rebuilt, each of the tile's shards in turn
+         */
+        @Override
+        public <R> R maskReadOperation(Function<QuadTreeMask, R> operation) {
+            final QuadTreeNodeDynamicReference[] references_ = this.getReferences();
+            if (references_.length == 0) {
+                return operation.apply(QuadTreeShards.this.EMPTY_MASK);
+            }
+            if (references_.length == 1) {
+                return references_[0].maskReadOperation(operation);
+            }
+            QuadTreeMask combinedMask_ = this.getCurrentCombinedMask(references_);
+            if (combinedMask_ == null) {
+                // each shard's mask drawn straight into ours while we have its lock
+                final QuadTreeMask newMask = new QuadTreeMask(QuadTreeShards.this.tileSize);
+                final QuadTreeMask[] sources = new QuadTreeMask[references_.length];
+                final int[] versions = new int[references_.length];
+                for (int i = 0; i < references_.length; i++) {
+                    final int i_ = i;
+                    references_[i].maskReadOperation(mask -> {
+                        sources[i_] = mask;
+                        versions[i_] = mask.getVersion();
+                        if (!mask.isAllClear()) {
+                            newMask.or(mask);
+                        }
+                        return null;
+                    });
+                }
+                combinedMask_ = newMask.isAllClear() ? QuadTreeShards.this.EMPTY_MASK : newMask;
+                synchronized (this) {
+                    this.combinedMask = combinedMask_;
+                    this.combinedSources = sources;
+                    this.combinedVersions = versions;
+                }
+            }
+            return operation.apply(combinedMask_);
+        }
+    }
+}
@@ -0,0 +1,187 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ *  A point-in-time version of a persistent QuadTreeMeta's seen areas, which stays the same however the quadtree is
+ *  edited afterwards and may be read by any number of threads without taking any lock.
+ *
+ *  A version is a tree of immutable Nodes covering the quadtree's canonical level: canonical nodes with their
+ *  (published, so never modified) canonical masks, and above them nodes with just their four children. After each
+ *  edit only the nodes on the paths to those canonical masks it changed are copied, everything else being shared with
+ *  the previous version - so taking a snapshot is simply picking up the latest root, and a version no longer
+ *  referenced by anyone is left to the gc along with whatever it alone was holding on to.
+ *
+ *  Masks are derived from the canonical level just as QuadTreeNode derives them, each node keeping hold of its own
+ *  once built - so only the first reader of a node of a version pays for it, and successive versions share all those
+ *  of the nodes they share. Cold canonical masks, as loaded from a QuadTreeFile, are likewise only thawed once needed.
+ *
+ *  A quadtree which isn't persistent can still have a one-off copy of its canonical level taken in the same form - see
+ *  QuadTreeNode.copyCanonical - e.g. to save it without holding the lock meanwhile.
+ */
+class QuadTreeSnapshot {
+    /** A node of a version, immutable & shared between all versions in which its part of the quadtree is unchanged */
+    static final class Node {
+        /** The canonical mask, null above the canonical level. May be cold, in which case it's never thawed in place */
+        final QuadTreeMask mask;
+        /** The four children in z-order, null at the canonical level */
+        final Node[] children;
+        /**
+         *  The node's mask as readers are given it, set once first needed - a thawed copy of a cold canonical mask, or
+         *  above the canonical level the mask reduced from the children's. Immutable, so any readers racing to set it
+         *  merely build it twice.
+         */
+        private volatile QuadTreeMask readableMask;
+
+        Node(QuadTreeMask mask_) {
+            assert mask_.isImmutable() || mask_.isCold();
+            this.mask = mask_;
+            this.children = null;
+            if (!mask_.isCold()) {
+                this.readableMask = mask_;
+            }
+        }
+
+        Node(Node[] children_) {
+            assert children_.length == 4;
+            this.mask = null;
+            this.children = children_;
+        }
+    }
+
+    private final int tileSize;
+    private final int maskReductionThreshold;
+    private final QuadTreeMask emptyMask;
+    private final QuadTreeMask fullMask;
+    final Node root;
+
+    QuadTreeSnapshot(QuadTreeMeta quadTreeMeta, Node root_) {
+        this.tileSize = quadTreeMeta.tileSize;
+        this.maskReductionThreshold = quadTreeMeta.maskReductionThreshold;
+        this.emptyMask = quadTreeMeta.EMPTY_MASK;
+        this.fullMask = quadTreeMeta.FULL_MASK;
+        this.root = root_;
+    }
+
+    private boolean isConstantMask(QuadTreeMask mask) {
+        return mask == this.emptyMask || mask == this.fullMask;
+    }
+
+    /**
+     *  The mask of the tile at `xtile`, `ytile`, `zoom` as of this version - identical to that the quadtree would have
+     *  given at the time. Masks upscaled for the purpose are the caller's own, any others are immutable.
+     */
+    public QuadTreeMask getMask(int xtile, int ytile, int zoom) {
+        Node node = this.root;
+        int zoomNode = 0;
+        while (zoomNode < zoom && node.children != null) {
+            final int shift = zoom - zoomNode - 1;
+            node = node.children[((xtile >>> shift) & 1) | (((ytile >>> shift) & 1) << 1)];
+            zoomNode++;
+        }
+
+        final QuadTreeMask nodeMask = this.getReadableMask(node);
+        if (zoomNode == zoom || this.isConstantMask(nodeMask)) {
+            return nodeMask;
+        }
+        final int depth = zoom - zoomNode;
+        final QuadTreeMask mask = new QuadTreeMask(this.tileSize);
+        mask.drawUpscaled(nodeMask, xtile & ((1 << depth) - 1), ytile & ((1 << depth) - 1), depth);
+        return mask;
+    }
+
+    /** `node`'s mask, built & kept by the node the first time it's needed */
+    private QuadTreeMask getReadableMask(Node node) {
+        QuadTreeMask mask = node.readableMask;
+        if (mask == null) {
+            if (node.children == null) {
+                mask = node.mask.coldCopy();
+                mask.thaw();
+                mask.makeImmutable();
+            } else {
+                mask = this.getReducedMask(node);
+            }
+            node.readableMask = mask;
+        }
+        return mask;
+    }
+
+    /** Builds the mask of a node above the canonical level from its children's */
+    private QuadTreeMask getReducedMask(Node node) {
+        final QuadTreeMask[] childMasks = new QuadTreeMask[4];
+        boolean uniform = true;
+        for (int i = 0; i < 4; i++) {
+            childMasks[i] = this.getReadableMask(node.children[i]);
+            uniform = uniform && this.isConstantMask(childMasks[i]) && childMasks[i] == childMasks[0];
+        }
+        if (uniform) {
+            return childMasks[0];
+        }
+        final QuadTreeMask mask = new QuadTreeMask(this.tileSize);
+        for (int i = 0; i < 4; i++) {
+            if (childMasks[i] != this.emptyMask) {
+                mask.drawReduced(childMasks[i], i, this.maskReductionThreshold);
+            }
+        }
+        mask.makeImmutable();
+        return mask;
+    }
+
+    /**
+     *  Whether this version & `other` hold the same seen areas at every zoom. Any part of the quadtree the two versions
+     *  share is skipped without a look, so comparing successive versions costs little more than the changes between
+     *  them.
+     */
+    public boolean contentEquals(QuadTreeSnapshot other) {
+        if (other.tileSize != this.tileSize) {
+            throw new IllegalArgumentException("QuadTreeSnapshot tile size mismatch");
+        }
+        return this.contentEqualsInner(this.root, other.root);
+    }
+
+    private boolean contentEqualsInner(Node node, Node otherNode) {
+        if (node == otherNode) {
+            return true;
+        }
+        if (node.children == null && otherNode.children == null) {
+            return node.mask == otherNode.mask
+                || this.getReadableMask(node).contentEquals(this.getReadableMask(otherNode));
+        }
+        // the nodes differ in depth, so compare one level further down, the canonical side upscaled
+        for (int i = 0; i < 4; i++) {
+            if (!this.contentEqualsInner(this.getChild(node, i), this.getChild(otherNode, i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** `node`'s child `childIndex`, made up if `node` is canonical */
+    private Node getChild(Node node, int childIndex) {
+        if (node.children != null) {
+            return node.children[childIndex];
+        }
+        if (this.isConstantMask(node.mask)) {
+            return node;
+        }
+        final QuadTreeMask mask = new QuadTreeMask(this.tileSize);
+        mask.drawUpscaled(this.getReadableMask(node), childIndex & 1, (childIndex >>> 1) & 1, 1);
+        mask.makeImmutable();
+        return new Node(mask);
+    }
+
+    /** Saves this version in QuadTreeFile's format, readable by QuadTreeMeta.load */
+    public void writeTo(Path path) throws IOException {
+        QuadTreeFile.write(this.root, this.tileSize, this.emptyMask, this.fullMask, path);
+    }
+
+    /**
+     *  Saves this version as the next generation of `path`, leaving any older generation still mapped by a loaded
+     *  quadtree in place - see QuadTreeFile
+     */
+    void writeGenerationTo(Path path) throws IOException {
+        QuadTreeFile.writeGeneration(this.root, this.tileSize, this.emptyMask, this.fullMask, path);
+    }
+}
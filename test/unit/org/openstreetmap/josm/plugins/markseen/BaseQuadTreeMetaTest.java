@@ -5,7 +5,6 @@ import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import java.awt.Color;
 import java.awt.Point;
-import java.awt.image.DataBufferByte;
 import java.io.IOException;
 import java.lang.reflect.Field;
 import java.util.ArrayList;
@@ -48,6 +47,15 @@ public class BaseQuadTreeMetaTest extends BaseRectTest {
     Boolean debug = false;
 
     public static QuadTreeNodeDynamicReference[] createDynamicReferences(QuadTreeMeta quadTreeMeta, Object[][] referenceTiles_) {
+        Tile[] tiles = createTiles(referenceTiles_);
+        QuadTreeNodeDynamicReference[] refs = new QuadTreeNodeDynamicReference[tiles.length];
+        for (int i = 0; i < tiles.length; i++) {
+            refs[i] = new QuadTreeNodeDynamicReference(quadTreeMeta, tiles[i]);
+        }
+        return refs;
+    }
+
+    public static Tile[] createTiles(Object[][] referenceTiles_) {
         new MockUp<Tile>() {
             @Mock void $init(Invocation invocation, TileSource source, int xtile, int ytile, int zoom) {
                 Tile tile = invocation.getInvokedInstance();
@@ -64,13 +72,12 @@ public class BaseQuadTreeMetaTest extends BaseRectTest {
                 }
             }
         };
-        QuadTreeNodeDynamicReference[] refs = new QuadTreeNodeDynamicReference[referenceTiles_.length];
+        Tile[] tiles = new Tile[referenceTiles_.length];
         for (int i = 0; i < referenceTiles_.length; i++) {
-            Tile mockTile = new Tile(new TileStubSource(), (int) referenceTiles_[i][1],
+            tiles[i] = new Tile(new TileStubSource(), (int) referenceTiles_[i][1],
                 (int) referenceTiles_[i][2], (int) referenceTiles_[i][0]);
-            refs[i] = new QuadTreeNodeDynamicReference(quadTreeMeta, mockTile);
         }
-        return refs;
+        return tiles;
     }
 
     private static final class TileStubSource extends AbstractTMSTileSource {
@@ -262,7 +269,7 @@ public class BaseQuadTreeMetaTest extends BaseRectTest {
             boolean refMaskOptAliasable = referenceTileInfo.length >= 5 ? (boolean) referenceTileInfo[4] : false;
 
             byte[] resultMaskBytes = dynamicReferences[j].maskReadOperation(
-                mask -> ((DataBufferByte) mask.getData().getDataBuffer()).getData()
+                mask -> getMaskBytes(quadTreeMeta, mask)
             );
 
             if (assertContents) {
@@ -320,7 +327,7 @@ public class BaseQuadTreeMetaTest extends BaseRectTest {
                     } else if (mask == quadTreeMeta.FULL_MASK) {
                         return true;
                     } else {
-                        return ((DataBufferByte) mask.getData().getDataBuffer()).getData();
+                        return getMaskBytes(quadTreeMeta, mask);
                     }
                 }
             )));
@@ -1,8 +1,6 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.markseen;
 
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.IOException;
 import java.util.List;
 
@@ -119,7 +117,7 @@ public class BaseQuadTreeNodeTest extends BaseRectTest {
             QuadTreeNode node,
             int i,
             int j,
-            BufferedImage resultMask,
+            QuadTreeMask resultMask,
             Object refMask,
             byte[] resultMaskBytes,
             byte[] refMaskBytes,
@@ -163,10 +161,10 @@ public class BaseQuadTreeNodeTest extends BaseRectTest {
                 zoom,
                 write
             );
-            BufferedImage resultMask = node.getMask(write, write);
+            QuadTreeMask resultMask = node.getMask(write, write);
             quadTreeMeta.quadTreeRoot.checkIntegrity();
 
-            byte[] resultMaskBytes = ((DataBufferByte) resultMask.getData().getDataBuffer()).getData();
+            byte[] resultMaskBytes = getMaskBytes(quadTreeMeta, resultMask);
 
             if (assertContents) {
                 try {
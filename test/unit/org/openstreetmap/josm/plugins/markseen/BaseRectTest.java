@@ -2,7 +2,9 @@
 package org.openstreetmap.josm.plugins.markseen;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Random;
 import java.util.stream.Collectors;
@@ -142,7 +144,8 @@ public class BaseRectTest extends BaseTest {
                         {6, 40, 44, false, true},
                         {10, 837, 279, byteArrayFromResource("QuadTreeNodeTest/testSingleRect/4/10-837-279.bin")},
                         {6, 7, 16, false, true},
-                        {3, 0, 1, false, false},
+                        // thin features in this tile are only retained at this zoom because of OR-reduction
+                        {3, 0, 1, byteArrayFromResource("QuadTreeNodeTest/testSingleRect/4/3-0-1.bin")},
                         {2, 0, 0, byteArrayFromResource("QuadTreeNodeTest/testSingleRect/4/2-0-0.bin")},
                         {1, 0, 0, byteArrayFromResource("QuadTreeNodeTest/testSingleRect/4/1-0-0.bin")},
                         {6, 7, 15, byteArrayFromResource("QuadTreeNodeTest/testSingleRect/4/6-7-15.bin")}
@@ -230,15 +233,28 @@ public class BaseRectTest extends BaseTest {
         return remapping;
     }
 
+    /** Groups the bounds of `seenRects_` (taken in the order given by `orderSeed`) by their minTilesAcross */
+    protected static LinkedHashMap<Double, List<Bounds>> getBatches(Object[][] seenRects_, Integer orderSeed) {
+        LinkedHashMap<Double, List<Bounds>> batches = new LinkedHashMap<>();
+        for (int j : getRemapping(seenRects_.length, orderSeed)) {
+            batches.computeIfAbsent((double) seenRects_[j][1], k -> new ArrayList<>()).add((Bounds) seenRects_[j][0]);
+        }
+        return batches;
+    }
+
+    protected static byte[] getMaskBytes(QuadTreeMeta quadTreeMeta, QuadTreeMask mask) {
+        return ((DataBufferByte) mask.toBufferedImage(quadTreeMeta.maskColorModel, null).getRaster().getDataBuffer())
+            .getData();
+    }
+
     protected static byte[] getRefMaskBytes(QuadTreeMeta quadTreeMeta, Object referenceMask) {
         return Boolean.class.isInstance(referenceMask) ?
-        (
-            (DataBufferByte) (
-                ((boolean) referenceMask) ?
-                            quadTreeMeta.FULL_MASK :
-                            quadTreeMeta.EMPTY_MASK
-            ).getData().getDataBuffer()
-        ).getData() :
+        getMaskBytes(
+            quadTreeMeta,
+            ((boolean) referenceMask) ?
+                        quadTreeMeta.FULL_MASK :
+                        quadTreeMeta.EMPTY_MASK
+        ) :
         (byte[]) referenceMask;
     }
 }
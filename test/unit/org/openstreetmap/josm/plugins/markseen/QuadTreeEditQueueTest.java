@@ -0,0 +1,100 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class QuadTreeEditQueueTest {
+    /** Stands in for a mark of a list of areas at a given detail, or a clear */
+    private static final class TestEdit implements QuadTreeEditQueue.Edit {
+        final String detail;
+        final List<String> areas;
+
+        TestEdit(String detail_, String... areas_) {
+            this.detail = detail_;
+            this.areas = Arrays.asList(areas_);
+        }
+
+        @Override
+        public QuadTreeEditQueue.Edit coalesce(QuadTreeEditQueue.Edit newer) {
+            if (this.detail == null || !this.detail.equals(((TestEdit) newer).detail)) {
+                return null;
+            }
+            ArrayList<String> combined = new ArrayList<>(this.areas);
+            combined.addAll(((TestEdit) newer).areas);
+            return new TestEdit(this.detail, combined.toArray(new String[0]));
+        }
+
+        @Override
+        public boolean supersedesPredecessors() {
+            return this.detail == null;
+        }
+
+        @Override
+        public int weight() {
+            return Math.max(1, this.areas.size());
+        }
+
+        @Override
+        public void run() {
+        }
+    }
+
+    @Test
+    public void testCoalesce() {
+        QuadTreeEditQueue queue = new QuadTreeEditQueue(100);
+        queue.offer(new TestEdit("4", "a"));
+        queue.offer(new TestEdit("6", "b"));
+        queue.offer(new TestEdit("4", "c"));
+        queue.offer(new TestEdit("4", "d", "e"));
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.getCoalescedCount());
+
+        // the combination takes the place of the newest edit it absorbed
+        TestEdit first = (TestEdit) queue.poll();
+        assertEquals("6", first.detail);
+        TestEdit second = (TestEdit) queue.poll();
+        assertEquals("4", second.detail);
+        assertEquals(Arrays.asList("a", "c", "d", "e"), second.areas);
+        assertNull(queue.poll());
+    }
+
+    @Test
+    public void testClearSupersedes() {
+        QuadTreeEditQueue queue = new QuadTreeEditQueue(100);
+        queue.offer(new TestEdit("4", "a"));
+        queue.offer(new TestEdit("6", "b"));
+        queue.offer(new TestEdit(null));
+        queue.offer(new TestEdit("4", "c"));
+        assertEquals(2, queue.size());
+        assertEquals(2, queue.getSupersededCount());
+
+        assertTrue(((TestEdit) queue.poll()).supersedesPredecessors());
+        assertEquals(Arrays.asList("c"), ((TestEdit) queue.poll()).areas);
+    }
+
+    @Test(timeout = 10000)
+    public void testFullQueueDoesntBlock() {
+        QuadTreeEditQueue queue = new QuadTreeEditQueue(4);
+        queue.offer(new TestEdit("4", "a", "b", "c", "d", "e"));
+        assertEquals(1, queue.getOverflowCount());
+
+        // still coalesced where possible, else simply queued
+        queue.offer(new TestEdit("4", "f"));
+        queue.offer(new TestEdit("6", "g"));
+        assertEquals(2, queue.size());
+        assertEquals(1, queue.getOverflowCount());
+
+        assertEquals(6, ((TestEdit) queue.poll()).areas.size());
+        queue.poll();
+        queue.offer(new TestEdit("6", "h", "i", "j", "k", "l"));
+        assertEquals(2, queue.getOverflowCount());
+    }
+}
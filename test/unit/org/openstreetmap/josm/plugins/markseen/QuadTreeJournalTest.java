@@ -0,0 +1,168 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.Bounds;
+
+public class QuadTreeJournalTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    /** Records replayed edits as strings */
+    private static class RecordingVisitor implements QuadTreeJournal.Visitor {
+        final List<String> edits = new ArrayList<>();
+
+        @Override
+        public void markBoundsSeen(List<Bounds> bounds, double minTilesAcross) {
+            for (Bounds b : bounds) {
+                this.edits.add(b.getMinLat() + "," + b.getMinLon() + "," + b.getMaxLat() + "," + b.getMaxLon() + "/"
+                    + minTilesAcross);
+            }
+        }
+
+        @Override
+        public void clear() {
+            this.edits.add("clear");
+        }
+    }
+
+    private static List<String> replay(Path path) throws IOException, InterruptedException {
+        RecordingVisitor visitor = new RecordingVisitor();
+        new QuadTreeJournal(path, visitor).close();
+        return visitor.edits;
+    }
+
+    @Test
+    public void testReplay() throws IOException, InterruptedException {
+        Path path = this.temporaryFolder.getRoot().toPath().resolve("seen.journal");
+        QuadTreeJournal journal = new QuadTreeJournal(path, new RecordingVisitor());
+        journal.appendMark(new Bounds(1., 2., 3., 4.), 3.5);
+        journal.close();
+        assertEquals(Arrays.asList("1.0,2.0,3.0,4.0/3.5"), replay(path));
+
+        // appending to an existing journal, edits preceding a clear needn't be replayed
+        journal = new QuadTreeJournal(path, new RecordingVisitor());
+        journal.appendMark(new Bounds(5., 6., 7., 8.), 2.);
+        journal.appendClear();
+        journal.appendMark(new Bounds(-1., -2., 1., 2.), 4.);
+        journal.close();
+        assertEquals(Arrays.asList("clear", "-1.0,-2.0,1.0,2.0/4.0"), replay(path));
+    }
+
+    @Test
+    public void testReplayGrouped() throws IOException, InterruptedException {
+        Path path = this.temporaryFolder.getRoot().toPath().resolve("seen.journal");
+        QuadTreeJournal journal = new QuadTreeJournal(path, new RecordingVisitor());
+        journal.appendMark(new Bounds(1., 2., 3., 4.), 3.5);
+        journal.appendMark(new Bounds(5., 6., 7., 8.), 2.);
+        journal.appendMark(new Bounds(-1., -2., 1., 2.), 3.5);
+        journal.close();
+        // marks sharing a minTilesAcross are replayed together as one batch
+        assertEquals(
+            Arrays.asList("1.0,2.0,3.0,4.0/3.5", "-1.0,-2.0,1.0,2.0/3.5", "5.0,6.0,7.0,8.0/2.0"),
+            replay(path)
+        );
+    }
+
+    @Test
+    public void testTornTailIgnored() throws IOException, InterruptedException {
+        Path path = this.temporaryFolder.getRoot().toPath().resolve("seen.journal");
+        QuadTreeJournal journal = new QuadTreeJournal(path, new RecordingVisitor());
+        journal.appendMark(new Bounds(1., 2., 3., 4.), 3.5);
+        journal.close();
+        long intactSize = Files.size(path);
+        // as if a crash had interrupted the write of a mark record
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.wrap(new byte[] {1, 0, 0, 0}));
+        }
+
+        journal = new QuadTreeJournal(path, new RecordingVisitor());
+        journal.appendMark(new Bounds(5., 6., 7., 8.), 2.);
+        journal.close();
+        assertEquals(intactSize + 41, Files.size(path));
+        assertEquals(Arrays.asList("1.0,2.0,3.0,4.0/3.5", "5.0,6.0,7.0,8.0/2.0"), replay(path));
+    }
+
+    @Test
+    public void testCompact() throws IOException, InterruptedException {
+        Path path = this.temporaryFolder.getRoot().toPath().resolve("seen.journal");
+        QuadTreeJournal journal = new QuadTreeJournal(path, new RecordingVisitor());
+        journal.appendMark(new Bounds(1., 2., 3., 4.), 3.5);
+        journal.appendClear();
+        // only those edits appended after compaction was requested are kept
+        journal.compact(journal.checkpoint());
+        journal.appendMark(new Bounds(5., 6., 7., 8.), 2.);
+        journal.close();
+        assertEquals(Arrays.asList("5.0,6.0,7.0,8.0/2.0"), replay(path));
+    }
+
+    @Test
+    public void testCompactAfterLaterAppends() throws IOException, InterruptedException {
+        Path path = this.temporaryFolder.getRoot().toPath().resolve("seen.journal");
+        QuadTreeJournal journal = new QuadTreeJournal(path, new RecordingVisitor());
+        journal.appendMark(new Bounds(1., 2., 3., 4.), 3.5);
+        long checkpoint = journal.checkpoint();
+        // appended while the snapshot was being saved, so not covered by it
+        journal.appendMark(new Bounds(5., 6., 7., 8.), 2.);
+        journal.compact(checkpoint);
+        journal.appendMark(new Bounds(-1., -2., 1., 2.), 4.);
+        journal.close();
+        // the records following the checkpoint were carried over to a fresh journal
+        assertEquals(Arrays.asList("5.0,6.0,7.0,8.0/2.0", "-1.0,-2.0,1.0,2.0/4.0"), replay(path));
+        assertEquals(8 + (2 * 41), Files.size(path));
+        assertFalse(Files.exists(path.resolveSibling("seen.journal.tmp")));
+    }
+
+    @Test
+    public void testCompactSuccessiveCheckpoints() throws IOException, InterruptedException {
+        Path path = this.temporaryFolder.getRoot().toPath().resolve("seen.journal");
+        QuadTreeJournal journal = new QuadTreeJournal(path, new RecordingVisitor());
+        journal.appendMark(new Bounds(1., 2., 3., 4.), 3.5);
+        long checkpoint0 = journal.checkpoint();
+        journal.appendClear();
+        long checkpoint1 = journal.checkpoint();
+        journal.appendMark(new Bounds(5., 6., 7., 8.), 2.);
+        // a later checkpoint's position has to follow the records along when an earlier one is compacted
+        journal.compact(checkpoint0);
+        journal.compact(checkpoint1);
+        // and an earlier checkpoint compacted out of turn is ignored
+        journal.compact(checkpoint0);
+        journal.close();
+        assertEquals(Arrays.asList("5.0,6.0,7.0,8.0/2.0"), replay(path));
+    }
+
+    @Test
+    public void testStopsQueueingOnceFailed() throws IOException, InterruptedException, ReflectiveOperationException {
+        Path path = this.temporaryFolder.getRoot().toPath().resolve("seen.journal");
+        QuadTreeJournal journal = new QuadTreeJournal(path, new RecordingVisitor());
+        ((FileChannel) TestUtils.getPrivateField(journal, "channel")).close();
+        journal.appendMark(new Bounds(1., 2., 3., 4.), 3.5);
+        while (!journal.hasFailed()) {
+            Thread.sleep(10);
+        }
+        journal.appendMark(new Bounds(5., 6., 7., 8.), 2.);
+        journal.appendClear();
+        journal.compact(journal.checkpoint());
+        assertTrue(((LinkedBlockingQueue<?>) TestUtils.getPrivateField(journal, "queue")).isEmpty());
+        journal.close();
+    }
+}
@@ -0,0 +1,146 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class QuadTreeMaskCacheTest {
+    private static final int maskSize = 64;
+    // 8 bytes per row
+    private static final long bytesPerMask = 8L * maskSize;
+
+    private static int[] allocateNodes(QuadTreeNodePool pool, int n) {
+        int[] nodes = new int[n];
+        int parent = QuadTreeNodePool.ROOT;
+        for (int i = 0; i < n; i++) {
+            parent = nodes[i] = pool.allocate(parent, i & 3);
+            pool.setMask(nodes[i], new QuadTreeMask(maskSize));
+        }
+        return nodes;
+    }
+
+    private static QuadTreeMaskCache newCache(QuadTreeNodePool pool, long budgetBytes) {
+        return new QuadTreeMaskCache(pool, new QuadTreeMaskRecycler(pool, maskSize, 0), maskSize, budgetBytes);
+    }
+
+    @Test
+    public void testEvictsToBudget() {
+        QuadTreeNodePool pool = new QuadTreeNodePool();
+        QuadTreeMaskCache cache = newCache(pool, 4 * bytesPerMask);
+        int[] nodes = allocateNodes(pool, 10);
+
+        for (int node : nodes) {
+            boolean hadRoom = cache.hasRoomForAnother();
+            long evictions = cache.getEvictionCount();
+            cache.admit(node);
+            assertEquals(hadRoom, evictions == cache.getEvictionCount());
+            assertTrue(cache.getUsedBytes() <= cache.getBudgetBytes());
+            // the newly admitted mask is never the one evicted
+            assertNotNull(pool.getMask(node));
+        }
+        assertEquals(4, cache.getEntryCount());
+        assertEquals(6, cache.getEvictionCount());
+
+        int retained = 0;
+        for (int node : nodes) {
+            if (pool.getMask(node) != null) {
+                retained++;
+            }
+        }
+        assertEquals(4, retained);
+
+        cache.setBudgetBytes(bytesPerMask);
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(9, cache.getEvictionCount());
+    }
+
+    @Test
+    public void testRecentlyUsedRetained() {
+        QuadTreeNodePool pool = new QuadTreeNodePool();
+        QuadTreeMaskCache cache = newCache(pool, 3 * bytesPerMask);
+        int[] nodes = allocateNodes(pool, 5);
+
+        cache.admit(nodes[0]);
+        cache.admit(nodes[1]);
+        cache.admit(nodes[2]);
+        cache.admit(nodes[3]);
+        // all having been referenced, one full sweep of the clock will have been needed before the eviction, after
+        // which only nodes[3] (the exempt newcomer) carries a reference bit
+        cache.touch(nodes[1]);
+        cache.admit(nodes[4]);
+
+        assertEquals(3, cache.getEntryCount());
+        assertNotNull(pool.getMask(nodes[1]));
+        assertNotNull(pool.getMask(nodes[3]));
+        assertNotNull(pool.getMask(nodes[4]));
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testRemoveAndStats() {
+        QuadTreeNodePool pool = new QuadTreeNodePool();
+        QuadTreeMaskCache cache = newCache(pool, 2 * bytesPerMask);
+        int[] nodes = allocateNodes(pool, 3);
+
+        cache.admit(nodes[0]);
+        cache.admit(nodes[1]);
+        // e.g. nodes[0] becoming canonical - it must no longer be a candidate for eviction
+        cache.remove(nodes[0]);
+        cache.remove(nodes[0]);
+        assertEquals(1, cache.getEntryCount());
+        cache.admit(nodes[2]);
+        assertEquals(2, cache.getEntryCount());
+        assertEquals(0, cache.getEvictionCount());
+        assertNotNull(pool.getMask(nodes[0]));
+
+        cache.setBudgetBytes(0);
+        // nothing is exempt when the budget itself is changed
+        assertEquals(0, cache.getEntryCount());
+        assertNull(pool.getMask(nodes[1]));
+        assertNull(pool.getMask(nodes[2]));
+        assertNotNull(pool.getMask(nodes[0]));
+
+        cache.recordMiss();
+        cache.touch(nodes[0]);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testEvictedMasksRecycled() {
+        QuadTreeNodePool pool = new QuadTreeNodePool();
+        QuadTreeMaskRecycler recycler = new QuadTreeMaskRecycler(pool, maskSize, 2);
+        QuadTreeMaskCache cache = new QuadTreeMaskCache(pool, recycler, maskSize, bytesPerMask);
+        int[] nodes = allocateNodes(pool, 5);
+        QuadTreeMask[] masks = new QuadTreeMask[nodes.length];
+        for (int i = 0; i < nodes.length; i++) {
+            masks[i] = pool.getMask(nodes[i]);
+            masks[i].fillRect(0, 0, 3, 3);
+        }
+
+        for (int node : nodes) {
+            cache.admit(node);
+        }
+        assertEquals(4, cache.getEvictionCount());
+        // nodes[0] re-adopting its evicted mask, as happens when a mask is evicted during its own reconstruction
+        pool.setMask(nodes[0], masks[0]);
+
+        // nothing may be reused until it's certain no references to it remain
+        assertEquals(0, recycler.getAvailableCount());
+        recycler.recycle();
+        assertEquals(2, recycler.getAvailableCount());
+        assertEquals(1, recycler.getDiscardedCount());
+
+        QuadTreeMask reused = recycler.acquire();
+        assertTrue(reused == masks[2] || reused == masks[3] || reused == masks[1]);
+        assertTrue(reused.isAllClear());
+        recycler.acquire();
+        recycler.acquire();
+        assertEquals(2, recycler.getReusedCount());
+        assertEquals(1, recycler.getAllocatedCount());
+    }
+}
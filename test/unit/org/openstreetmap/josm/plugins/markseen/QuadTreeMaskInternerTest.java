@@ -0,0 +1,52 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class QuadTreeMaskInternerTest {
+    private static final int maskSize = 128;
+
+    @Test
+    public void testIdenticalContentsShared() {
+        QuadTreeMaskInterner interner = new QuadTreeMaskInterner();
+
+        QuadTreeMask first = new QuadTreeMask(maskSize);
+        first.fillRect(0, 100, maskSize, 28);
+        // the same contents in a different form
+        QuadTreeMask second = QuadTreeMask.newRectUnion(maskSize);
+        second.fillRect(0, 100, 64, 28);
+        second.fillRect(64, 100, 64, 28);
+        QuadTreeMask different = new QuadTreeMask(maskSize);
+        different.fillRect(0, 99, maskSize, 28);
+        assertEquals(first.contentHash(), second.contentHash());
+
+        assertSame(first, interner.intern(first));
+        assertTrue(first.isImmutable());
+        assertSame(first, interner.intern(first));
+        assertSame(first, interner.intern(second));
+        assertFalse(second.isImmutable());
+        assertSame(different, interner.intern(different));
+
+        assertEquals(2, interner.size());
+        assertEquals(2, interner.getInternedCount());
+        assertEquals(1, interner.getSharedCount());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testInternedWriteInhibited() {
+        QuadTreeMask mask = new QuadTreeMask(maskSize);
+        mask.fillRect(3, 3, 10, 10);
+        new QuadTreeMaskInterner().intern(mask);
+
+        // writers must take a copy
+        QuadTreeMask copy = mask.copy();
+        copy.fillRect(20, 20, 10, 10);
+        assertFalse(copy.isImmutable());
+        mask.fillRect(20, 20, 10, 10);
+    }
+}
@@ -0,0 +1,515 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.awt.image.IndexColorModel;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+@RunWith(Parameterized.class)
+public class QuadTreeMaskTest {
+    @Parameters(name = "{index}-size-{0}")
+    public static Collection<Object[]> getParameters() {
+        return Arrays.asList(new Object[][] {{256}, {128}, {161}, {64}});
+    }
+
+    protected static final IndexColorModel colorModel = new IndexColorModel(
+        1,
+        2,
+        new byte[]{(byte) 0, (byte) 255},
+        new byte[]{(byte) 0, (byte) 175},
+        new byte[]{(byte) 0, (byte) 175},
+        new byte[]{(byte) 0, (byte) 127}
+    );
+
+    protected final int size;
+
+    public QuadTreeMaskTest(int size_) {
+        this.size = size_;
+    }
+
+    protected BufferedImage newImage() {
+        return new BufferedImage(this.size, this.size, BufferedImage.TYPE_BYTE_BINARY, colorModel);
+    }
+
+    protected static byte[] imageBytes(BufferedImage image) {
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    }
+
+    protected static byte[] maskBytes(QuadTreeMask mask) {
+        return imageBytes(mask.toBufferedImage(colorModel, null));
+    }
+
+    /** Fills a QuadTreeMask and an equivalent BufferedImage with the same random rectangles */
+    protected BufferedImage randomRects(QuadTreeMask mask, Random random, int count) {
+        BufferedImage image = this.newImage();
+        Graphics2D g = image.createGraphics();
+        g.setPaint(Color.WHITE);
+        for (int i = 0; i < count; i++) {
+            int x = random.nextInt(this.size + 20) - 10;
+            int y = random.nextInt(this.size + 20) - 10;
+            int w = random.nextInt(this.size);
+            int h = random.nextInt(this.size);
+            mask.fillRect(x, y, w, h);
+            g.fill(new Rectangle(x, y, w, h));
+        }
+        g.dispose();
+        return image;
+    }
+
+    @Test
+    public void testFillRectMatchesGraphics2D() {
+        Random random = new Random(this.size);
+        for (int n = 0; n < 50; n++) {
+            QuadTreeMask mask = new QuadTreeMask(this.size);
+            BufferedImage image = this.randomRects(mask, random, 1 + random.nextInt(4));
+            assertArrayEquals(imageBytes(image), maskBytes(mask));
+        }
+    }
+
+    @Test
+    public void testFillRectWordBoundaries() {
+        int[] edges = {-1, 0, 1, 62, 63, 64, 65, 127, 128, this.size - 1, this.size, this.size + 1};
+        for (int x0 : edges) {
+            for (int x1 : edges) {
+                QuadTreeMask mask = new QuadTreeMask(this.size);
+                mask.fillRect(x0, 3, x1 - x0, 2);
+
+                BufferedImage image = this.newImage();
+                Graphics2D g = image.createGraphics();
+                g.setPaint(Color.WHITE);
+                g.fill(new Rectangle(x0, 3, x1 - x0, 2));
+                g.dispose();
+
+                assertArrayEquals("x0 " + x0 + " x1 " + x1, imageBytes(image), maskBytes(mask));
+            }
+        }
+
+        // rects lying entirely off the mask, including some which would overflow naive int arithmetic
+        QuadTreeMask mask = new QuadTreeMask(this.size);
+        mask.fillRect(Integer.MAX_VALUE - 10, 0, 100, 100);
+        mask.fillRect(-200, -200, 100, 100);
+        mask.fillRect(Integer.MIN_VALUE, 0, 100, 100);
+        assertEquals(0, mask.cardinality());
+    }
+
+    @Test
+    public void testConstants() {
+        QuadTreeMask empty = QuadTreeMask.newConstant(this.size, false);
+        QuadTreeMask full = QuadTreeMask.newConstant(this.size, true);
+        assertEquals(0, empty.cardinality());
+        assertEquals(this.size * this.size, full.cardinality());
+
+        QuadTreeMask mask = new QuadTreeMask(this.size);
+        assertTrue(mask.contentEquals(empty));
+        mask.fillRect(0, 0, this.size, this.size);
+        assertTrue(mask.contentEquals(full));
+        assertFalse(mask.contentEquals(empty));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testConstantWriteInhibited() {
+        QuadTreeMask.newConstant(this.size, false).fillRect(1, 1, 2, 2);
+    }
+
+    @Test
+    public void testOrAnd() {
+        Random random = new Random(this.size + 1);
+        QuadTreeMask maskA = new QuadTreeMask(this.size);
+        QuadTreeMask maskB = new QuadTreeMask(this.size);
+        this.randomRects(maskA, random, 3);
+        this.randomRects(maskB, random, 3);
+
+        QuadTreeMask union = maskA.copy();
+        union.or(maskB);
+        QuadTreeMask intersection = maskA.copy();
+        intersection.and(maskB);
+
+        for (int y = 0; y < this.size; y++) {
+            for (int x = 0; x < this.size; x++) {
+                assertEquals(maskA.get(x, y) || maskB.get(x, y), union.get(x, y));
+                assertEquals(maskA.get(x, y) && maskB.get(x, y), intersection.get(x, y));
+            }
+        }
+        assertEquals(
+            maskA.cardinality() + maskB.cardinality(),
+            union.cardinality() + intersection.cardinality()
+        );
+    }
+
+    @Test
+    public void testDrawReduced() {
+        Random random = new Random(this.size + 3);
+        QuadTreeMask src = new QuadTreeMask(this.size);
+        // plenty of small rects to give a good mix of partially-set blocks
+        for (int i = 0; i < 200; i++) {
+            src.fillRect(random.nextInt(this.size), random.nextInt(this.size), 1 + random.nextInt(3), 1 + random.nextInt(3));
+        }
+        BufferedImage srcImage = src.toBufferedImage(colorModel, null);
+
+        for (int threshold = 1; threshold <= 4; threshold++) {
+            for (int quadrant = 0; quadrant < 4; quadrant++) {
+                QuadTreeMask mask = new QuadTreeMask(this.size);
+                mask.drawReduced(src, quadrant, threshold);
+
+                if ((this.size & 1) != 0) {
+                    // odd sizes fall back to sampling, which should match Graphics2D's scaled drawImage
+                    BufferedImage image = this.newImage();
+                    Graphics2D g = image.createGraphics();
+                    g.scale(0.5, 0.5);
+                    g.translate((quadrant & 1) != 0 ? this.size : 0, (quadrant & 2) != 0 ? this.size : 0);
+                    g.drawImage(srcImage, new AffineTransform(), null);
+                    g.dispose();
+                    assertArrayEquals(imageBytes(image), maskBytes(mask));
+                    continue;
+                }
+
+                int half = this.size / 2;
+                int offsetX = (quadrant & 1) != 0 ? half : 0;
+                int offsetY = (quadrant & 2) != 0 ? half : 0;
+                for (int y = 0; y < this.size; y++) {
+                    for (int x = 0; x < this.size; x++) {
+                        boolean expected = false;
+                        if (x >= offsetX && x < offsetX + half && y >= offsetY && y < offsetY + half) {
+                            int sx = 2 * (x - offsetX), sy = 2 * (y - offsetY);
+                            int count = (src.get(sx, sy) ? 1 : 0) + (src.get(sx + 1, sy) ? 1 : 0)
+                                + (src.get(sx, sy + 1) ? 1 : 0) + (src.get(sx + 1, sy + 1) ? 1 : 0);
+                            expected = count >= threshold;
+                        }
+                        assertEquals(
+                            "threshold " + threshold + " quadrant " + quadrant + " at " + x + "," + y,
+                            expected,
+                            mask.get(x, y)
+                        );
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDrawTransformedMatchesGraphics2D() {
+        Random random = new Random(this.size + 2);
+        QuadTreeMask src = new QuadTreeMask(this.size);
+        BufferedImage srcImage = this.randomRects(src, random, 6);
+
+        AffineTransform[] transforms = {
+            AffineTransform.getScaleInstance(0.5, 0.5),
+            new AffineTransform(0.25, 0, 0, 0.25, this.size / 2, this.size / 4),
+            new AffineTransform(2, 0, 0, 2, -this.size, 0),
+            new AffineTransform(8, 0, 0, 8, -3 * this.size, -5 * this.size)
+        };
+        for (AffineTransform transform : transforms) {
+            QuadTreeMask mask = new QuadTreeMask(this.size);
+            mask.drawTransformed(src, transform);
+
+            BufferedImage image = this.newImage();
+            Graphics2D g = image.createGraphics();
+            g.drawImage(srcImage, transform, null);
+            g.dispose();
+
+            assertArrayEquals("transform " + transform, imageBytes(image), maskBytes(mask));
+        }
+    }
+
+    @Test
+    public void testDrawUpscaledMatchesDrawTransformed() {
+        Random random = new Random(this.size + 4);
+        QuadTreeMask src = new QuadTreeMask(this.size);
+        this.randomRects(src, random, 12);
+
+        for (int depth = 1; depth <= 9; depth++) {
+            for (int n = 0; n < 6; n++) {
+                int qx = random.nextInt(1 << depth);
+                int qy = random.nextInt(1 << depth);
+                double scale = 1 << depth;
+
+                QuadTreeMask expected = new QuadTreeMask(this.size);
+                expected.drawTransformed(
+                    src,
+                    new AffineTransform(scale, 0, 0, scale, -qx * (double) this.size, -qy * (double) this.size)
+                );
+
+                // should entirely overwrite any existing contents
+                QuadTreeMask mask = new QuadTreeMask(this.size);
+                this.randomRects(mask, random, 2);
+                mask.drawUpscaled(src, qx, qy, depth);
+
+                assertTrue("depth " + depth + " qx " + qx + " qy " + qy, mask.contentEquals(expected));
+            }
+        }
+    }
+
+    @Test
+    public void testCardinalityTracked() {
+        Random random = new Random(this.size + 5);
+        QuadTreeMask src = new QuadTreeMask(this.size);
+        this.randomRects(src, random, 5);
+        assertTrue(src.checkCardinality());
+
+        QuadTreeMask mask = src.copy();
+        assertTrue(mask.checkCardinality());
+        mask.set(random.nextInt(this.size), random.nextInt(this.size));
+        assertTrue(mask.checkCardinality());
+        mask.drawReduced(src, 3, 1);
+        assertTrue(mask.checkCardinality());
+        mask.drawTransformed(src, new AffineTransform(2, 0, 0, 2, -this.size / 2, 0));
+        assertTrue(mask.checkCardinality());
+        mask.drawUpscaled(src, 1, 2, 2);
+        assertTrue(mask.checkCardinality());
+
+        QuadTreeMask other = new QuadTreeMask(this.size);
+        this.randomRects(other, random, 3);
+        mask.or(other);
+        assertTrue(mask.checkCardinality());
+        mask.and(src);
+        assertTrue(mask.checkCardinality());
+
+        mask.fill(true);
+        assertTrue(mask.isAllSet());
+        assertFalse(mask.isAllClear());
+        mask.fill(false);
+        assertTrue(mask.isAllClear());
+        mask.fillRect(0, 0, this.size, this.size - 1);
+        assertFalse(mask.isAllSet());
+        mask.fillRect(0, this.size - 1, this.size, 1);
+        assertTrue(mask.isAllSet());
+    }
+
+    @Test
+    public void testRunLengthMatchesDense() {
+        Random random = new Random(this.size + 6);
+        for (int n = 0; n < 20; n++) {
+            QuadTreeMask dense = new QuadTreeMask(this.size);
+            QuadTreeMask runLength = QuadTreeMask.newRunLength(this.size);
+            int rects = 1 + random.nextInt(6);
+            long seed = random.nextLong();
+            BufferedImage image = this.randomRects(dense, new Random(seed), rects);
+            this.randomRects(runLength, new Random(seed), rects);
+
+            // a few rects shouldn't come close to warranting the dense form - provided the mask is large enough for
+            // the run-length form to have been used at all
+            assertEquals(QuadTreeMask.newRunLength(this.size).isRunLength(), runLength.isRunLength());
+            assertArrayEquals(imageBytes(image), maskBytes(runLength));
+            assertTrue(runLength.contentEquals(dense));
+            assertTrue(dense.contentEquals(runLength));
+            assertEquals(dense.cardinality(), runLength.cardinality());
+            assertTrue(runLength.checkCardinality());
+            for (int i = 0; i < 50; i++) {
+                int x = random.nextInt(this.size), y = random.nextInt(this.size);
+                assertEquals(dense.get(x, y), runLength.get(x, y));
+            }
+
+            // as a source for the other drawing operations
+            for (int threshold = 1; threshold <= 4; threshold += 3) {
+                QuadTreeMask fromDense = new QuadTreeMask(this.size);
+                fromDense.drawReduced(dense, n & 3, threshold);
+                QuadTreeMask fromRunLength = new QuadTreeMask(this.size);
+                fromRunLength.drawReduced(runLength, n & 3, threshold);
+                assertTrue(fromRunLength.contentEquals(fromDense));
+            }
+            int depth = 1 + random.nextInt(6);
+            int qx = random.nextInt(1 << depth), qy = random.nextInt(1 << depth);
+            QuadTreeMask fromDense = new QuadTreeMask(this.size);
+            fromDense.drawUpscaled(dense, qx, qy, depth);
+            QuadTreeMask fromRunLength = new QuadTreeMask(this.size);
+            fromRunLength.drawUpscaled(runLength, qx, qy, depth);
+            assertTrue(fromRunLength.contentEquals(fromDense));
+            assertTrue(fromRunLength.checkCardinality());
+
+            // and as a target, switching to dense as needed
+            QuadTreeMask copy = runLength.copy();
+            assertEquals(runLength.isRunLength(), copy.isRunLength());
+            copy.or(fromDense);
+            fromDense.or(dense);
+            assertFalse(copy.isRunLength());
+            assertTrue(copy.contentEquals(fromDense));
+            assertTrue(copy.checkCardinality());
+            // the copy should have been independent
+            assertTrue(runLength.contentEquals(dense));
+        }
+    }
+
+    @Test
+    public void testSparseFormSwitching() {
+        Random random = new Random(this.size + 7);
+        QuadTreeMask mask = QuadTreeMask.newRectUnion(this.size);
+        QuadTreeMask dense = new QuadTreeMask(this.size);
+        mask.fillRect(3, 5, this.size / 2, this.size / 3);
+        dense.fillRect(3, 5, this.size / 2, this.size / 3);
+        assertTrue(mask.isRectUnion());
+
+        // plenty of small, scattered rects should push the mask through the run-length form (for masks large enough
+        // for it to be worthwhile) to the dense form, never going back
+        boolean wasRunLength = false;
+        for (int i = 0; i < 2000 && !mask.isDense(); i++) {
+            int x = random.nextInt(this.size), y = random.nextInt(this.size);
+            mask.fillRect(x, y, 2, 2);
+            dense.fillRect(x, y, 2, 2);
+            assertFalse(wasRunLength && mask.isRectUnion());
+            wasRunLength |= mask.isRunLength();
+            assertEquals(dense.cardinality(), mask.cardinality());
+        }
+        assertTrue(mask.isDense());
+        assertTrue(mask.contentEquals(dense));
+        assertTrue(mask.checkCardinality());
+        assertFalse(mask.compact());
+
+        dense.fill(false);
+        dense.fillRect(this.size / 4, this.size / 3, this.size / 2, this.size / 2);
+        dense.fillRect(0, 0, 3, this.size);
+        QuadTreeMask expected = dense.copy();
+        int version = dense.getVersion();
+        assertTrue(dense.compact());
+        assertTrue(dense.isRectUnion());
+        assertEquals(version, dense.getVersion());
+        assertTrue(dense.contentEquals(expected));
+        assertArrayEquals(maskBytes(expected), maskBytes(dense));
+        assertTrue(dense.checkCardinality());
+
+        // a staircase has too many distinct rows for the rectangle-union form to be worthwhile
+        QuadTreeMask staircase = new QuadTreeMask(this.size);
+        for (int y = 0; y < this.size; y += 8) {
+            staircase.fillRect(y, y, 8, 8);
+        }
+        expected = staircase.copy();
+        assertEquals(staircase.compact(), staircase.isRunLength());
+        assertFalse(staircase.isRectUnion());
+        assertTrue(staircase.contentEquals(expected));
+        assertTrue(staircase.checkCardinality());
+
+        assertFalse(QuadTreeMask.newConstant(this.size, true).compact());
+
+        dense.fill(true);
+        assertTrue(dense.isRectUnion());
+        assertTrue(dense.isAllSet());
+        assertTrue(dense.checkCardinality());
+    }
+
+    @Test
+    public void testRectUnionMatchesDense() {
+        Random random = new Random(this.size + 8);
+        for (int n = 0; n < 50; n++) {
+            QuadTreeMask rectUnion = QuadTreeMask.newRectUnion(this.size);
+            int rects = 1 + random.nextInt(5);
+            long seed = random.nextLong();
+            BufferedImage image = this.randomRects(rectUnion, new Random(seed), rects);
+            QuadTreeMask dense = new QuadTreeMask(this.size);
+            this.randomRects(dense, new Random(seed), rects);
+
+            assertArrayEquals(imageBytes(image), maskBytes(rectUnion));
+            assertTrue(rectUnion.contentEquals(dense));
+            assertTrue(dense.contentEquals(rectUnion));
+            assertTrue(rectUnion.checkCardinality());
+
+            // the form is normalised, so the same rects drawn in a different order should give equal bands
+            Random rectRandom = new Random(seed);
+            int[][] rectParams = new int[rects][];
+            for (int i = 0; i < rects; i++) {
+                rectParams[i] = new int[] {
+                    rectRandom.nextInt(this.size + 20) - 10,
+                    rectRandom.nextInt(this.size + 20) - 10,
+                    rectRandom.nextInt(this.size),
+                    rectRandom.nextInt(this.size)
+                };
+            }
+            QuadTreeMask reordered = QuadTreeMask.newRectUnion(this.size);
+            for (int i = rects - 1; i >= 0; i--) {
+                reordered.fillRect(rectParams[i][0], rectParams[i][1], rectParams[i][2], rectParams[i][3]);
+            }
+            assertTrue(reordered.contentEquals(rectUnion));
+            QuadTreeMask compacted = dense.copy();
+            if (compacted.compact() && compacted.isRectUnion() && rectUnion.isRectUnion()) {
+                assertTrue(compacted.contentEquals(rectUnion));
+            }
+
+            int depth = 1 + random.nextInt(6);
+            int qx = random.nextInt(1 << depth), qy = random.nextInt(1 << depth);
+            QuadTreeMask fromDense = new QuadTreeMask(this.size);
+            fromDense.drawUpscaled(dense, qx, qy, depth);
+            QuadTreeMask fromRectUnion = new QuadTreeMask(this.size);
+            fromRectUnion.drawUpscaled(rectUnion, qx, qy, depth);
+            assertTrue(fromRectUnion.contentEquals(fromDense));
+
+            fromDense = new QuadTreeMask(this.size);
+            fromDense.drawReduced(dense, n & 3, 2);
+            fromRectUnion = new QuadTreeMask(this.size);
+            fromRectUnion.drawReduced(rectUnion, n & 3, 2);
+            assertTrue(fromRectUnion.contentEquals(fromDense));
+        }
+    }
+
+    @Test
+    public void testFreezeThaw() {
+        Random random = new Random(this.size + 13);
+        for (int n = 0; n < 20; n++) {
+            QuadTreeMask mask = new QuadTreeMask(this.size);
+            BufferedImage image = this.randomRects(mask, random, 1 + random.nextInt(8));
+            QuadTreeMask reference = mask.copy();
+            int version = mask.getVersion();
+
+            // alternating between holding the cold form on & off the heap
+            assertTrue(mask.freeze((n & 1) != 0));
+            assertTrue(mask.isCold());
+            assertEquals((n & 1) != 0, mask.isFrozenOffHeap());
+            assertFalse(mask.isDense());
+            assertTrue(mask.compact());
+            assertEquals(reference.cardinality(), mask.cardinality());
+            assertTrue(mask.checkCardinality());
+            // checking the cardinality mustn't have consumed the cold form
+            assertTrue(mask.checkCardinality());
+
+            // as loaded from a QuadTreeFile, uncompressed
+            QuadTreeMask mapped = QuadTreeMask.newFrozen(
+                this.size,
+                reference.cardinality(),
+                ByteBuffer.wrap(mask.toRawBytes()).asReadOnlyBuffer(),
+                false
+            );
+            assertTrue(mapped.checkCardinality());
+            mapped.thaw();
+            assertTrue(mapped.contentEquals(reference));
+
+            mask.thaw();
+            assertFalse(mask.isCold());
+            assertEquals(version, mask.getVersion());
+            assertTrue(mask.contentEquals(reference));
+            assertArrayEquals(imageBytes(image), maskBytes(mask));
+            mask.fillRect(0, 0, 1, 1);
+            assertTrue(mask.checkCardinality());
+        }
+
+        // noise doesn't compress, and the compact forms aren't worth compressing
+        QuadTreeMask noise = new QuadTreeMask(this.size);
+        for (int j = 0; j < this.size; j++) {
+            for (int i = 0; i < this.size; i++) {
+                if (random.nextBoolean()) {
+                    noise.set(i, j);
+                }
+            }
+        }
+        assertFalse(noise.freeze());
+        assertTrue(noise.isDense());
+        QuadTreeMask rectUnion = QuadTreeMask.newRectUnion(this.size);
+        rectUnion.fillRect(3, 4, 20, 30);
+        assertFalse(rectUnion.freeze());
+        assertFalse(QuadTreeMask.newConstant(this.size, true).freeze());
+    }
+}
@@ -79,8 +79,9 @@ public class QuadTreeMetaClearOrderTest extends BaseQuadTreeMetaTest {
             }
         }
 
-        // wait until the edits have properly started
-        while (this.quadTreeMeta.getEditRequestQueueCompletedTaskCount() == 0);
+        // wait until the clear has been made - with marks this cheap the edit thread can drain its queue and drop the
+        // lock before the clear is even requested, so its having started no longer means it will finish first
+        while (this.quadTreeMeta.getEditRequestQueueCompletedTaskCount() < this.seenRects.length + 1);
 
         final ExecutorService executor = Executors.newFixedThreadPool(4);
         final List<Future<Object>> maskFutures = this.fetchTileMasksAsync(
@@ -0,0 +1,56 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.Test;
+
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.Bounds;
+
+public class QuadTreeMetaCoalesceTest {
+    @Test(timeout = 10000)
+    public void testContainedBoundsCollapsed() throws Exception {
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(256, Color.PINK, 0.5, false);
+        QuadTreeEditQueue queue = (QuadTreeEditQueue) ((ThreadPoolExecutor) TestUtils.getPrivateField(
+            quadTreeMeta,
+            "quadTreeEditExecutor"
+        )).getQueue();
+        QuadTreeNodeDynamicReference[] dynamicReferences = BaseQuadTreeMetaTest.createDynamicReferences(
+            quadTreeMeta,
+            new Object[][] {{12, 2046, 1361}, {12, 2060, 1361}}
+        );
+
+        // keeping the edit thread from taking anything more off the queue
+        quadTreeMeta.quadTreeRWLock.writeLock().lock();
+        try {
+            quadTreeMeta.requestSeenBoundsMark(new Bounds(51.4, -0.3, 51.7, 0.1), 8.);
+            while (queue.size() != 0) {
+                Thread.yield();
+            }
+
+            quadTreeMeta.requestSeenBoundsMark(new Bounds(51.50, -0.15, 51.55, -0.10), 8.);
+            quadTreeMeta.requestSeenBoundsMark(new Bounds(51.45, -0.25, 51.65, 0.), 8.);
+            // a viewport re-marked without moving
+            quadTreeMeta.requestSeenBoundsMark(new Bounds(51.45, -0.25, 51.65, 0.), 8.);
+            quadTreeMeta.requestSeenBoundsMark(new Bounds(51.50, -0.15, 51.55, -0.10), 8.);
+            assertEquals(1, queue.size());
+            assertEquals(1, queue.getWeight());
+
+            // one not covered by anything queued is kept alongside
+            quadTreeMeta.requestSeenBoundsMark(new Bounds(51.45, 1.0, 51.65, 1.2), 8.);
+            assertEquals(1, queue.size());
+            assertEquals(2, queue.getWeight());
+        } finally {
+            quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+        }
+
+        quadTreeMeta.awaitIdle();
+        assertTrue(dynamicReferences[0].maskReadOperation(QuadTreeMask::isAllSet));
+        assertTrue(dynamicReferences[1].maskReadOperation(QuadTreeMask::isAllSet));
+    }
+}
@@ -0,0 +1,48 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+
+import org.junit.Test;
+
+import org.openstreetmap.josm.data.Bounds;
+
+public class QuadTreeMetaLongMarkTest {
+    /** A country-sized area, which at street-level detail takes a good while to mark */
+    private static final Bounds COUNTRY = new Bounds(45., 0., 55., 15.);
+    private static final double STREET_LEVEL_TILES_ACROSS = 2000.;
+
+    @Test(timeout = 60000)
+    public void testReadDuringLongMark() throws Exception {
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(256, Color.PINK, 0.5, false);
+        quadTreeMeta.setMaxLockHoldMillis(10);
+        // one tile well away from the mark, one inside it
+        QuadTreeNodeDynamicReference[] dynamicReferences = BaseQuadTreeMetaTest.createDynamicReferences(
+            quadTreeMeta,
+            new Object[][] {{4, 2, 5}, {9, 260, 170}}
+        );
+
+        quadTreeMeta.requestSeenBoundsMark(COUNTRY, STREET_LEVEL_TILES_ACROSS);
+        while (!quadTreeMeta.quadTreeRWLock.isWriteLocked()) {
+            Thread.yield();
+        }
+
+        // the edit thread should give way to us between chunks rather than keeping us waiting for the whole mark
+        long start = System.nanoTime();
+        assertTrue(dynamicReferences[0].maskReadOperation(QuadTreeMask::isAllClear));
+        long readNanos = System.nanoTime() - start;
+        assertEquals(
+            "mark completed before the read could get in",
+            0,
+            quadTreeMeta.getEditRequestQueueCompletedTaskCount()
+        );
+
+        quadTreeMeta.awaitIdle();
+        long markNanos = System.nanoTime() - start;
+        assertTrue(readNanos < markNanos);
+        assertTrue(dynamicReferences[1].maskReadOperation(QuadTreeMask::isAllSet));
+    }
+}
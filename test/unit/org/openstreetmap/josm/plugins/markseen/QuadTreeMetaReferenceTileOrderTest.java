@@ -117,4 +117,47 @@ public class QuadTreeMetaReferenceTileOrderTest extends BaseQuadTreeMetaTest {
         }
         this.quadTreeMeta.quadTreeRWLock.readLock().unlock();
     }
+
+    @Test(timeout = 10000)
+    public void testConcurrentBuild()
+    throws java.lang.InterruptedException, java.util.concurrent.ExecutionException {
+        QuadTreeNodeDynamicReference[] dynamicReferences = createDynamicReferences(this.quadTreeMeta, this.referenceTiles);
+
+        this.markRectsAsync(this.quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        this.quadTreeMeta.awaitIdle();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final List<Future<Object>> maskFutures = this.fetchTileMasksAsync(
+            this.quadTreeMeta,
+            dynamicReferences,
+            executor,
+            this.referenceTileOrderSeed
+        );
+        byte[][] originalMasks = new byte[maskFutures.size()][0];
+        for (int i = 0; i < maskFutures.size(); i++) {
+            originalMasks[i] = getRefMaskBytes(this.quadTreeMeta, maskFutures.get(i).get());
+        }
+
+        // evicting every derived mask, then downgrading to the read-lock, which we hold throughout the re-fetch so
+        // that nobody can take the write-lock - the derived masks having to be rebuilt by the readers themselves
+        this.quadTreeMeta.quadTreeRWLock.writeLock().lock();
+        final QuadTreeMaskCache maskCache = this.quadTreeMeta.quadTreeRoot.getMaskCache();
+        final long budgetBytes = maskCache.getBudgetBytes();
+        maskCache.setBudgetBytes(0);
+        maskCache.setBudgetBytes(budgetBytes);
+        this.quadTreeMeta.quadTreeRWLock.readLock().lock();
+        this.quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+
+        final List<Future<Object>> maskFutures2 = this.fetchTileMasksAsync(
+            this.quadTreeMeta,
+            dynamicReferences,
+            executor,
+            this.referenceTileOrderSeed
+        );
+        for (int i = 0; i < maskFutures2.size(); i++) {
+            assertArrayEquals(originalMasks[i], getRefMaskBytes(this.quadTreeMeta, maskFutures2.get(i).get()));
+        }
+        this.quadTreeMeta.quadTreeRWLock.readLock().unlock();
+        executor.shutdown();
+    }
 }
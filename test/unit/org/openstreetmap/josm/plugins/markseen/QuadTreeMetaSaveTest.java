@@ -0,0 +1,86 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.Color;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.openstreetmap.josm.TestUtils;
+import org.openstreetmap.josm.data.Bounds;
+import org.openstreetmap.josm.spi.preferences.Config;
+import org.openstreetmap.josm.testutils.JOSMTestRules;
+
+public class QuadTreeMetaSaveTest {
+    @Rule public JOSMTestRules test = new JOSMTestRules().preferences();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test(timeout = 30000)
+    public void testSaveAfterOptimize() throws Exception {
+        this.checkSaveAfterOptimize(new QuadTreeMeta(256, Color.PINK, 0.5, true));
+    }
+
+    @Test(timeout = 30000)
+    public void testSaveAfterOptimizePersistent() throws Exception {
+        // saved straight from the latest version
+        this.checkSaveAfterOptimize(
+            new QuadTreeMeta(new QuadTreeMeta.Options(256, Color.PINK, 0.5).autoOptimize(true).persistent(true))
+        );
+    }
+
+    @Test(timeout = 30000)
+    public void testJournalClosedOnShutdown() throws Exception {
+        Path journalPath = this.temporaryFolder.getRoot().toPath().resolve("seen.journal");
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(256, Color.PINK, 0.5, false);
+        quadTreeMeta.openJournal(journalPath);
+        quadTreeMeta.requestSeenBoundsMark(new Bounds(51.5, -0.2, 51.6, 0.), 8.);
+        quadTreeMeta.awaitIdle();
+
+        // as the jvm would on exiting
+        ((Thread) TestUtils.getPrivateField(quadTreeMeta, "journalShutdownHook")).run();
+        assertNull(TestUtils.getPrivateField(quadTreeMeta, "journalShutdownHook"));
+        // the mark record written out behind the header
+        assertEquals(8 + 41, Files.size(journalPath));
+    }
+
+    private void checkSaveAfterOptimize(QuadTreeMeta quadTreeMeta) throws Exception {
+        Config.getPref().putInt("markseen.autoOptimizeDelayMS", 100);
+        Path persistPath = this.temporaryFolder.getRoot().toPath().resolve("seen.quadtree");
+        Path journalPath = this.temporaryFolder.getRoot().toPath().resolve("seen.journal");
+        quadTreeMeta.setPersistPath(persistPath);
+        quadTreeMeta.openJournal(journalPath);
+
+        quadTreeMeta.requestSeenBoundsMark(new Bounds(51.5, -0.2, 51.6, 0.), 8.);
+        quadTreeMeta.requestSeenBoundsMark(new Bounds(48.8, 2.3, 48.9, 2.4), 8.);
+        while (!Files.exists(persistPath)) {
+            Thread.sleep(10);
+        }
+        quadTreeMeta.awaitIdle();
+        quadTreeMeta.closeJournal();
+
+        // everything journaled was saved, so the journal is back to just its header
+        assertEquals(8, Files.size(journalPath));
+        QuadTreeMeta loadedMeta = new QuadTreeMeta(256, Color.PINK, 0.5, false);
+        assertTrue(loadedMeta.load(persistPath));
+        quadTreeMeta.quadTreeRWLock.writeLock().lock();
+        loadedMeta.quadTreeRWLock.writeLock().lock();
+        try {
+            QuadTreeMask mask = quadTreeMeta.quadTreeRoot.getMask(true, true);
+            assertFalse(mask.isAllClear());
+            assertTrue(mask.contentEquals(loadedMeta.quadTreeRoot.getMask(true, true)));
+        } finally {
+            loadedMeta.quadTreeRWLock.writeLock().unlock();
+            quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+        }
+    }
+}
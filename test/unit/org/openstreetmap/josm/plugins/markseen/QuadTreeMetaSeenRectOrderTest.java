@@ -1,19 +1,40 @@
 // License: GPL. For details, see LICENSE file.
 package org.openstreetmap.josm.plugins.markseen;
 
+import java.awt.Color;
+
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import org.openstreetmap.gui.jmapviewer.Tile;
+import org.openstreetmap.josm.data.Bounds;
+
 @RunWith(Parameterized.class)
 public class QuadTreeMetaSeenRectOrderTest extends BaseQuadTreeMetaTest {
     private static final int variants = 16;
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Parameters(name = "{index}-scenario-{0}-seed-{1}")
     public static Collection<Object[]> getParameters() throws IOException {
         ArrayList<Object[]> paramSets = new ArrayList<Object[]>();
@@ -50,4 +71,171 @@ public class QuadTreeMetaSeenRectOrderTest extends BaseQuadTreeMetaTest {
 
         this.inspectReferenceTiles(this.quadTreeMeta, dynamicReferences, this.referenceTiles, this.referenceTileOrderSeed);
     }
+
+    @Test(timeout = 10000)
+    public void testOptimisticRead() throws InterruptedException {
+        QuadTreeNodeDynamicReference[] dynamicReferences = createDynamicReferences(this.quadTreeMeta, this.referenceTiles);
+
+        this.markRectsAsync(this.quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        this.quadTreeMeta.awaitIdle();
+        this.inspectReferenceTiles(this.quadTreeMeta, dynamicReferences, this.referenceTiles, this.referenceTileOrderSeed);
+
+        // every mask has now been constructed, so should be readable optimistically - as long as nothing writes
+        for (QuadTreeNodeDynamicReference dynamicReference : dynamicReferences) {
+            QuadTreeMask mask = dynamicReference.maskReadOperation(m -> m);
+            assertSame(mask, dynamicReference.optimisticMaskReadOperation((m, version) -> m));
+            assertEquals(
+                (Integer) mask.getVersion(),
+                dynamicReference.optimisticMaskReadOperation((m, version) -> version)
+            );
+
+            this.quadTreeMeta.quadTreeRWLock.writeLock().lock();
+            assertNull(dynamicReference.optimisticMaskReadOperation((m, version) -> m));
+            this.quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testYieldingLock() throws InterruptedException {
+        // the edit thread giving way to readers between every chunk of every mark
+        this.quadTreeMeta.setMaxLockHoldMillis(0);
+        QuadTreeNodeDynamicReference[] dynamicReferences = createDynamicReferences(this.quadTreeMeta, this.referenceTiles);
+
+        this.markRectsAsync(this.quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        this.quadTreeMeta.awaitIdle();
+
+        this.inspectReferenceTiles(this.quadTreeMeta, dynamicReferences, this.referenceTiles, this.referenceTileOrderSeed);
+    }
+
+    @Test(timeout = 10000)
+    public void testImmutableMasks() throws InterruptedException {
+        QuadTreeMeta immutableMeta = new QuadTreeMeta(
+            new QuadTreeMeta.Options(this.tileSize, Color.PINK, 0.5).immutableMasks(true)
+        );
+        QuadTreeNodeDynamicReference[] dynamicReferences = createDynamicReferences(immutableMeta, this.referenceTiles);
+
+        this.markRectsAsync(immutableMeta, this.seenRects, this.seenRectOrderSeed);
+        immutableMeta.awaitIdle();
+        this.inspectReferenceTiles(immutableMeta, dynamicReferences, this.referenceTiles, this.referenceTileOrderSeed);
+
+        // every mask handed out, with or without the lock, is one that will never change
+        for (QuadTreeNodeDynamicReference dynamicReference : dynamicReferences) {
+            assertTrue(dynamicReference.maskReadOperation(m -> m).isImmutable());
+            assertTrue(dynamicReference.optimisticMaskReadOperation((m, version) -> m).isImmutable());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testSnapshots() throws Exception {
+        QuadTreeMeta persistentMeta = new QuadTreeMeta(
+            new QuadTreeMeta.Options(this.tileSize, Color.PINK, 0.5).persistent(true)
+        );
+        QuadTreeSnapshot initialSnapshot = persistentMeta.snapshot();
+        this.markRectsAsync(persistentMeta, this.seenRects, this.seenRectOrderSeed);
+        // snapshots don't wait for queued edits themselves
+        persistentMeta.awaitIdle();
+        QuadTreeSnapshot markedSnapshot = persistentMeta.snapshot();
+        // further edits leave the snapshots we already have alone
+        this.markRectsAsync(persistentMeta, this.seenRects, null);
+        persistentMeta.requestClear();
+
+        // and they can be read while another thread has the quadtree to itself
+        persistentMeta.quadTreeRWLock.writeLock().lock();
+        byte[] blankMaskBytes = getRefMaskBytes(persistentMeta, false);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            for (int j : getRemapping(this.referenceTiles.length, this.referenceTileOrderSeed)) {
+                Object[] referenceTileInfo = this.referenceTiles[j];
+                int zoom = (int) referenceTileInfo[0];
+                int xtile = (int) referenceTileInfo[1];
+                int ytile = (int) referenceTileInfo[2];
+                assertArrayEquals(
+                    getRefMaskBytes(persistentMeta, referenceTileInfo[3]),
+                    executor.submit(
+                        () -> getMaskBytes(persistentMeta, markedSnapshot.getMask(xtile, ytile, zoom))
+                    ).get()
+                );
+                assertArrayEquals(
+                    blankMaskBytes,
+                    executor.submit(
+                        () -> getMaskBytes(persistentMeta, initialSnapshot.getMask(xtile, ytile, zoom))
+                    ).get()
+                );
+            }
+        } finally {
+            executor.shutdown();
+            persistentMeta.quadTreeRWLock.writeLock().unlock();
+        }
+        persistentMeta.awaitIdle();
+        assertTrue(persistentMeta.snapshot().contentEquals(initialSnapshot));
+    }
+
+    @Test(timeout = 10000)
+    public void testShards() throws InterruptedException {
+        // as many shards as the tile size allows, up to 8 across. combined, they should be indistinguishable from a
+        // single quadtree
+        QuadTreeShards shards = new QuadTreeShards(
+            new QuadTreeMeta.Options(this.tileSize, Color.PINK, 0.5),
+            Math.min(Integer.numberOfTrailingZeros(this.tileSize), 3)
+        );
+        shards.setMaxLockHoldMillis(0);
+        // taken before any of the shards exist, so having to catch up with them
+        Tile[] tiles = createTiles(this.referenceTiles);
+        QuadTreeMaskSource.TileReference[] tileReferences = new QuadTreeMaskSource.TileReference[tiles.length];
+        for (int j = 0; j < tiles.length; j++) {
+            tileReferences[j] = shards.getTileReference(tiles[j]);
+        }
+        for (int j : getRemapping(this.seenRects.length, this.seenRectOrderSeed)) {
+            shards.requestSeenBoundsMark((Bounds) this.seenRects[j][0], (double) this.seenRects[j][1], true);
+        }
+        shards.awaitIdle();
+
+        for (int j : getRemapping(this.referenceTiles.length, this.referenceTileOrderSeed)) {
+            assertArrayEquals(
+                getRefMaskBytes(this.quadTreeMeta, this.referenceTiles[j][3]),
+                tileReferences[j].maskReadOperation(mask -> getMaskBytes(this.quadTreeMeta, mask))
+            );
+            // nothing having changed, the same mask again - combined or not
+            QuadTreeMask mask = tileReferences[j].maskReadOperation(mask_ -> mask_);
+            assertSame(mask, tileReferences[j].maskReadOperation(mask_ -> mask_));
+        }
+        shards.awaitIdle();
+
+        // sharing a single pair of constants & the mask cache budget
+        long budgetBytes = 0;
+        for (QuadTreeMeta shard : shards.getShards()) {
+            assertSame(shards.getShards().iterator().next().EMPTY_MASK, shard.EMPTY_MASK);
+            assertSame(shards.getShards().iterator().next().FULL_MASK, shard.FULL_MASK);
+            budgetBytes += shard.quadTreeRoot.getMaskCache().getBudgetBytes();
+        }
+        assertTrue(budgetBytes <= QuadTreeMeta.DEFAULT_MASK_CACHE_BYTES);
+    }
+
+    @Test(timeout = 10000)
+    public void testBatch() throws InterruptedException {
+        QuadTreeNodeDynamicReference[] dynamicReferences = createDynamicReferences(this.quadTreeMeta, this.referenceTiles);
+
+        for (Map.Entry<Double, List<Bounds>> batch : getBatches(this.seenRects, this.seenRectOrderSeed).entrySet()) {
+            this.quadTreeMeta.requestSeenBoundsMarkBatch(batch.getValue(), batch.getKey(), true);
+        }
+        this.quadTreeMeta.awaitIdle();
+
+        this.inspectReferenceTiles(this.quadTreeMeta, dynamicReferences, this.referenceTiles, this.referenceTileOrderSeed);
+    }
+
+    @Test(timeout = 10000)
+    public void testJournalReplay() throws IOException, InterruptedException {
+        Path path = this.temporaryFolder.getRoot().toPath().resolve("seen.journal");
+        this.quadTreeMeta.openJournal(path);
+        this.markRectsAsync(this.quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        this.quadTreeMeta.awaitIdle();
+        this.quadTreeMeta.closeJournal();
+
+        // as if after a crash, with nothing saved but the journal
+        QuadTreeMeta replayedMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
+        replayedMeta.openJournal(path);
+        QuadTreeNodeDynamicReference[] dynamicReferences = createDynamicReferences(replayedMeta, this.referenceTiles);
+        this.inspectReferenceTiles(replayedMeta, dynamicReferences, this.referenceTiles, this.referenceTileOrderSeed);
+        replayedMeta.closeJournal();
+    }
 }
@@ -0,0 +1,83 @@
+// License: GPL. For details, see LICENSE file.
+package org.openstreetmap.josm.plugins.markseen;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import org.junit.Test;
+
+public class QuadTreeNodeIndexTest {
+    @Test
+    public void testTileKeys() {
+        assertEquals(QuadTreeNodeIndex.ROOT_KEY, QuadTreeNodeIndex.tileKey(0, 0, 0));
+
+        Random random = new Random(1);
+        for (int n = 0; n < 1000; n++) {
+            int zoom = 1 + random.nextInt(22);
+            int xtile = random.nextInt(1 << zoom);
+            int ytile = random.nextInt(1 << zoom);
+            long key = QuadTreeNodeIndex.tileKey(xtile, ytile, zoom);
+
+            // a tile's key should be derivable from its parent's in the same way the pool derives it
+            int childIndex = (xtile & 1) | ((ytile & 1) << 1);
+            assertEquals(
+                key,
+                QuadTreeNodeIndex.childKey(QuadTreeNodeIndex.tileKey(xtile >>> 1, ytile >>> 1, zoom - 1), childIndex)
+            );
+
+            int levels = random.nextInt(zoom + 1);
+            assertEquals(
+                QuadTreeNodeIndex.tileKey(xtile >>> levels, ytile >>> levels, zoom - levels),
+                QuadTreeNodeIndex.ancestorKey(key, levels)
+            );
+
+            // tiles of different zooms sharing the same coordinates mustn't collide
+            if (xtile < (1 << (zoom - 1)) && ytile < (1 << (zoom - 1))) {
+                assertNotEquals(key, QuadTreeNodeIndex.tileKey(xtile, ytile, zoom - 1));
+            }
+        }
+    }
+
+    @Test
+    public void testPutGet() {
+        QuadTreeNodeIndex index = new QuadTreeNodeIndex();
+        Random random = new Random(2);
+        long[] keys = new long[5000];
+        for (int i = 0; i < keys.length; i++) {
+            int zoom = random.nextInt(23);
+            keys[i] = QuadTreeNodeIndex.tileKey(random.nextInt(1 << zoom), random.nextInt(1 << zoom), zoom);
+            index.put(keys[i], i);
+        }
+
+        for (int i = 0; i < keys.length; i++) {
+            // a key may have been drawn more than once, in which case the later handle will have replaced it
+            int handle = index.get(keys[i]);
+            assertEquals(keys[i], keys[handle]);
+        }
+        assertEquals(QuadTreeNodePool.NONE, index.get(QuadTreeNodeIndex.tileKey(1, 1, 30)));
+    }
+
+    @Test
+    public void testPoolFindNearestExisting() {
+        QuadTreeNodePool pool = new QuadTreeNodePool();
+        // build the path down to tile 12/1234/567
+        int node = QuadTreeNodePool.ROOT;
+        for (int zoom = 1; zoom <= 12; zoom++) {
+            int childIndex = ((1234 >>> (12 - zoom)) & 1) | (((567 >>> (12 - zoom)) & 1) << 1);
+            node = pool.allocate(node, childIndex);
+        }
+        assertEquals(13, pool.size());
+        assertEquals(node, pool.findNode(QuadTreeNodeIndex.tileKey(1234, 567, 12)));
+
+        // a descendant's nearest existing ancestor-or-self
+        long key = QuadTreeNodeIndex.tileKey((1234 << 4) + 3, (567 << 4) + 9, 16);
+        assertEquals(4, pool.findNearestExistingLevels(key, 16));
+        // a tile only sharing the first few levels of ancestry
+        key = QuadTreeNodeIndex.tileKey(1234 ^ 0x20, 567, 12);
+        assertEquals(6, pool.findNearestExistingLevels(key, 12));
+        // the root itself
+        assertEquals(0, pool.findNearestExistingLevels(QuadTreeNodeIndex.ROOT_KEY, 0));
+    }
+}
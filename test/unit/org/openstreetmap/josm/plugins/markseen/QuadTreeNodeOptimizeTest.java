@@ -6,7 +6,6 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 
-import org.openstreetmap.josm.TestUtils;
 import org.openstreetmap.josm.tools.Logging;
 
 import static org.junit.Assert.assertTrue;
@@ -60,16 +59,31 @@ public class QuadTreeNodeOptimizeTest extends BaseQuadTreeNodeTest {
     }
 
     @Test
-    public void test() {
+    public void test() throws InterruptedException {
+        this.runTest(false);
+    }
+
+    @Test
+    public void testInternMasks() throws InterruptedException {
+        // marks made after an optimize() will often have to copy an interned mask before drawing to it
+        this.runTest(true);
+    }
+
+    private void runTest(boolean internMasks) throws InterruptedException {
         QuadTreeMeta quadTreeMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
         quadTreeMeta.quadTreeRWLock.writeLock().lock();
 
         this.markRects(quadTreeMeta, this.seenRects, this.seenRectOrderSeed, false, (i, j, bounds, minTilesAcross) -> {
             if (this.optimizeStride != null && i % this.optimizeStride == 0) {
-                quadTreeMeta.quadTreeRoot.optimize();
+                try {
+                    quadTreeMeta.quadTreeRoot.optimize(false, internMasks);
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
             }
         });
-        quadTreeMeta.quadTreeRoot.optimize();
+        quadTreeMeta.quadTreeRoot.optimize(false, internMasks);
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
 
         this.inspectReferenceTiles(
             quadTreeMeta,
@@ -86,17 +100,13 @@ public class QuadTreeNodeOptimizeTest extends BaseQuadTreeNodeTest {
                         resultMask == ((boolean) refMask ? quadTreeMeta.FULL_MASK : quadTreeMeta.EMPTY_MASK)
                     );
                 } else if (Boolean.class.isInstance(refMask)) {
-                    try {
-                        if (!(boolean) TestUtils.getPrivateField(node, "belowCanonical")) {
-                            Logging.info(
-                                "Unaliasable optimized node of refTile " + j
-                                + " isn't belowCanonical but still constant value. that's interesting."
-                                // this usually happens when differing pixels get squashed out by
-                                // the rescaling process at a higher level
-                            );
-                        }
-                    } catch (ReflectiveOperationException e) {
-                        throw new RuntimeException(e);
+                    if (!node.isBelowCanonical()) {
+                        Logging.info(
+                            "Unaliasable optimized node of refTile " + j
+                            + " isn't belowCanonical but still constant value. that's interesting."
+                            // this usually happens when differing pixels get squashed out by
+                            // the rescaling process at a higher level
+                        );
                     }
                 }
             }
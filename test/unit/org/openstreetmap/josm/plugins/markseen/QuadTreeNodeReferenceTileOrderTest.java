@@ -63,8 +63,7 @@ public class QuadTreeNodeReferenceTileOrderTest extends BaseQuadTreeNodeTest {
         quadTreeMeta.quadTreeRWLock.writeLock().unlock();
 
         // now, we *should* be able to re-read those same tiles without the ability to write and nothing should
-        // complain. provided, of course, java hasn't decided to reclaim any of the SoftReferences, but that's a pretty
-        // slim possibility.
+        // complain, the default mask cache budget being plenty to retain all of their masks.
         this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed, false, null, false);
     }
 }
@@ -4,18 +4,36 @@ package org.openstreetmap.josm.plugins.markseen;
 import java.awt.Color;
 
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import org.openstreetmap.josm.data.Bounds;
+
 @RunWith(Parameterized.class)
 public class QuadTreeNodeSeenRectOrderTest extends BaseQuadTreeNodeTest {
     private static final int variants = 16;
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Parameters(name = "{index}-scenario-{0}-seed-{1}")
     public static Collection<Object[]> getParameters() throws IOException {
         ArrayList<Object[]> paramSets = new ArrayList<Object[]>();
@@ -52,8 +70,268 @@ public class QuadTreeNodeSeenRectOrderTest extends BaseQuadTreeNodeTest {
         quadTreeMeta.quadTreeRWLock.writeLock().unlock();
 
         // now, we *should* be able to re-read those same tiles without the ability to write and nothing should
-        // complain. provided, of course, java hasn't decided to reclaim any of the SoftReferences, but that's a pretty
-        // slim possibility.
+        // complain, the default mask cache budget being plenty to retain all of their masks.
         this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed, true, null, false);
     }
+
+    @Test
+    public void testBatch() {
+        // marking the rects a batch at a time should give the same results as marking them individually
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
+        quadTreeMeta.quadTreeRWLock.writeLock().lock();
+
+        for (Map.Entry<Double, List<Bounds>> batch : getBatches(this.seenRects, this.seenRectOrderSeed).entrySet()) {
+            assertEquals(0, quadTreeMeta.quadTreeRoot.markBoundsSeen(batch.getValue(), batch.getKey()));
+            quadTreeMeta.quadTreeRoot.checkIntegrity();
+        }
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+
+        // and marking them all again should make no difference
+        for (Map.Entry<Double, List<Bounds>> batch : getBatches(this.seenRects, this.seenRectOrderSeed).entrySet()) {
+            quadTreeMeta.quadTreeRoot.markBoundsSeen(batch.getValue(), batch.getKey());
+        }
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+
+        quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+    }
+
+    @Test
+    public void testChunked() throws InterruptedException {
+        // marking each rect a chunk at a time, as a preemptible mark would, should make no difference either
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
+        quadTreeMeta.quadTreeRWLock.writeLock().lock();
+
+        List<Integer> remapping = getRemapping(this.seenRects.length, this.seenRectOrderSeed);
+        for (int j : remapping) {
+            Bounds bounds = (Bounds) this.seenRects[j][0];
+            quadTreeMeta.quadTreeRoot.markBoundsSeen(Arrays.asList(bounds), (double) this.seenRects[j][1], 0);
+            quadTreeMeta.quadTreeRoot.checkIntegrity();
+        }
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+
+        quadTreeMeta.quadTreeRoot.optimize(false);
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+
+        quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+    }
+
+    @Test
+    public void testMinimalMaskCache() {
+        // with no budget at all every derived mask is evicted as soon as another is built, so must be correctly
+        // rebuilt whenever it is needed again
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(
+            new QuadTreeMeta.Options(this.tileSize, Color.PINK, 0.5).maskCacheBytes(0)
+        );
+        quadTreeMeta.quadTreeRWLock.writeLock().lock();
+
+        this.markRects(quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+
+        assertTrue(quadTreeMeta.quadTreeRoot.getMaskCache().getEntryCount() <= 1);
+        quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+    }
+
+    @Test
+    public void testColdMasks() throws InterruptedException {
+        // every canonical mask worth compressing is frozen as soon as it's marked, so must be thawed by whatever
+        // next needs it
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
+        quadTreeMeta.quadTreeRWLock.writeLock().lock();
+
+        this.markRects(quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        quadTreeMeta.quadTreeRoot.freezeIdleMasks(0, false);
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+
+        quadTreeMeta.quadTreeRoot.freezeIdleMasks(0, false);
+        quadTreeMeta.quadTreeRoot.optimize();
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+
+        QuadTreeMaskColdStore coldStore = quadTreeMeta.quadTreeRoot.getColdStore();
+        assertTrue(coldStore.getThawCount() <= coldStore.getFreezeCount());
+        quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+    }
+
+    @Test
+    public void testColdMasksOffHeap() throws InterruptedException {
+        // as testColdMasks, the cold forms carved from the shared slabs
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
+        quadTreeMeta.quadTreeRWLock.writeLock().lock();
+
+        this.markRects(quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        quadTreeMeta.quadTreeRoot.freezeIdleMasks(0, true, false);
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+        QuadTreeMaskColdStore coldStore = quadTreeMeta.quadTreeRoot.getColdStore();
+        assertEquals(0, coldStore.getColdBytes(false));
+        assertEquals(coldStore.getColdCount() > 0, coldStore.getColdBytes(true) > 0);
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+
+        quadTreeMeta.quadTreeRoot.freezeIdleMasks(0, true, false);
+        quadTreeMeta.quadTreeRoot.optimize();
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+
+        assertTrue(coldStore.getThawCount() <= coldStore.getFreezeCount());
+        quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+    }
+
+    @Test
+    public void testImmutableMasks() throws InterruptedException {
+        // masks are replaced rather than modified once readable, whether by marking, compacting or freezing - with no
+        // budget for the mask cache, eviction gets a look in too
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(
+            new QuadTreeMeta.Options(this.tileSize, Color.PINK, 0.5).maskCacheBytes(0).immutableMasks(true)
+        );
+        quadTreeMeta.quadTreeRWLock.writeLock().lock();
+
+        this.markRects(quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+        assertTrue(quadTreeMeta.quadTreeRoot.getMask(true, true).isImmutable());
+
+        quadTreeMeta.quadTreeRoot.freezeIdleMasks(0, false);
+        quadTreeMeta.quadTreeRoot.optimize();
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+
+        this.markRects(quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+        this.inspectReferenceTiles(quadTreeMeta, this.referenceTiles, this.referenceTileOrderSeed);
+
+        quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+    }
+
+    @Test
+    public void testPersistent() throws IOException, InterruptedException {
+        // every version should go on giving the masks the quadtree had at the time, however it's edited since
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(
+            new QuadTreeMeta.Options(this.tileSize, Color.PINK, 0.5).maskCacheBytes(0).persistent(true)
+        );
+        quadTreeMeta.quadTreeRWLock.writeLock().lock();
+        QuadTreeSnapshot initialSnapshot = quadTreeMeta.snapshot();
+
+        this.markRects(quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+        QuadTreeSnapshot markedSnapshot = quadTreeMeta.snapshot();
+        assertSame(markedSnapshot, quadTreeMeta.snapshot());
+        // derived masks are built once per version node
+        assertSame(markedSnapshot.getMask(0, 0, 0), markedSnapshot.getMask(0, 0, 0));
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+
+        quadTreeMeta.quadTreeRoot.optimize();
+        QuadTreeSnapshot optimizedSnapshot = quadTreeMeta.snapshot();
+        quadTreeMeta.quadTreeRoot.clear();
+        QuadTreeSnapshot clearedSnapshot = quadTreeMeta.snapshot();
+        quadTreeMeta.quadTreeRoot.checkIntegrity();
+        quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+
+        byte[] blankMaskBytes = getRefMaskBytes(quadTreeMeta, false);
+        for (int j : getRemapping(this.referenceTiles.length, this.referenceTileOrderSeed)) {
+            Object[] referenceTileInfo = this.referenceTiles[j];
+            byte[] refMaskBytes = getRefMaskBytes(quadTreeMeta, referenceTileInfo[3]);
+            int zoom = (int) referenceTileInfo[0];
+            int xtile = (int) referenceTileInfo[1];
+            int ytile = (int) referenceTileInfo[2];
+            assertArrayEquals(refMaskBytes, getMaskBytes(quadTreeMeta, markedSnapshot.getMask(xtile, ytile, zoom)));
+            assertArrayEquals(refMaskBytes, getMaskBytes(quadTreeMeta, optimizedSnapshot.getMask(xtile, ytile, zoom)));
+            assertArrayEquals(blankMaskBytes, getMaskBytes(quadTreeMeta, initialSnapshot.getMask(xtile, ytile, zoom)));
+            assertArrayEquals(blankMaskBytes, getMaskBytes(quadTreeMeta, clearedSnapshot.getMask(xtile, ytile, zoom)));
+        }
+
+        // optimizing reshapes the quadtree without changing what it holds
+        assertTrue(markedSnapshot.contentEquals(optimizedSnapshot));
+        assertTrue(optimizedSnapshot.contentEquals(markedSnapshot));
+        assertTrue(initialSnapshot.contentEquals(clearedSnapshot));
+        // with a maskReductionThreshold of 1, anything seen at all shows up at zoom 0
+        assertEquals(markedSnapshot.contentEquals(initialSnapshot), markedSnapshot.getMask(0, 0, 0).isAllClear());
+
+        // and an old version can be saved & loaded like the quadtree itself
+        Path path = this.temporaryFolder.getRoot().toPath().resolve("snapshot.quadtree");
+        markedSnapshot.writeTo(path);
+        QuadTreeMeta loadedMeta = new QuadTreeMeta(
+            new QuadTreeMeta.Options(this.tileSize, Color.PINK, 0.5).maskCacheBytes(0).persistent(true)
+        );
+        assertTrue(loadedMeta.load(path));
+        assertTrue(loadedMeta.snapshot().contentEquals(markedSnapshot));
+        // reading the loaded version leaves the quadtree's masks as lazily mapped as it found them
+        assertEquals(
+            markedSnapshot.getMask(0, 0, 0).isAllClear(),
+            loadedMeta.quadTreeRoot.getColdStore().getColdCount() == 0
+        );
+        loadedMeta.quadTreeRWLock.writeLock().lock();
+        loadedMeta.quadTreeRoot.checkIntegrity();
+        this.inspectReferenceTiles(loadedMeta, this.referenceTiles, this.referenceTileOrderSeed);
+        loadedMeta.quadTreeRWLock.writeLock().unlock();
+    }
+
+    @Test
+    public void testPersistence() throws IOException {
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
+        quadTreeMeta.quadTreeRWLock.writeLock().lock();
+        this.markRects(quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        Path path = this.temporaryFolder.getRoot().toPath().resolve("seen.quadtree");
+        quadTreeMeta.quadTreeRoot.writeTo(path);
+        quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+
+        // a differing tile size makes the file unusable
+        assertFalse(new QuadTreeMeta(this.tileSize + 1, Color.PINK, 0.5, false).load(path));
+
+        QuadTreeMeta loadedMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
+        assertTrue(loadedMeta.load(path));
+        loadedMeta.quadTreeRWLock.writeLock().lock();
+        loadedMeta.quadTreeRoot.checkIntegrity();
+        // saving again before any masks have been thawed from the file
+        Path resavedPath = this.temporaryFolder.getRoot().toPath().resolve("resaved.quadtree");
+        loadedMeta.quadTreeRoot.writeTo(resavedPath);
+        this.inspectReferenceTiles(loadedMeta, this.referenceTiles, this.referenceTileOrderSeed);
+        loadedMeta.quadTreeRWLock.writeLock().unlock();
+
+        QuadTreeMeta reloadedMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
+        assertTrue(reloadedMeta.load(resavedPath));
+        reloadedMeta.quadTreeRWLock.writeLock().lock();
+        this.inspectReferenceTiles(reloadedMeta, this.referenceTiles, this.referenceTileOrderSeed);
+        // and marking further areas on top of what was loaded
+        this.markRects(reloadedMeta, this.seenRects, this.seenRectOrderSeed);
+        reloadedMeta.quadTreeRoot.checkIntegrity();
+        this.inspectReferenceTiles(reloadedMeta, this.referenceTiles, this.referenceTileOrderSeed);
+        reloadedMeta.quadTreeRWLock.writeLock().unlock();
+    }
+
+    @Test
+    public void testGenerations() throws IOException {
+        QuadTreeMeta quadTreeMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
+        quadTreeMeta.quadTreeRWLock.writeLock().lock();
+        this.markRects(quadTreeMeta, this.seenRects, this.seenRectOrderSeed);
+        QuadTreeSnapshot copy = new QuadTreeSnapshot(quadTreeMeta, quadTreeMeta.quadTreeRoot.copyCanonical());
+        quadTreeMeta.quadTreeRWLock.writeLock().unlock();
+        Path path = this.temporaryFolder.getRoot().toPath().resolve("seen.quadtree");
+        // neither of which is a generation
+        Files.createFile(path.resolveSibling("seen.quadtree.tmp"));
+        Files.createFile(path.resolveSibling("seen.quadtreex"));
+        copy.writeGenerationTo(path);
+        assertEquals(0, QuadTreeFile.latestGeneration(path));
+
+        QuadTreeMeta loadedMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
+        assertTrue(loadedMeta.load(path));
+        loadedMeta.quadTreeRWLock.writeLock().lock();
+        copy = new QuadTreeSnapshot(loadedMeta, loadedMeta.quadTreeRoot.copyCanonical());
+        loadedMeta.quadTreeRWLock.writeLock().unlock();
+        // the file loadedMeta's masks are mapped from isn't replaced, but superseded
+        copy.writeGenerationTo(path);
+        assertEquals(1, QuadTreeFile.latestGeneration(path));
+        assertTrue(Files.exists(QuadTreeFile.generationPath(path, 1)));
+        loadedMeta.quadTreeRWLock.writeLock().lock();
+        this.inspectReferenceTiles(loadedMeta, this.referenceTiles, this.referenceTileOrderSeed);
+        loadedMeta.quadTreeRWLock.writeLock().unlock();
+
+        QuadTreeMeta reloadedMeta = new QuadTreeMeta(this.tileSize, Color.PINK, 0.5, false);
+        assertTrue(reloadedMeta.load(path));
+        reloadedMeta.quadTreeRWLock.writeLock().lock();
+        this.inspectReferenceTiles(reloadedMeta, this.referenceTiles, this.referenceTileOrderSeed);
+        reloadedMeta.quadTreeRWLock.writeLock().unlock();
+    }
 }